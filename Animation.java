@@ -0,0 +1,132 @@
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Scene animated by a sequence of frames: the scene is parsed once and each
+ * frame then updates some of its objects (see FileFormat.parseXMLFrame), for
+ * example the transforms of instances, the vertices of meshes or the camera.
+ *
+ * After a frame only the acceleration structures that depend on what changed
+ * are updated, each after the surfaces it contains: meshes whose vertices
+ * moved, groups with a changed surface and the scene if one of its surfaces
+ * changed. They are refitted if their primitives are the same ones they were
+ * built over, and built again otherwise or when refitting degraded them (see
+ * BVH.refit), so that the cost of a frame follows what it changed rather than
+ * the size of the scene.
+ *
+ * @author fabio
+ */
+public class Animation {
+	/**
+	 * Animated scene.
+	 */
+	public Scene				scene;
+	/**
+	 * Parser of the scene, which keeps its ids for the frames.
+	 */
+	private FileFormat			parser;
+	/**
+	 * All the surfaces of the scene, each after the surfaces it contains, and
+	 * their position in the list.
+	 */
+	private List<Surface>		surfaces;
+	private IdentityHashMap<Surface,Integer> surfaceIndices;
+
+	/**
+	 * Parse the scene in the given file with the given parser (FileFormat or
+	 * StaxFileFormat).
+	 */
+	public Animation(FileFormat nParser, String filename) throws FileFormat.ParserException {
+		parser = nParser;
+		scene = parser.parseXMLScene(filename);
+		collectSurfaces();
+	}
+
+	/**
+	 * Apply the frame in the given file to the scene, then update the
+	 * acceleration structures that depend on the objects it changed.
+	 * The time spent updating them is stored in scene.buildTime.
+	 */
+	public void applyFrame(String filename) throws FileFormat.ParserException {
+		List<Object> updated = parser.parseXMLFrame(filename);
+
+		long start = System.nanoTime();
+		Set<Object> changed = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+		changed.addAll(updated);
+		for(Object object : updated) {
+			if(!isOrdered(object)) {
+				collectSurfaces();
+				break;
+			}
+		}
+		for(Surface surface : surfaces) {
+			if(surface instanceof TriangleMesh) {
+				if(changed.contains(surface)) {
+					((TriangleMesh)surface).refit();
+				}
+			} else if(surface instanceof SurfaceGroup) {
+				SurfaceGroup group = (SurfaceGroup)surface;
+				if(changed.contains(group) || containsAny(changed, group.surfaces)) {
+					group.refit();
+					changed.add(group);
+				}
+			} else if(surface instanceof Instance) {
+				if(changed.contains(((Instance)surface).geometry)) {
+					changed.add(surface);
+				}
+			}
+		}
+		if(containsAny(changed, scene.surfaces)) {
+			scene.refitAccelerationStructure();
+		}
+		scene.buildTime = System.nanoTime() - start;
+	}
+
+	/**
+	 * Collect the surfaces of the scene in dependency order.
+	 */
+	private void collectSurfaces() {
+		surfaceIndices = new IdentityHashMap<Surface,Integer>();
+		surfaces = SceneCache.collectSurfaces(scene, surfaceIndices);
+	}
+
+	/**
+	 * Return false if an updated object may have changed which surfaces
+	 * contain which, so that the dependency order must be collected again.
+	 */
+	private boolean isOrdered(Object object) {
+		if(object == scene) {
+			return false;
+		} else if(object instanceof SurfaceGroup) {
+			Surface[] children = ((SurfaceGroup)object).surfaces;
+			for(int i = 0; i < children.length; i ++) {
+				if(!isBefore(children[i], (Surface)object)) {
+					return false;
+				}
+			}
+		} else if(object instanceof Instance) {
+			return isBefore(((Instance)object).geometry, (Surface)object);
+		}
+		return true;
+	}
+
+	/**
+	 * Return true if both surfaces are collected and a comes before b.
+	 */
+	private boolean isBefore(Surface a, Surface b) {
+		Integer ia = surfaceIndices.get(a);
+		Integer ib = surfaceIndices.get(b);
+		return ia != null && ib != null && ia < ib;
+	}
+
+	private static boolean containsAny(Set<Object> set, Surface[] surfaces) {
+		for(int i = 0; i < surfaces.length; i ++) {
+			if(set.contains(surfaces[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
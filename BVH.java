@@ -0,0 +1,439 @@
+import java.util.Arrays;
+
+/**
+ * Bounding volume hierarchy over a set of primitives.
+ *
+ * The hierarchy only knows about the bounds of the primitives: its owner refers
+ * to them by index and performs the actual intersection through the Primitives
+ * callback. Nodes are built by BVHBuilder, with the quality given by QUALITY,
+ * and stored flattened in depth-first order, so that the first child of an
+ * internal node immediately follows it, while the index of the second child is
+ * kept in nodeOffset.
+ *
+ * @author fabio
+ */
+public class BVH {
+	/**
+	 * Callback used by the hierarchy to intersect the primitives it references.
+	 */
+	public interface Primitives {
+		/**
+		 * Intersect the given ray with the given primitive storing the result in
+		 * intersection and result true if there was an intersection.
+		 */
+		boolean intersectPrimitive(int primitive, Ray ray, Intersection intersection);
+
+		/**
+		 * Return true if the given ray hits the given primitive between its minimum
+		 * and maximum distance.
+		 */
+		boolean occludedPrimitive(int primitive, Ray ray);
+
+		/**
+		 * Intersect the rays of the packet with the given primitive, updating the
+		 * closest hit of the lanes it hits.
+		 */
+		void intersectPrimitive(int primitive, RayPacket packet);
+	}
+
+	/**
+	 * Build qualities, from the fastest build to the fastest traversal:
+	 * Morton code (linear) BVH, binned SAH and full SAH sweep (see BVHBuilder).
+	 */
+	public static final int		LBVH = 0, BINNED = 1, SAH = 2;
+	/**
+	 * Quality of the hierarchies built with the default constructor.
+	 */
+	public static int			QUALITY = SAH;
+	/**
+	 * Maximum number of primitives stored in a leaf.
+	 */
+	public static int			MAX_LEAF_SIZE = 4;
+	/**
+	 * Cost of traversing a node relative to the cost of intersecting a primitive.
+	 */
+	public static double		TRAVERSAL_COST = 0.5;
+	/**
+	 * Ratio between the cost of a refitted hierarchy and its cost when built
+	 * above which refit reports that it should be built again.
+	 */
+	public static double		MAX_REFIT_COST = 1.5;
+	/**
+	 * Number of threads that build and refit hierarchies when not called from a
+	 * fork/join pool, which is used instead (see BVHBuilder).
+	 */
+	public static int			THREADS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Node bounds, six values per node (minx, miny, minz, maxx, maxy, maxz).
+	 */
+	double[]					nodeBounds;
+	/**
+	 * For leaves, the first entry in primitives.
+	 * For internal nodes, the index of the second child.
+	 */
+	int[]						nodeOffset;
+	/**
+	 * Number of primitives in a leaf, 0 for internal nodes.
+	 */
+	int[]						nodeCount;
+	/**
+	 * Split axis of internal nodes, used to visit the nearest child first.
+	 */
+	int[]						nodeAxis;
+	/**
+	 * Number of nodes.
+	 */
+	int							numNodes;
+	/**
+	 * Primitive indices, ordered so that each leaf references a contiguous range.
+	 */
+	int[]						primitives;
+	/**
+	 * Depth of the deepest leaf, used to size the traversal stack.
+	 */
+	int							maxDepth;
+	/**
+	 * Cost of the hierarchy as built (see cost), computed by the first refit.
+	 */
+	double						buildCost;
+
+	/**
+	 * Per-thread traversal stack, so that traversals do not allocate.
+	 * Nested hierarchies (a hierarchy reached from a primitive of another one)
+	 * push their entries on top of the entries of the enclosing traversal.
+	 * The stack also counts the tests performed by the thread.
+	 */
+	private static final ThreadLocal<TraversalStack> traversalStacks =
+		new ThreadLocal<TraversalStack>() {
+			protected TraversalStack initialValue() {
+				return new TraversalStack();
+			}
+		};
+
+	/**
+	 * Build a hierarchy over numPrimitives primitives whose bounds are given
+	 * in the flattened layout (six values per primitive), with QUALITY.
+	 */
+	public BVH(double[] nPrimitiveBounds, int numPrimitives) {
+		this(nPrimitiveBounds, numPrimitives, QUALITY);
+	}
+
+	/**
+	 * Build a hierarchy with the given quality (LBVH, BINNED or SAH).
+	 */
+	public BVH(double[] nPrimitiveBounds, int numPrimitives, int quality) {
+		new BVHBuilder(this, nPrimitiveBounds, numPrimitives, quality).build();
+	}
+
+	/**
+	 * Create an empty hierarchy whose nodes are filled in by a loader (see SceneCache).
+	 */
+	BVH() {
+	}
+
+	/**
+	 * Bounds of all the primitives (the root node bounds).
+	 */
+	public BoundingBox getBounds() {
+		BoundingBox box = new BoundingBox();
+		if(numNodes > 0) {
+			box.min.set(nodeBounds[0], nodeBounds[1], nodeBounds[2]);
+			box.max.set(nodeBounds[3], nodeBounds[4], nodeBounds[5]);
+		}
+		return box;
+	}
+
+	/**
+	 * Recompute the node bounds from new bounds of the same primitives, keeping
+	 * the tree as it is, in one pass over the nodes.
+	 * Moving primitives make the tree worse over time: returns false if its
+	 * cost grew above MAX_REFIT_COST times the cost it was built with, in which
+	 * case the owner should build a new hierarchy.
+	 */
+	public boolean refit(double[] nPrimitiveBounds) {
+		if(numNodes == 0) {
+			return true;
+		}
+		if(buildCost == 0) {
+			buildCost = cost();
+		}
+		// children follow their parent, so going backwards visits them first
+		for(int node = numNodes-1; node >= 0; node --) {
+			int b = 6*node;
+			int count = nodeCount[node];
+			if(count > 0) {
+				int offset = nodeOffset[node];
+				System.arraycopy(nPrimitiveBounds, 6*primitives[offset], nodeBounds, b, 6);
+				for(int i = 1; i < count; i ++) {
+					growBounds(b, nPrimitiveBounds, 6*primitives[offset+i]);
+				}
+			} else {
+				System.arraycopy(nodeBounds, 6*(node+1), nodeBounds, b, 6);
+				growBounds(b, nodeBounds, 6*nodeOffset[node]);
+			}
+		}
+		return cost() <= MAX_REFIT_COST * buildCost;
+	}
+
+	/**
+	 * Surface area heuristic cost of the hierarchy: the expected cost of tracing
+	 * a ray that hits the root, counting TRAVERSAL_COST per node visited and one
+	 * per primitive tested.
+	 */
+	double cost() {
+		double rootArea = numNodes > 0 ? surfaceArea(0) : 0;
+		if(rootArea == 0) {
+			return 0;
+		}
+		double cost = 0;
+		for(int node = 0; node < numNodes; node ++) {
+			int count = nodeCount[node];
+			cost += surfaceArea(node) * (count > 0 ? count : TRAVERSAL_COST);
+		}
+		return cost / rootArea;
+	}
+
+	/**
+	 * Surface area of the bounds of a node, 0 if empty.
+	 */
+	private double surfaceArea(int node) {
+		int b = 6*node;
+		double dx = nodeBounds[b+3] - nodeBounds[b+0];
+		double dy = nodeBounds[b+4] - nodeBounds[b+1];
+		double dz = nodeBounds[b+5] - nodeBounds[b+2];
+		if(dx < 0 || dy < 0 || dz < 0) {
+			return 0;
+		}
+		return 2 * (dx*dy + dy*dz + dz*dx);
+	}
+
+	/**
+	 * Grow the bounds at offset b to contain the flattened box at offset p.
+	 */
+	private void growBounds(int b, double[] bounds, int p) {
+		for(int a = 0; a < 3; a ++) {
+			if(bounds[p+a] < nodeBounds[b+a]) nodeBounds[b+a] = bounds[p+a];
+			if(bounds[p+3+a] > nodeBounds[b+3+a]) nodeBounds[b+3+a] = bounds[p+3+a];
+		}
+	}
+
+	/**
+	 * Intersect the given ray with the primitives in the hierarchy storing the
+	 * closest hit in intersection and result true if there was an intersection.
+	 * The ray maximum distance is shrunk while traversing and restored on exit.
+	 */
+	public boolean intersect(Ray ray, Intersection intersection, Primitives prims) {
+		if(numNodes == 0) {
+			return false;
+		}
+
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double idx = 1 / ray.direction.x, idy = 1 / ray.direction.y, idz = 1 / ray.direction.z;
+		int negative = (idx < 0 ? 1 : 0) | (idy < 0 ? 2 : 0) | (idz < 0 ? 4 : 0);
+		double maxDistance = ray.maxDistance;
+
+		TraversalStack stack = traversalStacks.get();
+		int base = stack.size;
+		int[] nodes = stack.reserve(maxDepth+1);
+		int top = base;
+		int node = 0;
+		boolean hit = false;
+		long nodeTests = 0, primitiveTests = 0;
+		while(true) {
+			nodeTests ++;
+			if(intersectNode(node, ox, oy, oz, idx, idy, idz, ray.minDistance, ray.maxDistance)) {
+				int count = nodeCount[node];
+				if(count > 0) {
+					int offset = nodeOffset[node];
+					primitiveTests += count;
+					stack.size = top;
+					for(int i = 0; i < count; i ++) {
+						if(prims.intersectPrimitive(primitives[offset+i], ray, intersection)) {
+							hit = true;
+							ray.maxDistance = intersection.distance;
+						}
+					}
+					// nested traversals may have grown the stack
+					nodes = stack.nodes;
+					if(top == base) break;
+					node = nodes[--top];
+				} else {
+					// visit the near child first
+					if(((negative >> nodeAxis[node]) & 1) != 0) {
+						nodes[top++] = node + 1;
+						node = nodeOffset[node];
+					} else {
+						nodes[top++] = nodeOffset[node];
+						node = node + 1;
+					}
+				}
+			} else {
+				if(top == base) break;
+				node = nodes[--top];
+			}
+		}
+
+		stack.size = base;
+		stack.nodeTests += nodeTests;
+		stack.primitiveTests += primitiveTests;
+		ray.maxDistance = maxDistance;
+		return hit;
+	}
+
+	/**
+	 * Intersect the rays of the packet with the primitives in the hierarchy,
+	 * updating the closest hit of each lane.
+	 * Nodes are visited if any lane hits them, near child first according to the
+	 * direction of the first lane, so that coherent rays share each node and
+	 * primitive fetch. Node and primitive tests are counted once per packet.
+	 */
+	public void intersect(RayPacket packet, Primitives prims) {
+		if(numNodes == 0 || packet.size == 0) {
+			return;
+		}
+		int negative = (packet.dx[0] < 0 ? 1 : 0) | (packet.dy[0] < 0 ? 2 : 0) | (packet.dz[0] < 0 ? 4 : 0);
+
+		TraversalStack stack = traversalStacks.get();
+		int base = stack.size;
+		int[] nodes = stack.reserve(maxDepth+1);
+		int top = base;
+		int node = 0;
+		long nodeTests = 0, primitiveTests = 0;
+		while(true) {
+			nodeTests ++;
+			if(packet.intersectBox(nodeBounds, 6*node)) {
+				int count = nodeCount[node];
+				if(count > 0) {
+					int offset = nodeOffset[node];
+					primitiveTests += count;
+					stack.size = top;
+					for(int i = 0; i < count; i ++) {
+						prims.intersectPrimitive(primitives[offset+i], packet);
+					}
+					nodes = stack.nodes;
+					if(top == base) break;
+					node = nodes[--top];
+				} else {
+					if(((negative >> nodeAxis[node]) & 1) != 0) {
+						nodes[top++] = node + 1;
+						node = nodeOffset[node];
+					} else {
+						nodes[top++] = nodeOffset[node];
+						node = node + 1;
+					}
+				}
+			} else {
+				if(top == base) break;
+				node = nodes[--top];
+			}
+		}
+
+		stack.size = base;
+		stack.nodeTests += nodeTests;
+		stack.primitiveTests += primitiveTests;
+	}
+
+	/**
+	 * Return true if the given ray hits any primitive in the hierarchy between its
+	 * minimum and maximum distance. Traversal stops at the first hit found.
+	 */
+	public boolean occluded(Ray ray, Primitives prims) {
+		if(numNodes == 0) {
+			return false;
+		}
+
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double idx = 1 / ray.direction.x, idy = 1 / ray.direction.y, idz = 1 / ray.direction.z;
+
+		TraversalStack stack = traversalStacks.get();
+		int base = stack.size;
+		int[] nodes = stack.reserve(maxDepth+1);
+		int top = base;
+		int node = 0;
+		boolean hit = false;
+		long nodeTests = 0, primitiveTests = 0;
+		while(true) {
+			nodeTests ++;
+			if(intersectNode(node, ox, oy, oz, idx, idy, idz, ray.minDistance, ray.maxDistance)) {
+				int count = nodeCount[node];
+				if(count > 0) {
+					int offset = nodeOffset[node];
+					stack.size = top;
+					for(int i = 0; i < count && !hit; i ++) {
+						hit = prims.occludedPrimitive(primitives[offset+i], ray);
+						primitiveTests ++;
+					}
+					nodes = stack.nodes;
+					if(hit || top == base) break;
+					node = nodes[--top];
+				} else {
+					nodes[top++] = nodeOffset[node];
+					node = node + 1;
+				}
+			} else {
+				if(top == base) break;
+				node = nodes[--top];
+			}
+		}
+
+		stack.size = base;
+		stack.nodeTests += nodeTests;
+		stack.primitiveTests += primitiveTests;
+		return hit;
+	}
+
+	/**
+	 * Slab test of the ray against the bounds of a node.
+	 */
+	private boolean intersectNode(int node, double ox, double oy, double oz,
+			double idx, double idy, double idz, double tmin, double tmax) {
+		int b = 6*node;
+		double t0 = (nodeBounds[b+0] - ox) * idx;
+		double t1 = (nodeBounds[b+3] - ox) * idx;
+		if(t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+		if(t0 > tmin) tmin = t0;
+		if(t1 < tmax) tmax = t1;
+		if(tmin > tmax) return false;
+		t0 = (nodeBounds[b+1] - oy) * idy;
+		t1 = (nodeBounds[b+4] - oy) * idy;
+		if(t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+		if(t0 > tmin) tmin = t0;
+		if(t1 < tmax) tmax = t1;
+		if(tmin > tmax) return false;
+		t0 = (nodeBounds[b+2] - oz) * idz;
+		t1 = (nodeBounds[b+5] - oz) * idz;
+		if(t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+		if(t0 > tmin) tmin = t0;
+		if(t1 < tmax) tmax = t1;
+		return tmin <= tmax;
+	}
+
+	/**
+	 * Get the traversal stack of the calling thread.
+	 */
+	static TraversalStack getTraversalStack() {
+		return traversalStacks.get();
+	}
+
+	/**
+	 * Growable stack of node indices shared by the traversals of a thread,
+	 * together with the number of node and primitive tests they performed.
+	 */
+	static class TraversalStack {
+		int[] nodes = new int[64];
+		int size = 0;
+		long nodeTests = 0;
+		long primitiveTests = 0;
+
+		/**
+		 * Make room for n more entries above size and return the storage.
+		 */
+		int[] reserve(int n) {
+			if(size + n > nodes.length) {
+				nodes = Arrays.copyOf(nodes, Math.max(2*nodes.length, size + n));
+			}
+			return nodes;
+		}
+	}
+}
@@ -0,0 +1,607 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds the nodes of a BVH from the bounds of its primitives.
+ * 
+ * Three builders trade build time against traversal speed (see BVH.QUALITY):
+ * LBVH sorts the primitives along the Morton curve of their centroids and splits
+ * nodes on the Morton code bits, without evaluating any cost; BINNED evaluates
+ * the surface area heuristic (SAH) at the boundaries of BINS bins per axis and
+ * partitions the primitives in place, together with a copy of their bounds so
+ * that it reads memory in order; SAH evaluates it between every pair of
+ * primitives along each axis, sorting them, and builds the best trees.
+ * 
+ * Primitives are referenced by index throughout. The subtrees of nodes with at
+ * least PARALLEL_THRESHOLD primitives are built in parallel by fork/join tasks:
+ * each subtree of k primitives owns the range of 2k-1 nodes following its root
+ * and a disjoint range of the primitive indices, so tasks share nothing. Nodes
+ * are then compacted in the depth-first layout the BVH traverses.
+ * Tasks run in the fork/join pool of the calling thread, so that builds started
+ * by a render or batch pool stay within its threads, and otherwise on a pool of
+ * BVH.THREADS threads, or on the calling thread alone if BVH.THREADS is 1.
+ * 
+ * @author fabio
+ */
+class BVHBuilder {
+	/**
+	 * Number of primitives above which subtrees are built in parallel.
+	 */
+	static final int			PARALLEL_THRESHOLD = 4096;
+	/**
+	 * Number of bins per axis of the binned builder.
+	 */
+	static final int			BINS = 16;
+	/**
+	 * Bits per axis of the Morton codes of the LBVH builder.
+	 */
+	static final int			MORTON_BITS = 10;
+	
+	private BVH					bvh;
+	private int					quality;
+	private int					numPrimitives;
+	private double[]			primitiveBounds;
+	private double[]			centroids;
+	private int[]				primitives;
+	/**
+	 * SAH sweep areas (SAH), Morton codes in primitives order (LBVH), or
+	 * primitive bounds in primitives order (BINNED).
+	 */
+	private double[]			rightAreas;
+	private int[]				codes;
+	private double[]			sortedBounds;
+	/**
+	 * Nodes in the reserved range layout.
+	 */
+	private double[]			nodeBounds;
+	private int[]				nodeOffset;
+	private int[]				nodeCount;
+	private int[]				nodeAxis;
+	
+	/**
+	 * Pool for builds called from outside a fork/join pool, created on demand.
+	 */
+	private static ForkJoinPool	pool;
+	
+	BVHBuilder(BVH nBvh, double[] nPrimitiveBounds, int nNumPrimitives, int nQuality) {
+		bvh = nBvh;
+		primitiveBounds = nPrimitiveBounds;
+		numPrimitives = nNumPrimitives;
+		quality = nQuality;
+	}
+	
+	/**
+	 * Build the nodes and store them in the BVH.
+	 */
+	void build() {
+		int n = numPrimitives;
+		primitives = new int[n];
+		for(int i = 0; i < n; i ++) {
+			primitives[i] = i;
+		}
+		bvh.primitives = primitives;
+		bvh.numNodes = 0;
+		bvh.maxDepth = 0;
+		if(n == 0) {
+			bvh.nodeBounds = new double[6];
+			bvh.nodeOffset = new int[1];
+			bvh.nodeCount = new int[1];
+			bvh.nodeAxis = new int[1];
+			return;
+		}
+		
+		centroids = new double[3*n];
+		new ParallelLoop() {
+			void run(int lo, int hi) {
+				for(int i = lo; i < hi; i ++) {
+					for(int a = 0; a < 3; a ++) {
+						centroids[3*i+a] = 0.5 * (primitiveBounds[6*i+a] + primitiveBounds[6*i+3+a]);
+					}
+				}
+			}
+		}.invoke(n);
+		if(quality == BVH.LBVH) {
+			sortMorton();
+		} else if(quality == BVH.SAH) {
+			rightAreas = new double[n];
+		} else {
+			sortedBounds = Arrays.copyOf(primitiveBounds, 6*n);
+		}
+		
+		int maxNodes = 2*n-1;
+		nodeBounds = new double[6*maxNodes];
+		nodeOffset = new int[maxNodes];
+		nodeCount = new int[maxNodes];
+		nodeAxis = new int[maxNodes];
+		if(n >= PARALLEL_THRESHOLD && isParallel()) {
+			runTask(new BuildTask(0, 0, n));
+		} else {
+			buildSubtree(0, 0, n);
+		}
+		
+		// compact the nodes in depth-first order
+		bvh.nodeBounds = new double[6*maxNodes];
+		bvh.nodeOffset = new int[maxNodes];
+		bvh.nodeCount = new int[maxNodes];
+		bvh.nodeAxis = new int[maxNodes];
+		compact(0, 0);
+		int numNodes = bvh.numNodes;
+		bvh.nodeBounds = Arrays.copyOf(bvh.nodeBounds, 6*numNodes);
+		bvh.nodeOffset = Arrays.copyOf(bvh.nodeOffset, numNodes);
+		bvh.nodeCount = Arrays.copyOf(bvh.nodeCount, numNodes);
+		bvh.nodeAxis = Arrays.copyOf(bvh.nodeAxis, numNodes);
+	}
+	
+	/**
+	 * Build the subtree for the primitives in [start,end) rooted at node.
+	 */
+	private void buildSubtree(int node, int start, int end) {
+		int split;
+		if(quality == BVH.LBVH) {
+			split = splitMorton(node, start, end);
+		} else if(quality == BVH.BINNED) {
+			split = splitBinned(node, start, end);
+		} else {
+			split = splitSweep(node, start, end);
+		}
+		if(split < 0) {
+			nodeOffset[node] = start;
+			nodeCount[node] = end - start;
+			nodeAxis[node] = 0;
+			return;
+		}
+		
+		// the left subtree takes the 2k-1 nodes after node
+		int left = node + 1;
+		int right = node + 2*(split - start);
+		nodeCount[node] = 0;
+		nodeOffset[node] = right;
+		if(end - start >= PARALLEL_THRESHOLD && ForkJoinTask.inForkJoinPool()) {
+			ForkJoinTask.invokeAll(new BuildTask(left, start, split), new BuildTask(right, split, end));
+		} else {
+			buildSubtree(left, start, split);
+			buildSubtree(right, split, end);
+		}
+	}
+	
+	private class BuildTask extends RecursiveAction {
+		private static final long serialVersionUID = -6011622425310896146L;
+		private int node;
+		private int start;
+		private int end;
+		
+		BuildTask(int nNode, int nStart, int nEnd) {
+			node = nNode;
+			start = nStart;
+			end = nEnd;
+		}
+		
+		protected void compute() {
+			buildSubtree(node, start, end);
+		}
+	}
+	
+	/**
+	 * Copy the subtree at node to the BVH in depth-first order and return
+	 * the index of its copy.
+	 */
+	private int compact(int node, int depth) {
+		int copy = bvh.numNodes ++;
+		bvh.maxDepth = Math.max(bvh.maxDepth, depth);
+		System.arraycopy(nodeBounds, 6*node, bvh.nodeBounds, 6*copy, 6);
+		bvh.nodeCount[copy] = nodeCount[node];
+		bvh.nodeAxis[copy] = nodeAxis[node];
+		if(nodeCount[node] > 0) {
+			bvh.nodeOffset[copy] = nodeOffset[node];
+		} else {
+			compact(node + 1, depth + 1);
+			bvh.nodeOffset[copy] = compact(nodeOffset[node], depth + 1);
+		}
+		return copy;
+	}
+	
+	/**
+	 * Full SAH split: sweep the primitives sorted along each axis.
+	 * Returns the split position, or -1 to make a leaf.
+	 */
+	private int splitSweep(int node, int start, int end) {
+		int b = 6*node;
+		computeBounds(nodeBounds, b, start, end);
+		int count = end - start;
+		double area = surfaceArea(nodeBounds, b);
+		double bestCost = Double.MAX_VALUE;
+		int bestAxis = -1;
+		int bestSplit = -1;
+		if(count > 1) {
+			double[] box = new double[6];
+			for(int axis = 0; axis < 3; axis ++) {
+				sort(start, end, axis);
+				resetBounds(box, 0);
+				for(int i = end-1; i > start; i --) {
+					growBounds(box, 0, primitiveBounds, 6*primitives[i]);
+					rightAreas[i] = surfaceArea(box, 0);
+				}
+				resetBounds(box, 0);
+				for(int i = start; i < end-1; i ++) {
+					growBounds(box, 0, primitiveBounds, 6*primitives[i]);
+					double cost = BVH.TRAVERSAL_COST * area +
+						surfaceArea(box, 0) * (i-start+1) + rightAreas[i+1] * (end-i-1);
+					if(cost < bestCost) {
+						bestCost = cost;
+						bestAxis = axis;
+						bestSplit = i+1;
+					}
+				}
+			}
+		}
+		
+		// make a leaf if splitting does not pay off
+		if(count == 1 || (count <= BVH.MAX_LEAF_SIZE && count * area <= bestCost)) {
+			return -1;
+		}
+		if(bestAxis != 2) {
+			sort(start, end, bestAxis);
+		}
+		nodeAxis[node] = bestAxis;
+		return bestSplit;
+	}
+	
+	/**
+	 * Binned SAH split: bin the primitive centroids along the axis of largest
+	 * centroid extent and evaluate the cost at the bin boundaries.
+	 * Returns the split position, or -1 to make a leaf.
+	 */
+	private int splitBinned(int node, int start, int end) {
+		int b = 6*node;
+		int count = end - start;
+		
+		// node bounds, and centroid bounds which the bins subdivide
+		double[] centroidBounds = new double[6];
+		resetBounds(centroidBounds, 0);
+		resetBounds(nodeBounds, b);
+		for(int i = start; i < end; i ++) {
+			growBounds(nodeBounds, b, sortedBounds, 6*i);
+			for(int a = 0; a < 3; a ++) {
+				double c = 0.5 * (sortedBounds[6*i+a] + sortedBounds[6*i+3+a]);
+				if(c < centroidBounds[a]) centroidBounds[a] = c;
+				if(c > centroidBounds[3+a]) centroidBounds[3+a] = c;
+			}
+		}
+		if(count == 1) {
+			return -1;
+		}
+		double area = surfaceArea(nodeBounds, b);
+		
+		int axis = 0;
+		for(int a = 1; a < 3; a ++) {
+			if(centroidBounds[3+a] - centroidBounds[a] > centroidBounds[3+axis] - centroidBounds[axis]) {
+				axis = a;
+			}
+		}
+		double min = centroidBounds[axis];
+		double extent = centroidBounds[3+axis] - min;
+		if(extent <= 0) {
+			if(count <= BVH.MAX_LEAF_SIZE) {
+				return -1;
+			}
+			// all centroids coincide: split in the middle
+			nodeAxis[node] = 0;
+			return (start + end) >>> 1;
+		}
+		double scale = BINS / extent;
+		
+		int[] binCounts = new int[BINS];
+		double[] binBounds = new double[6*BINS];
+		for(int k = 0; k < BINS; k ++) {
+			resetBounds(binBounds, 6*k);
+		}
+		for(int i = start; i < end; i ++) {
+			int k = bin(i, axis, min, scale);
+			binCounts[k] ++;
+			growBounds(binBounds, 6*k, sortedBounds, 6*i);
+		}
+		
+		double[] box = new double[6];
+		double[] rightAreas = new double[BINS];
+		resetBounds(box, 0);
+		for(int k = BINS-1; k > 0; k --) {
+			growBounds(box, 0, binBounds, 6*k);
+			rightAreas[k] = surfaceArea(box, 0);
+		}
+		double bestCost = Double.MAX_VALUE;
+		int bestBin = -1;
+		resetBounds(box, 0);
+		int leftCount = 0;
+		for(int k = 0; k < BINS-1; k ++) {
+			growBounds(box, 0, binBounds, 6*k);
+			leftCount += binCounts[k];
+			int rightCount = count - leftCount;
+			if(leftCount == 0 || rightCount == 0) {
+				continue;
+			}
+			double cost = BVH.TRAVERSAL_COST * area +
+				surfaceArea(box, 0) * leftCount + rightAreas[k+1] * rightCount;
+			if(cost < bestCost) {
+				bestCost = cost;
+				bestBin = k+1;
+			}
+		}
+		
+		if(count <= BVH.MAX_LEAF_SIZE && count * area <= bestCost) {
+			return -1;
+		}
+		
+		// partition the primitives and their bounds by bin
+		int i = start, j = end-1;
+		while(i <= j) {
+			if(bin(i, axis, min, scale) < bestBin) {
+				i ++;
+			} else {
+				int t = primitives[i]; primitives[i] = primitives[j]; primitives[j] = t;
+				for(int a = 0; a < 6; a ++) {
+					double v = sortedBounds[6*i+a];
+					sortedBounds[6*i+a] = sortedBounds[6*j+a];
+					sortedBounds[6*j+a] = v;
+				}
+				j --;
+			}
+		}
+		nodeAxis[node] = axis;
+		return i;
+	}
+	
+	/**
+	 * Bin along axis of the centroid of the primitive at position i.
+	 */
+	private int bin(int i, int axis, double min, double scale) {
+		double c = 0.5 * (sortedBounds[6*i+axis] + sortedBounds[6*i+3+axis]);
+		int k = (int)((c - min) * scale);
+		return Math.min(Math.max(k, 0), BINS-1);
+	}
+	
+	/**
+	 * LBVH split: split at the highest Morton code bit that differs in the node.
+	 * Returns the split position, or -1 to make a leaf.
+	 */
+	private int splitMorton(int node, int start, int end) {
+		computeBounds(nodeBounds, 6*node, start, end);
+		int count = end - start;
+		if(count <= BVH.MAX_LEAF_SIZE) {
+			return -1;
+		}
+		int first = codes[start];
+		int last = codes[end-1];
+		if(first == last) {
+			nodeAxis[node] = 0;
+			return (start + end) >>> 1;
+		}
+		// codes are sorted and share the bits above bit, so the ones with bit
+		// set follow the others
+		int bit = 31 - Integer.numberOfLeadingZeros(first ^ last);
+		int lo = start, hi = end-1;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(((codes[mid] >>> bit) & 1) != 0) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		// bits are interleaved as x, y, z from the most significant
+		nodeAxis[node] = 2 - bit % 3;
+		return lo;
+	}
+	
+	/**
+	 * Sort the primitives along the Morton curve of their centroids in the
+	 * bounds of all the centroids, and store the sorted codes.
+	 */
+	private void sortMorton() {
+		final int n = numPrimitives;
+		final double[] bounds = new double[6];
+		resetBounds(bounds, 0);
+		for(int i = 0; i < n; i ++) {
+			for(int a = 0; a < 3; a ++) {
+				bounds[a] = Math.min(bounds[a], centroids[3*i+a]);
+				bounds[3+a] = Math.max(bounds[3+a], centroids[3*i+a]);
+			}
+		}
+		
+		// code in the high half and primitive in the low half of a key, so that
+		// sorting the keys sorts the primitives
+		final long[] keys = new long[n];
+		final int cells = 1 << MORTON_BITS;
+		new ParallelLoop() {
+			void run(int lo, int hi) {
+				for(int i = lo; i < hi; i ++) {
+					int code = 0;
+					for(int a = 0; a < 3; a ++) {
+						double extent = bounds[3+a] - bounds[a];
+						int cell = extent > 0 ? (int)(cells * (centroids[3*i+a] - bounds[a]) / extent) : 0;
+						code |= expandBits(Math.min(cell, cells-1)) << (2 - a);
+					}
+					keys[i] = ((long)code << 32) | i;
+				}
+			}
+		}.invoke(n);
+		Arrays.parallelSort(keys);
+		
+		codes = new int[n];
+		for(int i = 0; i < n; i ++) {
+			primitives[i] = (int)keys[i];
+			codes[i] = (int)(keys[i] >>> 32);
+		}
+	}
+	
+	/**
+	 * Spread the low 10 bits of v so that two zero bits follow each of them.
+	 */
+	private static int expandBits(int v) {
+		v = (v * 0x00010001) & 0xFF0000FF;
+		v = (v * 0x00000101) & 0x0F00F00F;
+		v = (v * 0x00000011) & 0xC30C30C3;
+		v = (v * 0x00000005) & 0x49249249;
+		return v;
+	}
+	
+	/**
+	 * Set the flattened box at offset b to the bounds of the primitives in [start,end).
+	 */
+	private void computeBounds(double[] box, int b, int start, int end) {
+		for(int a = 0; a < 3; a ++) {
+			box[b+a] = Double.MAX_VALUE;
+			box[b+3+a] = -Double.MAX_VALUE;
+		}
+		for(int i = start; i < end; i ++) {
+			growBounds(box, b, primitiveBounds, 6*primitives[i]);
+		}
+	}
+	
+	/**
+	 * Sort the primitives in [lo,hi) by their centroid along the given axis.
+	 */
+	private void sort(int lo, int hi, int axis) {
+		while(hi - lo > 16) {
+			int mid = (lo + hi) >>> 1;
+			double a = centroids[3*primitives[lo]+axis];
+			double b = centroids[3*primitives[mid]+axis];
+			double c = centroids[3*primitives[hi-1]+axis];
+			double pivot = Math.max(Math.min(a,b), Math.min(Math.max(a,b),c));
+			int i = lo, j = hi-1;
+			while(i <= j) {
+				while(centroids[3*primitives[i]+axis] < pivot) i ++;
+				while(centroids[3*primitives[j]+axis] > pivot) j --;
+				if(i <= j) {
+					int t = primitives[i]; primitives[i] = primitives[j]; primitives[j] = t;
+					i ++;
+					j --;
+				}
+			}
+			// recurse on the smaller half, loop on the larger one
+			if(j - lo < hi - i) {
+				sort(lo, j+1, axis);
+				lo = i;
+			} else {
+				sort(i, hi, axis);
+				hi = j+1;
+			}
+		}
+		for(int i = lo+1; i < hi; i ++) {
+			int p = primitives[i];
+			double key = centroids[3*p+axis];
+			int j = i-1;
+			while(j >= lo && centroids[3*primitives[j]+axis] > key) {
+				primitives[j+1] = primitives[j];
+				j --;
+			}
+			primitives[j+1] = p;
+		}
+	}
+	
+	/**
+	 * True if build tasks may run in parallel: when called from a fork/join
+	 * pool, or when BVH.THREADS allows it.
+	 */
+	static boolean isParallel() {
+		return ForkJoinTask.inForkJoinPool() || BVH.THREADS > 1;
+	}
+	
+	/**
+	 * Run a task in the fork/join pool of the calling thread if there is one,
+	 * and on the pool of BVH.THREADS threads otherwise.
+	 */
+	static void runTask(ForkJoinTask<?> task) {
+		if(ForkJoinTask.inForkJoinPool()) {
+			task.invoke();
+		} else {
+			getPool().invoke(task);
+		}
+	}
+	
+	/**
+	 * Get the build pool, creating it if BVH.THREADS changed.
+	 */
+	private static synchronized ForkJoinPool getPool() {
+		if(pool == null || pool.getParallelism() != BVH.THREADS) {
+			if(pool != null) {
+				pool.shutdown();
+			}
+			pool = new ForkJoinPool(BVH.THREADS);
+		}
+		return pool;
+	}
+	
+	/**
+	 * Loop over [0,n) split in ranges run as build tasks (see runTask), or on
+	 * the calling thread if n is small or builds are not parallel.
+	 */
+	static abstract class ParallelLoop {
+		/**
+		 * Run the iterations [lo,hi).
+		 */
+		abstract void run(int lo, int hi);
+		
+		void invoke(int n) {
+			if(n < PARALLEL_THRESHOLD || !isParallel()) {
+				run(0, n);
+			} else {
+				runTask(new RangeTask(0, n));
+			}
+		}
+		
+		private class RangeTask extends RecursiveAction {
+			private static final long serialVersionUID = 2931842719373120547L;
+			private int lo;
+			private int hi;
+			
+			RangeTask(int nLo, int nHi) {
+				lo = nLo;
+				hi = nHi;
+			}
+			
+			protected void compute() {
+				if(hi - lo <= PARALLEL_THRESHOLD) {
+					run(lo, hi);
+				} else {
+					int mid = (lo + hi) >>> 1;
+					invokeAll(new RangeTask(lo, mid), new RangeTask(mid, hi));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Set the flattened box at offset b to empty.
+	 */
+	private static void resetBounds(double[] box, int b) {
+		for(int a = 0; a < 3; a ++) {
+			box[b+a] = Double.MAX_VALUE;
+			box[b+3+a] = -Double.MAX_VALUE;
+		}
+	}
+	
+	/**
+	 * Grow the flattened box at offset b to contain the flattened box at offset p.
+	 */
+	private static void growBounds(double[] box, int b, double[] bounds, int p) {
+		for(int a = 0; a < 3; a ++) {
+			if(bounds[p+a] < box[b+a]) box[b+a] = bounds[p+a];
+			if(bounds[p+3+a] > box[b+3+a]) box[b+3+a] = bounds[p+3+a];
+		}
+	}
+	
+	/**
+	 * Surface area of the flattened box at offset b.
+	 */
+	private static double surfaceArea(double[] box, int b) {
+		double dx = box[b+3] - box[b+0];
+		double dy = box[b+4] - box[b+1];
+		double dz = box[b+5] - box[b+2];
+		if(dx < 0 || dy < 0 || dz < 0) {
+			return 0;
+		}
+		return 2 * (dx*dy + dy*dz + dz*dx);
+	}
+}
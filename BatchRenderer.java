@@ -0,0 +1,193 @@
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders many scene files as a pipeline: scenes are parsed and their images
+ * saved on a shared pool while the previous scenes render on the same pool, so
+ * that all threads stay busy across files. The BVH builds of a parse and the
+ * compression of a save run within the same pool (see BVHBuilder and PngWriter),
+ * so threads bounds the whole batch. At most maxScenesInFlight scenes are
+ * between the start of their parse and the end of their save, which bounds memory.
+ * A scene that fails to parse or save is reported and skipped.
+ * 
+ * @author fabio
+ */
+public class BatchRenderer {
+	/**
+	 * Number of threads of the shared pool.
+	 */
+	public int					threads;
+	/**
+	 * Maximum number of scenes loaded at the same time.
+	 */
+	public int					maxScenesInFlight;
+	/**
+	 * Render settings, as in RayTracer.
+	 */
+	public int					tileSize;
+	public int					pixelOrder;
+	public int					tileOrder;
+	public int					packetSize;
+	public boolean				wavefront;
+	public boolean				offHeapImages;
+	/**
+	 * Max samples for adaptive supersampling, or 0 for uniform supersampling.
+	 */
+	public int					adaptiveSamples;
+	/**
+	 * Scene cache, or null.
+	 */
+	public SceneCache			cache;
+	/**
+	 * Parse with the DOM parser instead of the streaming one.
+	 */
+	public boolean				dom;
+	
+	public BatchRenderer() {
+		threads = Runtime.getRuntime().availableProcessors();
+		maxScenesInFlight = 3;
+		tileSize = 32;
+		pixelOrder = PixelOrder.HILBERT;
+		tileOrder = PixelOrder.HILBERT;
+		packetSize = 1;
+		wavefront = false;
+		offHeapImages = false;
+		adaptiveSamples = 0;
+		cache = null;
+		dom = false;
+	}
+	
+	/**
+	 * A scene between the parse and save stages. Scene is null if it failed to parse.
+	 */
+	private static class Job {
+		String				filename;
+		Scene				scene;
+		long				parseTime;
+		
+		Job(String nFilename) {
+			filename = nFilename;
+		}
+	}
+	
+	/**
+	 * Render all files, returning when all images are saved.
+	 * Scenes render one at a time on the calling thread, in the order their
+	 * parse completes.
+	 */
+	public void render(final List<String> filenames) throws InterruptedException {
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		final Semaphore inFlight = new Semaphore(maxScenesInFlight);
+		final BlockingQueue<Job> parsed = new ArrayBlockingQueue<Job>(maxScenesInFlight);
+		
+		// feeder: start the parse of each file as soon as a slot is free
+		Thread feeder = new Thread("BatchRenderer") {
+			public void run() {
+				try {
+					for(String filename : filenames) {
+						inFlight.acquire();
+						final Job job = new Job(filename);
+						pool.execute(new Runnable() {
+							public void run() {
+								parse(job);
+								parsed.add(job);
+							}
+						});
+					}
+				} catch(InterruptedException e) {
+					return;
+				}
+			}
+		};
+		feeder.setDaemon(true);
+		feeder.start();
+		
+		try {
+			for(int i = 0; i < filenames.size(); i++) {
+				final Job job = parsed.take();
+				if(job.scene == null) {
+					inFlight.release();
+					continue;
+				}
+				final RayTracer rayTracer = createRayTracer(job, pool);
+				System.out.println("Rendering: " + job.filename);
+				final ColorImage[] images = renderImages(rayTracer);
+				job.scene = null;
+				pool.execute(new Runnable() {
+					public void run() {
+						save(job.filename, images, rayTracer.statistics);
+						inFlight.release();
+					}
+				});
+			}
+			inFlight.acquire(maxScenesInFlight);
+		} finally {
+			feeder.interrupt();
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		}
+	}
+	
+	private void parse(Job job) {
+		System.out.println("Reading scene: " + job.filename);
+		long start = System.nanoTime();
+		try {
+			job.scene = Main.readScene(job.filename, cache, dom);
+			job.parseTime = System.nanoTime() - start;
+		} catch(Throwable e) {
+			System.out.println("Problem parsing file: " + job.filename);
+			System.out.println(e);
+		}
+	}
+	
+	private RayTracer createRayTracer(Job job, ForkJoinPool pool) {
+		RayTracer rayTracer = new RayTracer(job.scene);
+		if(threads > 1) {
+			rayTracer.setPool(pool);
+		} else {
+			rayTracer.threads = 1;
+		}
+		rayTracer.tileSize = tileSize;
+		rayTracer.pixelOrder = pixelOrder;
+		rayTracer.tileOrder = tileOrder;
+		rayTracer.packetSize = packetSize;
+		rayTracer.wavefront = wavefront;
+		rayTracer.offHeapImages = offHeapImages;
+		rayTracer.statistics.parseTime = job.parseTime - job.scene.buildTime;
+		rayTracer.statistics.buildTime = job.scene.buildTime;
+		return rayTracer;
+	}
+	
+	private ColorImage[] renderImages(RayTracer rayTracer) {
+		if(adaptiveSamples > 0) {
+			ColorImage image = rayTracer.render();
+			return new ColorImage[] { image, rayTracer.renderAdaptive(adaptiveSamples, image) };
+		} else {
+			return rayTracer.renderWithSuperSampled(3);
+		}
+	}
+	
+	private void save(String filename, ColorImage[] images, RenderStatistics statistics) {
+		long start = System.nanoTime();
+		String[] names = { filename + ".png", filename + "supersampled.png" };
+		for(int i = 0; i < names.length; i++) {
+			System.out.println("Saving image: " + names[i]);
+			RenderPhaseEvent event = RenderPhaseEvent.start("save", names[i]);
+			try {
+				FileFormat.saveImage(names[i], images[i]);
+				event.commit();
+			} catch(Throwable e) {
+				System.out.println("Problem saving image: " + names[i]);
+				System.out.println(e);
+				return;
+			}
+		}
+		statistics.saveTime = System.nanoTime() - start;
+		System.out.println("Statistics for " + filename + ":" + 
+				System.lineSeparator() + statistics);
+	}
+}
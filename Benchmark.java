@@ -0,0 +1,830 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+/**
+ * Micro and macro benchmarks for the raytracer hot paths.
+ * 
+ * Each benchmark is run for a warmup period, so that the JIT compiles the code, and
+ * then measured over several rounds. Results report operations (rays or samples)
+ * per second and bytes allocated per operation on the measuring thread.
+ * Scenes are generated procedurally with a fixed seed, in increasing sizes.
+ * 
+ * Results can be written to a file and compared to a previous run:
+ *   java Benchmark [-quick] [-output results.txt] [-baseline previous.txt] [filter]
+ * Only the benchmarks whose name contains filter are run.
+ * 
+ * With -check, the fast paths are instead checked against the reference code
+ * they replace, and the exit status is the number of failed checks.
+ * 
+ * @author fabio
+ */
+public class Benchmark {
+	/**
+	 * A benchmark case. run performs a batch of operations and returns how many.
+	 */
+	static abstract class Case {
+		String					name;
+		
+		Case(String nName) {
+			name = nName;
+		}
+		
+		abstract long run();
+	}
+	
+	/**
+	 * Sink for results, so that the JIT cannot remove the benchmarked code.
+	 */
+	static volatile double		sink;
+	
+	/**
+	 * Warmup and measurement time per round in milliseconds.
+	 */
+	static long					warmupTime = 2000;
+	static long					measureTime = 1000;
+	static int					rounds = 5;
+	
+	/**
+	 * Results of this run (name to operations per second).
+	 */
+	static HashMap<String,Double> results = new LinkedHashMap<String,Double>();
+	
+	/**
+	 * Results of the baseline run.
+	 */
+	static HashMap<String,Double> baseline = new HashMap<String,Double>();
+	
+	/**
+	 * Main entry point.
+	 */
+	public static void main(String args[]) throws Exception {
+		String output = null;
+		String filter = "";
+		boolean check = false;
+		for(int i = 0; i < args.length; i ++) {
+			if(args[i].equals("-check")) {
+				check = true;
+			} else if(args[i].equals("-quick")) {
+				warmupTime = 500;
+				measureTime = 250;
+				rounds = 3;
+			} else if(args[i].equals("-output") && i + 1 < args.length) {
+				output = args[++i];
+			} else if(args[i].equals("-baseline") && i + 1 < args.length) {
+				readResults(args[++i], baseline);
+			} else {
+				filter = args[i];
+			}
+		}
+		
+		if(check) {
+			System.exit(runChecks());
+		}
+		
+		System.out.println(String.format("%-40s %14s %12s %10s", 
+				"benchmark", "ops/s", "B/op", "baseline"));
+		for(Case c : createCases()) {
+			if(c.name.contains(filter)) {
+				measure(c);
+			}
+		}
+		
+		if(output != null) {
+			writeResults(output);
+		}
+	}
+	
+	/**
+	 * Create all benchmark cases.
+	 */
+	static Case[] createCases() {
+		ArrayList<Case> cases = new ArrayList<Case>();
+		
+		// primitives
+		final Scene single = createScene(1, 1, 64);
+		final Ray[] rays = createRays(single, 1024);
+		final Intersection intersection = new Intersection();
+		final Sphere sphere = (Sphere)single.surfaces[0];
+		final Triangle triangle = (Triangle)single.surfaces[1];
+		cases.add(new Case("Sphere.intersect") {
+			long run() {
+				int hits = 0;
+				for(int i = 0; i < rays.length; i ++) {
+					if(sphere.intersect(rays[i], intersection)) hits ++;
+				}
+				sink = hits;
+				return rays.length;
+			}
+		});
+		cases.add(new Case("Triangle.intersect") {
+			long run() {
+				int hits = 0;
+				for(int i = 0; i < rays.length; i ++) {
+					if(triangle.intersect(rays[i], intersection)) hits ++;
+				}
+				sink = hits;
+				return rays.length;
+			}
+		});
+		
+		// packet kernels on the same rays in packets of 8, vector ones if loaded
+		final RayPacket[] packets = createPackets(rays, 8);
+		final double[] box = new double[6];
+		sphere.computeBoundingBox().toArray(box, 0);
+		final double[] edges = triangleEdges(triangle), positions = triangleVertex(triangle);
+		final double nv0 = triangle.normal.dot(triangle.v0);
+		PacketKernels[] kernels = { new ScalarPacketKernels(), PacketKernels.loadVector() };
+		String[] kernelNames = { "scalar", "vector" };
+		for(int n = 0; n < kernels.length; n ++) {
+			if(kernels[n] == null) {
+				continue;
+			}
+			final PacketKernels kernel = kernels[n];
+			cases.add(new Case("PacketKernels.intersectBox(" + kernelNames[n] + ")") {
+				long run() {
+					int hits = 0;
+					for(int i = 0; i < packets.length; i ++) {
+						if(kernel.intersectBox(packets[i], box, 0)) hits ++;
+					}
+					sink = hits;
+					return rays.length;
+				}
+			});
+			cases.add(new Case("PacketKernels.intersectSphere(" + kernelNames[n] + ")") {
+				long run() {
+					int hits = 0;
+					for(int i = 0; i < packets.length; i ++) {
+						hits += Integer.bitCount(kernel.intersectSphere(packets[i],
+								sphere.position.x, sphere.position.y, sphere.position.z,
+								sphere.radius*sphere.radius));
+					}
+					sink = hits;
+					return rays.length;
+				}
+			});
+			cases.add(new Case("PacketKernels.intersectTriangle(" + kernelNames[n] + ")") {
+				long run() {
+					int hits = 0;
+					for(int i = 0; i < packets.length; i ++) {
+						hits += Integer.bitCount(kernel.intersectTriangle(packets[i],
+								triangle.normal, nv0, triangle.v0, triangle.v1, triangle.v2));
+					}
+					sink = hits;
+					return rays.length;
+				}
+			});
+			cases.add(new Case("PacketKernels.intersectMeshTriangle(" + kernelNames[n] + ")") {
+				long run() {
+					int hits = 0;
+					for(int i = 0; i < packets.length; i ++) {
+						hits += Integer.bitCount(kernel.intersectMeshTriangle(packets[i],
+								edges, 0, positions, 0));
+					}
+					sink = hits;
+					return rays.length;
+				}
+			});
+		}
+		
+		// camera and materials
+		final Camera camera = single.camera;
+		cases.add(new Case("Camera.generateRay") {
+			long run() {
+				double sum = 0;
+				for(int j = 0; j < 32; j ++) {
+					for(int i = 0; i < 32; i ++) {
+						Ray ray = camera.generateRay((i+0.5)/32, (j+0.5)/32);
+						sum += ray.direction.x;
+					}
+				}
+				sink = sum;
+				return 32*32;
+			}
+		});
+		final Ray cameraRay = new Ray();
+		cases.add(new Case("Camera.generateRay(inPlace)") {
+			long run() {
+				double sum = 0;
+				for(int j = 0; j < 32; j ++) {
+					for(int i = 0; i < 32; i ++) {
+						camera.generateRay((i+0.5)/32, (j+0.5)/32, cameraRay);
+						sum += cameraRay.direction.x;
+					}
+				}
+				sink = sum;
+				return 32*32;
+			}
+		});
+		cases.add(new Case("Camera.generateRay(table)") {
+			long run() {
+				double sum = 0;
+				for(int j = 0; j < 32; j ++) {
+					for(int i = 0; i < 32; i ++) {
+						camera.generateRay(i, j, 0, 0, 1, cameraRay);
+						sum += cameraRay.direction.x;
+					}
+				}
+				sink = sum;
+				return 32*32;
+			}
+		});
+		final Phong phong = new Phong();
+		phong.diffuse = new Color(0.5,0.5,0.5);
+		phong.specular = new Color(0.5,0.5,0.5);
+		phong.exponent = 20;
+		final Vec3 N = new Vec3(0,1,0);
+		final Vec3 L = new Vec3(1,1,0).normalize();
+		final Color color = new Color();
+		cases.add(new Case("Material.computeDirectLighting") {
+			long run() {
+				double sum = 0;
+				for(int i = 0; i < rays.length; i ++) {
+					phong.computeDirectLighting(N, L, rays[i].direction, color);
+					sum += color.r;
+				}
+				sink = sum;
+				return rays.length;
+			}
+		});
+		
+		// scene intersection and rendering for increasing scene sizes
+		int[] sizes = { 100, 1000, 10000, 100000 };
+		for(int s = 0; s < sizes.length; s ++) {
+			final Scene scene = createScene(sizes[s]/10, sizes[s], 64);
+			final Ray[] sceneRays = createRays(scene, 4096);
+			cases.add(new Case("Scene.intersect/" + sizes[s]) {
+				long run() {
+					int hits = 0;
+					for(int i = 0; i < sceneRays.length; i ++) {
+						if(scene.intersect(sceneRays[i], intersection)) hits ++;
+					}
+					sink = hits;
+					return sceneRays.length;
+				}
+			});
+			
+			// build and trace with each BVH build quality
+			final double[] bounds = new double[6*scene.surfaces.length];
+			for(int i = 0; i < scene.surfaces.length; i ++) {
+				scene.surfaces[i].computeBoundingBox().toArray(bounds, 6*i);
+			}
+			String[] qualities = { "lbvh", "binned", "sah" };
+			for(int q = 0; q < qualities.length; q ++) {
+				final int quality = q;
+				cases.add(new Case("BVH.build(" + qualities[q] + ")/" + sizes[s]) {
+					long run() {
+						sink = new BVH(bounds, scene.surfaces.length, quality).numNodes;
+						return scene.surfaces.length;
+					}
+				});
+				final Scene qualityScene = new Scene();
+				qualityScene.surfaces = scene.surfaces;
+				qualityScene.bvh = new BVH(bounds, scene.surfaces.length, quality);
+				cases.add(new Case("Scene.intersect(" + qualities[q] + ")/" + sizes[s]) {
+					long run() {
+						int hits = 0;
+						for(int i = 0; i < sceneRays.length; i ++) {
+							if(qualityScene.intersect(sceneRays[i], intersection)) hits ++;
+						}
+						sink = hits;
+						return sceneRays.length;
+					}
+				});
+			}
+			final BVH refitted = new BVH(bounds, scene.surfaces.length);
+			cases.add(new Case("BVH.refit/" + sizes[s]) {
+				long run() {
+					sink = refitted.refit(bounds) ? 1 : 0;
+					return scene.surfaces.length;
+				}
+			});
+			
+			if(sizes[s] > 10000) {
+				continue;
+			}
+			final RayTracer rayTracer = new RayTracer(scene);
+			rayTracer.threads = 1;
+			cases.add(new Case("RayTracer.render/" + sizes[s]) {
+				long run() {
+					sink = rayTracer.render().getColor(0,0).r;
+					return scene.camera.xResolution * scene.camera.yResolution;
+				}
+			});
+			cases.add(new Case("RayTracer.renderSuperSampled(3)/" + sizes[s]) {
+				long run() {
+					sink = rayTracer.renderSuperSampled(3).getColor(0,0).r;
+					return 9 * scene.camera.xResolution * scene.camera.yResolution;
+				}
+			});
+			final RayTracer wavefrontTracer = new RayTracer(scene);
+			wavefrontTracer.threads = 1;
+			wavefrontTracer.wavefront = true;
+			cases.add(new Case("RayTracer.render(wavefront)/" + sizes[s]) {
+				long run() {
+					sink = wavefrontTracer.render().getColor(0,0).r;
+					return scene.camera.xResolution * scene.camera.yResolution;
+				}
+			});
+			for(int p = 4; p <= RayPacket.MAX_SIZE; p *= 2) {
+				final RayTracer packetTracer = new RayTracer(scene);
+				packetTracer.threads = 1;
+				packetTracer.packetSize = p;
+				cases.add(new Case("RayTracer.render(packet " + p + ")/" + sizes[s]) {
+					long run() {
+						sink = packetTracer.render().getColor(0,0).r;
+						return scene.camera.xResolution * scene.camera.yResolution;
+					}
+				});
+			}
+		}
+		
+		// pixel orders on a scene whose hierarchy does not fit in the caches, so
+		// that consecutive rays find its nodes in cache only if close; the image
+		// is one tile, so that the order alone decides how close they are
+		final Scene orderScene = createScene(20000, 200000, 256);
+		for(int o = 0; o < PixelOrder.NAMES.length; o ++) {
+			final RayTracer orderTracer = new RayTracer(orderScene);
+			orderTracer.threads = 1;
+			orderTracer.tileSize = 256;
+			orderTracer.pixelOrder = o;
+			orderTracer.tileOrder = o;
+			cases.add(new Case("RayTracer.render(" + PixelOrder.NAMES[o] + ")/200000") {
+				long run() {
+					sink = orderTracer.render().getColor(0,0).r;
+					return orderScene.camera.xResolution * orderScene.camera.yResolution;
+				}
+			});
+		}
+		
+		return cases.toArray(new Case[cases.size()]);
+	}
+	
+	/**
+	 * Run a benchmark and print its results.
+	 */
+	static void measure(Case c) {
+		// warmup
+		long start = System.nanoTime();
+		while(System.nanoTime() - start < warmupTime * 1000000) {
+			c.run();
+		}
+		
+		// measure
+		double best = 0;
+		double bytesPerOp = Double.MAX_VALUE;
+		for(int r = 0; r < rounds; r ++) {
+			long ops = 0;
+			long bytes = allocatedBytes();
+			start = System.nanoTime();
+			long elapsed = 0;
+			while(elapsed < measureTime * 1000000) {
+				ops += c.run();
+				elapsed = System.nanoTime() - start;
+			}
+			bytes = allocatedBytes() - bytes;
+			best = Math.max(best, ops / (elapsed * 1e-9));
+			bytesPerOp = Math.min(bytesPerOp, (double)bytes / ops);
+		}
+		
+		results.put(c.name, best);
+		String change = "";
+		if(baseline.containsKey(c.name)) {
+			change = String.format("%+9.1f%%", 100 * (best / baseline.get(c.name) - 1));
+		}
+		System.out.println(String.format("%-40s %14.0f %12.1f %10s", 
+				c.name, best, bytesPerOp, change));
+	}
+	
+	/**
+	 * Bytes allocated so far by the current thread, or 0 if not supported by the JVM.
+	 */
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(
+					Thread.currentThread().getId());
+		}
+		return 0;
+	}
+	
+	/**
+	 * Create a scene with the given number of spheres and triangles scattered in
+	 * front of the camera, over a ground plane lit by two point lights.
+	 */
+	static Scene createScene(int numSpheres, int numTriangles, int resolution) {
+		Random random = new Random(1);
+		Scene scene = new Scene();
+		
+		scene.camera.origin = new Vec3(0,1,6);
+		scene.camera.z = new Vec3(0,0,1);
+		scene.camera.y = new Vec3(0,1,0);
+		scene.camera.yfov = 30;
+		scene.camera.xResolution = resolution;
+		scene.camera.yResolution = resolution;
+		scene.camera.initFromParser();
+		
+		PointLight key = new PointLight();
+		key.position = new Vec3(3,5,6);
+		key.intensity = new Color(0.8,0.8,0.8);
+		PointLight fill = new PointLight();
+		fill.position = new Vec3(-4,3,2);
+		fill.intensity = new Color(0.4,0.4,0.5);
+		scene.lights = new Light[] { key, fill };
+		
+		Lambert lambert = new Lambert();
+		lambert.diffuse = new Color(0.6,0.6,0.6);
+		Phong phong = new Phong();
+		phong.diffuse = new Color(0.1,0.5,0.1);
+		phong.specular = new Color(0.5,0.5,0.5);
+		phong.exponent = 50;
+		ShinyPhong shiny = new ShinyPhong();
+		shiny.diffuse = new Color(0.5,0.1,0.1);
+		shiny.specular = new Color(0.5,0.5,0.5);
+		shiny.exponent = 20;
+		shiny.reflection = new Color(0.3,0.3,0.3);
+		Material[] materials = { lambert, phong, shiny };
+		
+		// objects in a box of size proportional to the cube root of their number
+		double extent = 2 * Math.cbrt(numSpheres + numTriangles);
+		double size = 1.5 / Math.cbrt(numSpheres + numTriangles);
+		Surface[] surfaces = new Surface[numSpheres + numTriangles + 2];
+		for(int i = 0; i < numSpheres; i ++) {
+			Sphere sphere = new Sphere();
+			sphere.position = randomPoint(random, extent);
+			sphere.radius = size * (0.5 + random.nextDouble());
+			sphere.material = materials[random.nextInt(3)];
+			surfaces[i] = sphere;
+		}
+		for(int i = 0; i < numTriangles; i ++) {
+			Triangle triangle = new Triangle();
+			Vec3 p = randomPoint(random, extent);
+			triangle.v0 = p.add(randomPoint(random, size));
+			triangle.v1 = p.add(randomPoint(random, size));
+			triangle.v2 = p.add(randomPoint(random, size));
+			triangle.material = materials[random.nextInt(3)];
+			triangle.initFromParser();
+			surfaces[numSpheres + i] = triangle;
+		}
+		surfaces[surfaces.length-2] = groundTriangle(new Vec3(-50,-1,-50), new Vec3(-50,-1,50), new Vec3(50,-1,50), lambert);
+		surfaces[surfaces.length-1] = groundTriangle(new Vec3(-50,-1,-50), new Vec3(50,-1,50), new Vec3(50,-1,-50), lambert);
+		scene.surfaces = surfaces;
+		scene.buildAccelerationStructure();
+		
+		return scene;
+	}
+	
+	/**
+	 * Create camera rays through random image locations.
+	 */
+	static Ray[] createRays(Scene scene, int n) {
+		Random random = new Random(2);
+		Ray[] rays = new Ray[n];
+		for(int i = 0; i < n; i ++) {
+			rays[i] = scene.camera.generateRay(random.nextDouble(), random.nextDouble());
+		}
+		return rays;
+	}
+	
+	/**
+	 * Group the rays into packets of the given size, the last one possibly
+	 * partial, ready for tracing.
+	 */
+	static RayPacket[] createPackets(Ray[] rays, int size) {
+		RayPacket[] packets = new RayPacket[(rays.length + size - 1) / size];
+		for(int i = 0; i < rays.length; i ++) {
+			if(i % size == 0) {
+				packets[i / size] = new RayPacket(size);
+			}
+			packets[i / size].add(rays[i]);
+		}
+		for(RayPacket packet : packets) {
+			packet.clearHits();
+		}
+		return packets;
+	}
+	
+	/**
+	 * Edges v1 - v0 and v2 - v0 of a triangle, laid out as in TriangleMesh.
+	 */
+	private static double[] triangleEdges(Triangle triangle) {
+		Vec3 e1 = triangle.v1.sub(triangle.v0), e2 = triangle.v2.sub(triangle.v0);
+		return new double[] { e1.x, e1.y, e1.z, e2.x, e2.y, e2.z };
+	}
+	
+	private static double[] triangleVertex(Triangle triangle) {
+		return new double[] { triangle.v0.x, triangle.v0.y, triangle.v0.z };
+	}
+	
+	private static Vec3 randomPoint(Random random, double extent) {
+		return new Vec3(extent * (random.nextDouble() - 0.5),
+						extent * (random.nextDouble() - 0.5),
+						-extent * random.nextDouble());
+	}
+	
+	private static Triangle groundTriangle(Vec3 v0, Vec3 v1, Vec3 v2, Material material) {
+		Triangle triangle = new Triangle();
+		triangle.v0 = v0;
+		triangle.v1 = v1;
+		triangle.v2 = v2;
+		triangle.material = material;
+		triangle.initFromParser();
+		return triangle;
+	}
+	
+	/**
+	 * Run the consistency checks, printing their results, and return the
+	 * number of checks that failed.
+	 */
+	static int runChecks() throws Exception {
+		int failed = 0;
+		failed += report("MeshFormat.parseDouble", checkParseDouble());
+		failed += report("StaxFileFormat/FileFormat", checkParsers());
+		if(PacketKernels.loadVector() != null) {
+			failed += report("PacketKernels vector/scalar", checkPacketKernels());
+		} else {
+			System.out.println(String.format("%-40s %s", "PacketKernels vector/scalar", "skipped, not loaded"));
+		}
+		return failed;
+	}
+	
+	/**
+	 * Print the result of a check, returning 1 if it failed.
+	 */
+	static int report(String name, String failure) {
+		System.out.println(String.format("%-40s %s", name, failure == null ? "ok" : failure));
+		return failure == null ? 0 : 1;
+	}
+	
+	/**
+	 * Check MeshFormat.parseDouble against Double.parseDouble on random numbers
+	 * of up to 17 significant digits, as written by exporters and Double.toString.
+	 */
+	static String checkParseDouble() throws IOException {
+		Random random = new Random(1);
+		for(int n = 0; n < 1000000; n ++) {
+			String token;
+			if(n % 2 == 0) {
+				// 17 digits with the point at a random position
+				String digits = Long.toString(10000000000000000L + (long)(random.nextDouble() * 9e16));
+				int point = 1 + random.nextInt(digits.length() - 1);
+				token = digits.substring(0, point) + "." + digits.substring(point);
+			} else {
+				token = Double.toString(random.nextDouble() * Math.pow(10, random.nextInt(12) - 6));
+			}
+			if(random.nextBoolean()) {
+				token = "-" + token;
+			}
+			byte[] data = token.getBytes("US-ASCII");
+			double value = MeshFormat.parseDouble(data, 0, data.length);
+			if(Double.doubleToLongBits(value) != Double.doubleToLongBits(Double.parseDouble(token))) {
+				return token + " parsed as " + value;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Check that StaxFileFormat and FileFormat load the same scene, with numbers
+	 * of 17 significant digits, into equal objects that render the same pixels.
+	 */
+	static String checkParsers() throws Exception {
+		File file = File.createTempFile("parsers", ".xml");
+		file.deleteOnExit();
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		try {
+			Random random = new Random(2);
+			writer.println("<scene>");
+			writer.println("<camera><origin>" + randomNumbers(random, 3, 0.5) + "</origin>" +
+					"<z>0 0 1</z><y>0 1 0</y><yfov>" + (30 + random.nextDouble()) + "</yfov>" +
+					"<xResolution>48</xResolution><yResolution>40</yResolution></camera>");
+			writer.println("<lights><light class=\"PointLight\"><position>" + randomNumbers(random, 3, 5) +
+					"</position><intensity>" + randomNumbers(random, 3, 1) + "</intensity></light></lights>");
+			writer.println("<surfaces>");
+			for(int i = 0; i < 8; i ++) {
+				writer.println("<surface class=\"Sphere\"><position>" + randomNumbers(random, 3, 3) +
+						"</position><radius>" + randomNumbers(random, 1, 1) + "</radius>" +
+						"<material class=\"Phong\"><diffuse>" + randomNumbers(random, 3, 1) +
+						"</diffuse><specular>" + randomNumbers(random, 3, 1) +
+						"</specular><exponent>" + randomNumbers(random, 1, 50) + "</exponent></material></surface>");
+				writer.println("<surface class=\"Triangle\"><v0>" + randomNumbers(random, 3, 3) +
+						"</v0><v1>" + randomNumbers(random, 3, 3) + "</v1><v2>" + randomNumbers(random, 3, 3) +
+						"</v2><material class=\"Lambert\"><diffuse>" + randomNumbers(random, 3, 1) +
+						"</diffuse></material></surface>");
+			}
+			writer.println("<surface class=\"TriangleMesh\"><positions>" + randomNumbers(random, 3*60, 3) +
+					"</positions><indices>");
+			for(int i = 0; i < 60; i ++) {
+				writer.print(i + " ");
+			}
+			writer.println("</indices><material class=\"Lambert\"><diffuse>" + randomNumbers(random, 3, 1) +
+					"</diffuse></material></surface>");
+			writer.println("</surfaces></scene>");
+		} finally {
+			writer.close();
+		}
+		
+		Scene stax = new StaxFileFormat().parseXMLScene(file.getPath());
+		Scene dom = new FileFormat().parseXMLScene(file.getPath());
+		String difference = compareFields("scene", stax, dom);
+		if(difference != null) {
+			return difference;
+		}
+		ColorImage staxImage = createCheckTracer(stax).render();
+		ColorImage domImage = createCheckTracer(dom).render();
+		Color a = new Color(), b = new Color();
+		for(int j = 0; j < stax.camera.yResolution; j ++) {
+			for(int i = 0; i < stax.camera.xResolution; i ++) {
+				staxImage.getColor(i, j, a);
+				domImage.getColor(i, j, b);
+				if(a.r != b.r || a.g != b.g || a.b != b.b) {
+					return "pixel (" + i + "," + j + ") differs";
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Check that the vector packet kernels find the same lanes at the same
+	 * distances as the scalar ones, for every surface of a random scene and
+	 * packets of several sizes, including partial vectors. Mesh hits are also
+	 * compared by their barycentric coordinates.
+	 */
+	static String checkPacketKernels() {
+		PacketKernels scalar = new ScalarPacketKernels(), vector = PacketKernels.loadVector();
+		Scene scene = createScene(100, 1000, 64);
+		Ray[] rays = createRays(scene, 4096);
+		double[] box = new double[6];
+		double[] t = new double[RayPacket.MAX_SIZE];
+		double[] u = new double[RayPacket.MAX_SIZE], w = new double[RayPacket.MAX_SIZE];
+		int[] sizes = { 5, 8, 16 };
+		for(int s = 0; s < sizes.length; s ++) {
+			for(RayPacket packet : createPackets(rays, sizes[s])) {
+				for(int i = 0; i < scene.surfaces.length; i ++) {
+					Surface surface = scene.surfaces[i];
+					String name = "surface " + i + " in packets of " + sizes[s];
+					surface.computeBoundingBox().toArray(box, 0);
+					if(scalar.intersectBox(packet, box, 0) != vector.intersectBox(packet, box, 0)) {
+						return "box of " + name;
+					}
+					int expected, lanes;
+					if(surface instanceof Sphere) {
+						Sphere sphere = (Sphere)surface;
+						double rr = sphere.radius*sphere.radius;
+						expected = scalar.intersectSphere(packet, sphere.position.x, sphere.position.y, sphere.position.z, rr);
+						System.arraycopy(packet.t, 0, t, 0, packet.size);
+						lanes = vector.intersectSphere(packet, sphere.position.x, sphere.position.y, sphere.position.z, rr);
+					} else {
+						Triangle triangle = (Triangle)surface;
+						double nv0 = triangle.normal.dot(triangle.v0);
+						expected = scalar.intersectTriangle(packet, triangle.normal, nv0, triangle.v0, triangle.v1, triangle.v2);
+						System.arraycopy(packet.t, 0, t, 0, packet.size);
+						lanes = vector.intersectTriangle(packet, triangle.normal, nv0, triangle.v0, triangle.v1, triangle.v2);
+						String difference = compareLanes(packet, expected, lanes, packet.t, t);
+						if(difference != null) {
+							return difference + " of " + name;
+						}
+						double[] edges = triangleEdges(triangle), positions = triangleVertex(triangle);
+						expected = scalar.intersectMeshTriangle(packet, edges, 0, positions, 0);
+						System.arraycopy(packet.t, 0, t, 0, packet.size);
+						System.arraycopy(packet.u, 0, u, 0, packet.size);
+						System.arraycopy(packet.w, 0, w, 0, packet.size);
+						lanes = vector.intersectMeshTriangle(packet, edges, 0, positions, 0);
+						name = "mesh " + name;
+						difference = compareLanes(packet, expected, lanes, packet.u, u);
+						if(difference == null) {
+							difference = compareLanes(packet, expected, lanes, packet.w, w);
+						}
+						if(difference != null) {
+							return difference + " of " + name;
+						}
+					}
+					String difference = compareLanes(packet, expected, lanes, packet.t, t);
+					if(difference != null) {
+						return difference + " of " + name;
+					}
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Compare the lanes found by two kernels and a value stored for each hit,
+	 * returning the first difference or null.
+	 */
+	private static String compareLanes(RayPacket packet, int expected, int lanes, double[] values, double[] expectedValues) {
+		if(lanes != expected) {
+			return "lanes " + Integer.toBinaryString(lanes) + " != " + Integer.toBinaryString(expected);
+		}
+		for(int k = 0; k < packet.size; k ++) {
+			if((lanes & (1 << k)) != 0 &&
+					Double.doubleToLongBits(values[k]) != Double.doubleToLongBits(expectedValues[k])) {
+				return "lane " + k + ": " + values[k] + " != " + expectedValues[k];
+			}
+		}
+		return null;
+	}
+	
+	private static RayTracer createCheckTracer(Scene scene) {
+		RayTracer rayTracer = new RayTracer(scene);
+		rayTracer.threads = 1;
+		return rayTracer;
+	}
+	
+	/**
+	 * n random numbers in (-scale,scale) separated by spaces, with 17 significant
+	 * digits as written by Double.toString for most values.
+	 */
+	private static String randomNumbers(Random random, int n, double scale) {
+		StringBuilder s = new StringBuilder();
+		for(int i = 0; i < n; i ++) {
+			s.append(i > 0 ? " " : "").append((2*random.nextDouble() - 1) * scale);
+		}
+		return s.toString();
+	}
+	
+	/**
+	 * Compare the public fields of a and b recursively, returning the path of the
+	 * first difference or null. Acceleration structures and timings are skipped.
+	 */
+	private static String compareFields(String path, Object a, Object b) throws IllegalAccessException {
+		if(a == null || b == null) {
+			return a == b ? null : path + " is null in one scene only";
+		}
+		if(a.getClass() != b.getClass()) {
+			return path + " is a " + a.getClass().getName() + " and a " + b.getClass().getName();
+		}
+		if(a instanceof Number || a instanceof Boolean || a instanceof Character || a instanceof String) {
+			// Double.equals compares the bits
+			return a.equals(b) ? null : path + ": " + a + " != " + b;
+		}
+		if(a.getClass().isArray()) {
+			if(Array.getLength(a) != Array.getLength(b)) {
+				return path + " lengths differ";
+			}
+			for(int i = 0; i < Array.getLength(a); i ++) {
+				String difference = compareFields(path + "[" + i + "]", Array.get(a, i), Array.get(b, i));
+				if(difference != null) {
+					return difference;
+				}
+			}
+			return null;
+		}
+		for(Field field : a.getClass().getFields()) {
+			if(Modifier.isStatic(field.getModifiers()) || field.getType() == BVH.class || 
+					field.getName().equals("buildTime")) {
+				continue;
+			}
+			String difference = compareFields(path + "." + field.getName(), field.get(a), field.get(b));
+			if(difference != null) {
+				return difference;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Read results written by writeResults.
+	 */
+	static void readResults(String filename, HashMap<String,Double> map) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(filename));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				int tab = line.lastIndexOf('\t');
+				if(tab > 0) {
+					map.put(line.substring(0, tab), Double.parseDouble(line.substring(tab+1)));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Write the results of this run, one "name<tab>ops/s" per line.
+	 */
+	static void writeResults(String filename) throws IOException {
+		PrintWriter writer = new PrintWriter(new FileWriter(filename));
+		try {
+			for(String name : results.keySet()) {
+				writer.println(name + "\t" + results.get(name));
+			}
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ * Axis-aligned bounding box.
+ * @author fabio
+ */
+public class BoundingBox {
+	/**
+	 * Minimum corner.
+	 */
+	public Vec3				min;
+	/**
+	 * Maximum corner.
+	 */
+	public Vec3				max;
+
+	/**
+	 * Default constructor.
+	 * Creates an empty box.
+	 */
+	public BoundingBox() {
+		min = new Vec3(Double.MAX_VALUE,Double.MAX_VALUE,Double.MAX_VALUE);
+		max = new Vec3(-Double.MAX_VALUE,-Double.MAX_VALUE,-Double.MAX_VALUE);
+	}
+
+	/**
+	 * Construct and initialize to given corners.
+	 */
+	public BoundingBox(Vec3 nMin, Vec3 nMax) {
+		min = new Vec3(nMin);
+		max = new Vec3(nMax);
+	}
+
+	/**
+	 * Grow the box to contain the point p.
+	 * Assigns the value to this box.
+	 */
+	public void setToUnion(Vec3 p) {
+		min.x = Math.min(min.x, p.x);
+		min.y = Math.min(min.y, p.y);
+		min.z = Math.min(min.z, p.z);
+		max.x = Math.max(max.x, p.x);
+		max.y = Math.max(max.y, p.y);
+		max.z = Math.max(max.z, p.z);
+	}
+
+	/**
+	 * Grow the box to contain the box b.
+	 * Assigns the value to this box.
+	 */
+	public void setToUnion(BoundingBox b) {
+		setToUnion(b.min);
+		setToUnion(b.max);
+	}
+
+	/**
+	 * True if the box contains no point.
+	 */
+	public boolean isEmpty() {
+		return min.x > max.x || min.y > max.y || min.z > max.z;
+	}
+
+	/**
+	 * Surface area of the box (used by the SAH builder).
+	 */
+	public double surfaceArea() {
+		if(isEmpty()) {
+			return 0;
+		}
+		double dx = max.x - min.x;
+		double dy = max.y - min.y;
+		double dz = max.z - min.z;
+		return 2 * (dx*dy + dy*dz + dz*dx);
+	}
+
+	/**
+	 * Write the box in the flattened layout used by the BVH
+	 * (minx, miny, minz, maxx, maxy, maxz) at the given offset.
+	 */
+	public void toArray(double[] bounds, int offset) {
+		bounds[offset+0] = min.x;
+		bounds[offset+1] = min.y;
+		bounds[offset+2] = min.z;
+		bounds[offset+3] = max.x;
+		bounds[offset+4] = max.y;
+		bounds[offset+5] = max.z;
+	}
+}
@@ -1,3 +1,5 @@
+import java.util.Arrays;
+
 /**
  * Represents a pin-hole camera.
  * 
@@ -24,15 +26,17 @@ public class Camera {
 	 */
 	public Vec3				z;
 	
-	/**
-	 * Field of view along the right(x) axis.
-	 */
-	public double				xfov;
-	
     /**
-     * Field of view along the right(y) axis.
+     * Field of view along the up(y) axis in degrees, as given in the scene.
      */
     public double               yfov;
+	
+	/**
+	 * Angles in radians of the image plane along the right(x) and up(y) axes,
+	 * computed from yfov and the resolution by the parser callbacks.
+	 */
+	public double				xAngle;
+	public double				yAngle;
     
 	/**
 	 * Width of the image in pixels.
@@ -43,6 +47,52 @@ public class Camera {
 	 */
 	public int					yResolution;
 	
+	/**
+	 * Image plane offsets of the samples of an n x n grid per pixel at a given
+	 * resolution (see generateRay(i,j,si,sj,n,ray)).
+	 * Columns hold origin - z + x*s for each sample column and rows y*t for each
+	 * sample row, with s and t as in imagePlanePoint, three values per entry.
+	 */
+	private static class RayTable {
+		final int				xResolution, yResolution;
+		final double[]			columns;
+		final double[]			rows;
+		
+		RayTable(Camera camera, int n) {
+			xResolution = camera.xResolution;
+			yResolution = camera.yResolution;
+			double imagePlaneSizeX = Math.tan(camera.xAngle);
+			double imagePlaneSizeY = Math.tan(camera.yAngle);
+			Vec3 o = camera.origin, x = camera.x, y = camera.y, z = camera.z;
+			
+			columns = new double[3*xResolution*n];
+			for(int i = 0, c = 0; i < xResolution; i ++) {
+				for(int si = 0; si < n; si ++, c += 3) {
+					double u = (i+(si+0.5)/n)/xResolution;
+					double s = (2*u-1)*imagePlaneSizeX;
+					columns[c] = (o.x + -z.x) + x.x*s;
+					columns[c+1] = (o.y + -z.y) + x.y*s;
+					columns[c+2] = (o.z + -z.z) + x.z*s;
+				}
+			}
+			rows = new double[3*yResolution*n];
+			for(int j = 0, r = 0; j < yResolution; j ++) {
+				for(int sj = 0; sj < n; sj ++, r += 3) {
+					double v = (j+(sj+0.5)/n)/yResolution;
+					double t = (2*v-1)*imagePlaneSizeY;
+					rows[r] = y.x*t;
+					rows[r+1] = y.y*t;
+					rows[r+2] = y.z*t;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Ray tables indexed by the size of the sample grid, computed on first use.
+	 */
+	private volatile RayTable[]	rayTables = new RayTable[0];
+	
 	/**
 	 * Generate a ray through the image location.
 	 * @param u Image x location in [0,1]
@@ -51,13 +101,87 @@ public class Camera {
 	 */
 	public Ray generateRay(double u, double v) {
 		Ray ray = new Ray();
-		
-		ray.origin.set(origin);
-		ray.direction.set(imagePlanePoint(u,v).sub(origin).normalize()); 
-		
+		generateRay(u, v, ray);
 		return ray;
 	}
 	
+	/**
+	 * Generate a ray through the image location, storing it in ray.
+	 * Computes the same ray as generateRay(u,v) without allocating.
+	 */
+	public void generateRay(double u, double v, Ray ray) {
+		double s = (2*u-1)*Math.tan(xAngle);
+		double t = (2*v-1)*Math.tan(yAngle);
+		setRay(((origin.x + -z.x) + x.x*s) + y.x*t,
+				((origin.y + -z.y) + x.y*s) + y.y*t,
+				((origin.z + -z.z) + x.z*s) + y.z*t, ray);
+	}
+	
+	/**
+	 * Generate the ray through sample (si,sj) of an n x n grid of samples
+	 * centered in their cells in pixel (i,j), storing it in ray.
+	 * Computes the same ray as generateRay((i+(si+0.5)/n)/xResolution,
+	 * (j+(sj+0.5)/n)/yResolution), taking the image plane offsets of the
+	 * sample column and row from tables computed once per resolution.
+	 */
+	public void generateRay(int i, int j, int si, int sj, int n, Ray ray) {
+		RayTable table = rayTable(n);
+		int c = 3*(i*n + si);
+		int r = 3*(j*n + sj);
+		double[] columns = table.columns, rows = table.rows;
+		setRay(columns[c] + rows[r], columns[c+1] + rows[r+1], columns[c+2] + rows[r+2], ray);
+	}
+	
+	/**
+	 * Discard the ray tables. Must be called after changing the origin, frame
+	 * or angles directly; the tables follow resolution changes.
+	 */
+	public void invalidateRayTables() {
+		rayTables = new RayTable[0];
+	}
+	
+	/**
+	 * Set ray to the primary ray through the image plane point (px,py,pz).
+	 */
+	private void setRay(double px, double py, double pz, Ray ray) {
+		double dx = px - origin.x, dy = py - origin.y, dz = pz - origin.z;
+		double l = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		if(l > 0) {
+			double scale = 1/l;
+			ray.direction.set(dx*scale, dy*scale, dz*scale);
+		} else {
+			ray.direction.set(0,0,0);
+		}
+		ray.origin.set(origin);
+		ray.minDistance = Ray.EPSILON;
+		ray.maxDistance = Double.MAX_VALUE;
+		ray.rayDepth = 0;
+	}
+	
+	/**
+	 * Get the ray table of an n x n sample grid at the current resolution.
+	 */
+	private RayTable rayTable(int n) {
+		RayTable[] tables = rayTables;
+		RayTable table = n < tables.length ? tables[n] : null;
+		if(table == null || table.xResolution != xResolution || table.yResolution != yResolution) {
+			table = computeRayTable(n);
+		}
+		return table;
+	}
+	
+	private synchronized RayTable computeRayTable(int n) {
+		RayTable[] tables = rayTables;
+		RayTable table = n < tables.length ? tables[n] : null;
+		if(table == null || table.xResolution != xResolution || table.yResolution != yResolution) {
+			table = new RayTable(this, n);
+			tables = Arrays.copyOf(tables, Math.max(tables.length, n+1));
+			tables[n] = table;
+			rayTables = tables;
+		}
+		return table;
+	}
+	
 	/**
 	 * Compute the image plane point in world coordinates.
 	 * @param u Image x location in [0,1]
@@ -67,8 +191,8 @@ public class Camera {
 	public Vec3 imagePlanePoint(double u, double v) {
 		Vec3 p = new Vec3();
 		
-		double imagePlaneSizeX = Math.tan(xfov);
-		double imagePlaneSizeY = Math.tan(yfov);
+		double imagePlaneSizeX = Math.tan(xAngle);
+		double imagePlaneSizeY = Math.tan(yAngle);
 		
 		p = origin.add(z.negate()).add(
 				x.scale((2*u-1)*imagePlaneSizeX)).add(
@@ -81,6 +205,33 @@ public class Camera {
      * Initialize frame from ZY. Used by parser.
      */
     public void initFromParser() {
+        computeFrame();
+        computeAngles();
+        invalidateRayTables();
+    }
+    
+    /**
+     * Compute the frame and angles again after an animation frame changed the
+     * camera, which may set any of its fields. Used by the parser.
+     */
+    public void updateFromParser() {
+        computeFrame();
+        computeAngles();
+        invalidateRayTables();
+    }
+    
+    /**
+     * Compute the angles of the image plane from yfov and the aspect ratio.
+     */
+    private void computeAngles() {
+        yAngle = Math.toRadians(yfov);
+        xAngle = yAngle * (double)xResolution / (double)yResolution;
+    }
+    
+    /**
+     * Orthonormalize the frame from Z and Y.
+     */
+    private void computeFrame() {
         // normalize forward
         z.setToNormalize();
         
@@ -90,8 +241,5 @@ public class Camera {
         // right is just the cross product
         x = new Vec3();
         x = z.cross(y);
-        
-        yfov = Math.toRadians(yfov);
-        xfov = yfov * (double)xResolution / (double)yResolution;
     }
 }
@@ -48,6 +48,16 @@ public class Color {
 		b *= s;
 	}
 
+	/**
+	 * Scalar multiply.
+	 * Assigns c * s to this color.
+	 */
+	public void setToScale(Color c, double s) {
+		r = c.r * s;
+		g = c.g * s;
+		b = c.b * s;
+	}
+
 	/**
 	 * Scalar multiply.
 	 */
@@ -67,6 +77,16 @@ public class Color {
 		b *= c.b;
 	}
 
+	/**
+	 * Component-wise color multiply.
+	 * Assigns c1 * c2 to this color.
+	 */
+	public void setToScale(Color c1, Color c2) {
+		r = c1.r * c2.r;
+		g = c1.g * c2.g;
+		b = c1.b * c2.b;
+	}
+
 	/**
 	 * Component-wise color multiply.
 	 */
@@ -104,6 +124,15 @@ public class Color {
 		b = c.b;
 	}
 	
+	/**
+	 * Assignment to given values.
+	 */
+	public void set(double nr, double ng, double nb) {
+		r = nr;
+		g = ng;
+		b = nb;
+	}
+	
 	/**
 	 * Return a copy of this color
 	 */
@@ -115,6 +144,13 @@ public class Color {
 	 * Pack color to integrer representation for image writing.
 	 */
 	public int toPackedInt() {
+		return toPackedInt(r, g, b);
+	}
+
+	/**
+	 * Pack the color components to integer representation for image writing.
+	 */
+	public static int toPackedInt(double r, double g, double b) {
 		int ir = (int)(Math.min(Math.max(r,0),1) * 255 + 0.1);
 		int ig = (int)(Math.min(Math.max(g,0),1) * 255 + 0.1);
 		int ib = (int)(Math.min(Math.max(b,0),1) * 255 + 0.1);
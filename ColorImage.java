@@ -1,13 +1,39 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
 /**
  * Color image represented as coor matrix.
  * 
+ * Colors are stored row by row as interleaved r, g, b floats, either in a heap
+ * array or, for very large frames, in direct (off-heap) buffers of up to
+ * BUFFER_FLOATS floats, each holding a block of whole rows, so that off-heap
+ * images are not limited by the size of a single buffer.
+ * Colors are rounded to float when stored, so a channel that falls right at
+ * an 8-bit quantization boundary can be saved one level off from its double value.
+ * Row and tile accessors copy blocks of pixels in the same interleaved layout.
+ * An image can also hold only a band of rows of a larger image, for streaming
+ * output, in which case pixels are still addressed with the full image coordinates.
+ * 
  * @author fabio
  */
 public class ColorImage {
 	/**
-	 * Colors
+	 * Colors, three floats per pixel (null if stored off-heap).
 	 */
-	private Color[] 			colors;
+	private float[]				data;
+	
+	/**
+	 * Maximum number of floats of each off-heap buffer (1 GB).
+	 */
+	public static final int		BUFFER_FLOATS = 1 << 28;
+	
+	/**
+	 * Colors stored off-heap, three floats per pixel, rowsPerBuffer rows per
+	 * buffer (null if stored in data).
+	 */
+	private FloatBuffer[]		buffers;
+	private int					rowsPerBuffer;
 	
 	/**
 	 * Image width.
@@ -17,39 +43,193 @@ public class ColorImage {
 	 * Image height.
 	 */
 	public int					yResolution;
+	/**
+	 * Row of the full image stored as first row (0 unless this is a band).
+	 */
+	public int					yOrigin;
 	
 	/**
 	 * Create an empty image of the given resolution.
 	 */
 	public ColorImage(int nxResolution, int nyResolution) {
+		this(nxResolution, nyResolution, false);
+	}
+	
+	/**
+	 * Create an empty image of the given resolution, stored in a direct buffer
+	 * outside of the Java heap if offHeap is true.
+	 */
+	public ColorImage(int nxResolution, int nyResolution, boolean offHeap) {
+		this(nxResolution, nyResolution, 0, offHeap);
+	}
+	
+	/**
+	 * Create an empty band holding the rows [nyOrigin,nyOrigin+nyResolution) of
+	 * a larger image.
+	 */
+	public ColorImage(int nxResolution, int nyResolution, int nyOrigin, boolean offHeap) {
 		xResolution = nxResolution;
 		yResolution = nyResolution;
-		colors = new Color[xResolution*yResolution];
-		for(int x = 0; x < xResolution; x ++) {
-			for (int y = 0; y < yResolution; y++) {
-				colors[idx(x,y)] = new Color(0,0,0);
+		yOrigin = nyOrigin;
+		long size = 3L * xResolution * yResolution;
+		if(offHeap) {
+			if(3L * xResolution > BUFFER_FLOATS) {
+				throw new IllegalArgumentException("Image too wide: " + xResolution + "x" + yResolution);
 			}
+			rowsPerBuffer = xResolution > 0 ? BUFFER_FLOATS / (3*xResolution) : 1;
+			buffers = new FloatBuffer[(yResolution + rowsPerBuffer - 1) / rowsPerBuffer];
+			for(int b = 0; b < buffers.length; b ++) {
+				int rows = Math.min(rowsPerBuffer, yResolution - b * rowsPerBuffer);
+				buffers[b] = ByteBuffer.allocateDirect(3 * xResolution * rows * 4)
+						.order(ByteOrder.nativeOrder()).asFloatBuffer();
+			}
+			data = null;
+		} else {
+			if(size > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Image too large: " + xResolution + "x" + yResolution);
+			}
+			data = new float[(int)size];
+			buffers = null;
+		}
+	}
+	
+	/**
+	 * Create a copy of image, stored in the same way.
+	 */
+	public ColorImage(ColorImage image) {
+		this(image.xResolution, image.yResolution, image.yOrigin, image.isOffHeap());
+		float[] row = new float[3*xResolution];
+		for(int y = yOrigin; y < yOrigin + yResolution; y ++) {
+			image.getRow(y, row, 0);
+			setRow(y, row, 0);
 		}
 	}
 	
+	/**
+	 * True if the colors are stored outside of the Java heap.
+	 */
+	public boolean isOffHeap() {
+		return buffers != null;
+	}
+	
 	/**
 	 * Get coor at coordinate (x,y).
 	 */
     public Color getColor(int x, int y) {
-		return colors[idx(x,y)];
+		Color c = new Color();
+		getColor(x, y, c);
+		return c;
+	}
+	
+	/**
+	 * Get coor at coordinate (x,y) storing it in c.
+	 */
+    public void getColor(int x, int y, Color c) {
+		if(data != null) {
+			int i = idx(x,y);
+			c.r = data[i];
+			c.g = data[i+1];
+			c.b = data[i+2];
+		} else {
+			FloatBuffer buffer = buffer(y);
+			int i = bufferIdx(x,y);
+			c.r = buffer.get(i);
+			c.g = buffer.get(i+1);
+			c.b = buffer.get(i+2);
+		}
 	}
 	
 	/**
 	 * Set coor at coordinate (x,y).
 	 */
     public void setColor(int x, int y, Color c) {
-		colors[idx(x,y)].set(c);
+		if(data != null) {
+			int i = idx(x,y);
+			data[i] = (float)c.r;
+			data[i+1] = (float)c.g;
+			data[i+2] = (float)c.b;
+		} else {
+			FloatBuffer buffer = buffer(y);
+			int i = bufferIdx(x,y);
+			buffer.put(i, (float)c.r);
+			buffer.put(i+1, (float)c.g);
+			buffer.put(i+2, (float)c.b);
+		}
 	}
     
     /**
-     * Finds the image index
+     * Copy row y into rgb starting at offset (3*xResolution floats).
+     */
+    public void getRow(int y, float[] rgb, int offset) {
+    	getPixels(0, y, rgb, offset, 3*xResolution);
+    }
+    
+    /**
+     * Copy 3*xResolution floats from rgb starting at offset into row y.
+     */
+    public void setRow(int y, float[] rgb, int offset) {
+    	setPixels(0, y, rgb, offset, 3*xResolution);
+    }
+    
+    /**
+     * Copy the pixels [x0,x0+width)x[y0,y0+height) into rgb, row by row
+     * (3*width*height floats).
+     */
+    public void getTile(int x0, int y0, int width, int height, float[] rgb) {
+    	for(int j = 0; j < height; j ++) {
+    		getPixels(x0, y0+j, rgb, 3*width*j, 3*width);
+    	}
+    }
+    
+    /**
+     * Copy rgb, stored row by row, into the pixels [x0,x0+width)x[y0,y0+height).
+     */
+    public void setTile(int x0, int y0, int width, int height, float[] rgb) {
+    	for(int j = 0; j < height; j ++) {
+    		setPixels(x0, y0+j, rgb, 3*width*j, 3*width);
+    	}
+    }
+    
+    /**
+     * Copy length floats of row y, starting at pixel x, into rgb.
+     */
+    private void getPixels(int x, int y, float[] rgb, int offset, int length) {
+    	if(data != null) {
+    		System.arraycopy(data, idx(x,y), rgb, offset, length);
+    	} else {
+    		buffer(y).get(bufferIdx(x,y), rgb, offset, length);
+    	}
+    }
+    
+    /**
+     * Copy length floats of rgb into row y, starting at pixel x.
+     */
+    private void setPixels(int x, int y, float[] rgb, int offset, int length) {
+    	if(data != null) {
+    		System.arraycopy(rgb, offset, data, idx(x,y), length);
+    	} else {
+    		buffer(y).put(bufferIdx(x,y), rgb, offset, length);
+    	}
+    }
+    
+    /**
+     * Finds the index of the first channel of pixel (x,y)
      */
     private int idx(int x, int y) {
-        return y*xResolution+x;
+        return 3*((y-yOrigin)*xResolution+x);
+    }
+    
+    /**
+     * Finds the off-heap buffer holding row y.
+     */
+    private FloatBuffer buffer(int y) {
+        return buffers[(y-yOrigin)/rowsPerBuffer];
+    }
+    
+    /**
+     * Finds the index of the first channel of pixel (x,y) in its off-heap buffer.
+     */
+    private int bufferIdx(int x, int y) {
+        return 3*(((y-yOrigin)%rowsPerBuffer)*xResolution+x);
     }
 }
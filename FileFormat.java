@@ -7,11 +7,18 @@ import org.w3c.dom.NodeList;
 import org.w3c.dom.NamedNodeMap;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Array;
 import java.lang.Class;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
 
 /**
@@ -56,9 +63,17 @@ import java.util.StringTokenizer;
  *     <surface class="Triangle">
  *       ...
  *     </surface>
+ *     <surface class="TriangleMesh">
+ *       ...
+ *     </surface>
  *   </surfaces>
  * </scene>
  * 
+ * An object element with an "id=name" attribute can be used again later in
+ * the file by an element with a "ref=name" attribute and no content, which
+ * shares the same object instead of creating a new one (for example the
+ * geometry of instances, see Instance, or a material).
+ * 
  * @author fabio
  */
 public class FileFormat {
@@ -66,6 +81,12 @@ public class FileFormat {
     
     String                  packageNamePrefix;
     
+    /**
+     * Objects parsed so far with an id, by id.
+     * Kept after parsing a scene, for the frames applied to it.
+     */
+    protected Map<String,Object> objects = new HashMap<String,Object>();
+    
     public class ParserException extends Exception {
         private static final long serialVersionUID = -2409698617654879432L;
         public ParserException(String msg, Throwable cause) {
@@ -114,6 +135,13 @@ public class FileFormat {
         }
     }
     
+    /**
+     * Constructor for subclasses that read files without the DOM parser.
+     */
+    protected FileFormat(DocumentBuilder nDb) {
+        db = nDb;
+    }
+    
     public Scene parseXMLScene(String filename) throws ParserException {
         ParserNode root = null;
         Document doc = null;
@@ -126,19 +154,78 @@ public class FileFormat {
         xmlRoot.normalize();
         root = convertXMLNode(xmlRoot);
         
+        objects.clear();
         return (Scene)parseObject(root, Scene.class);
     }
     
+    /**
+     * Parse an animation frame and apply it to the objects of the scene last
+     * parsed by this parser, whose ids stay defined for this purpose.
+     * Returns the objects updated, in order.
+     * 
+     * A frame is a list of updates of objects with an id, each setting some of
+     * their variables as in the scene format:
+     * <frame>
+     *   <update ref="door">
+     *     <rotationAngle>30</rotationAngle>
+     *   </update>
+     *   <update ref="cloth">
+     *     <positions>x0 y0 z0 x1 y1 z1 ...</positions>
+     *   </update>
+     * </frame>
+     * After the variables are set, the parser calls updateFromParser on the
+     * object if its class has one, or initFromParser otherwise.
+     */
+    public List<Object> parseXMLFrame(String filename) throws ParserException {
+        Document doc = null;
+        try {
+            doc = db.parse(filename);
+        } catch (Exception e) {
+            throw new ParserException("Problems creating XML document",e);
+        }
+        Node xmlRoot = doc.getDocumentElement();
+        xmlRoot.normalize();
+        ParserNode root = convertXMLNode(xmlRoot);
+        
+        List<Object> updated = new ArrayList<Object>();
+        for (int i = 0; i < root.children.length; i++) {
+            ParserNode n = root.children[i];
+            if(!n.name.equals("update") || n.ref == null) {
+                throw new ParserException("Frame elements must be updates with a ref: " + n.name);
+            }
+            if(n.id != null || n.className != null || 
+                    (n.content != null && n.content.trim().length() != 0)) {
+                throw new ParserException("Cannot have id, class or content on update " + n.ref);
+            }
+            Object object = resolveReference((String)n.ref, Object.class);
+            parseVariables(n, object, object.getClass());
+            if(!callParserCallback(object, object.getClass(), "updateFromParser")) {
+                callParserCallback(object, object.getClass(), "initFromParser");
+            }
+            updated.add(object);
+        }
+        return updated;
+    }
+    
     protected static void saveImage(String filename, ColorImage image) throws Exception {
-        BufferedImage bi = new BufferedImage(
-                image.xResolution, image.yResolution,
-                BufferedImage.TYPE_INT_RGB);
-        for(int x = 0; x < image.xResolution; x ++) {
-            for (int y = 0; y < image.yResolution; y++) {
-                bi.setRGB(x,image.yResolution-1-y,image.getColor(x,y).toPackedInt());
+        if(ImageOutput.isSupported(filename)) {
+            ImageOutput output = ImageOutput.open(filename, image.xResolution, image.yResolution);
+            try {
+                output.writeRows(image);
+            } finally {
+                output.close();
             }
+            return;
+        }
+        
+        // other formats through ImageIO, packing directly into the image raster
+        BufferedImage bi = new BufferedImage(image.xResolution, image.yResolution,
+                BufferedImage.TYPE_INT_RGB);
+        ImageOutput.packRows(image, ((DataBufferInt)bi.getRaster().getDataBuffer()).getData());
+        String format = filename.substring(filename.lastIndexOf('.') + 1);
+        if(!ImageIO.write(bi, format, new File(filename))) {
+            throw new IOException("Unsupported image format: " + filename);
         }
-        ImageIO.write(bi, "PNG", new File(filename));
     }
     
     private ParserNode convertXMLNode(Node n) throws ParserException {
@@ -208,8 +295,10 @@ public class FileFormat {
         
         // determine if this is a reference
         if(n.ref != null) {
-            // not implement for now!
-            return null;
+            if(n.id != null || n.className != null || n.content != null || n.children.length != 0) {
+                throw new ParserException("Cannot have id, class or content on reference " + n.ref);
+            }
+            return resolveReference((String)n.ref, c);
         }
         
         // determine the new class to creare
@@ -239,7 +328,23 @@ public class FileFormat {
             throw new ParserException("Content not allowed in generic class" + nc);
         }
         
-        // parse all children
+        parseVariables(n, ret, nc);
+        
+        // call the pareser call back if available
+        callParserCallback(ret, nc, "initFromParser");
+        
+        if(n.id != null) {
+            defineReference((String)n.id, ret);
+        }
+        
+        // done
+        return ret;
+    }
+    
+    /**
+     * Parse the children of n as variables of the object ret of class nc.
+     */
+    private void parseVariables(ParserNode n, Object ret, Class nc) throws ParserException {
         for (int i = 0; i < n.children.length; i++) {
             // grab the node and its variable name
             ParserNode cn = n.children[i];
@@ -286,19 +391,55 @@ public class FileFormat {
                         " of class " + nc, e);
             }
         }
-        
-        // call the pareser call back if available
+    }
+    
+    /**
+     * Call the parser call back with the given name on ret if its class nc
+     * has one, and return true if it had.
+     */
+    private boolean callParserCallback(Object ret, Class<?> nc, String name) throws ParserException {
+        Method initMethod = null;
+        try {
+            initMethod = nc.getMethod(name);
+        } catch(Exception e) {
+            return false;
+        }
         try {
-            Method initMethod = nc.getMethod("initFromParser", new Class[0]);
             initMethod.invoke(ret, new Object[0]);
+        } catch(InvocationTargetException e) {
+            throw new ParserException("Cannot initialize object of " + nc + 
+                    ": " + e.getCause(), e.getCause());
         } catch(Exception e) {
-            
+            throw new ParserException("Cannot initialize object of " + nc, e);
+        }
+        return true;
+    }
+    
+    /**
+     * Get the object with the given id, which must be of class c.
+     */
+    protected Object resolveReference(String ref, Class<?> c) throws ParserException {
+        Object ret = objects.get(ref);
+        if(ret == null) {
+            throw new ParserException("Reference to undefined id " + ref);
+        }
+        if(!c.isInstance(ret)) {
+            throw new ParserException("Cannot set " + c + " with reference " + ref + 
+                    " of class " + ret.getClass());
         }
-        
-        // done
         return ret;
     }
     
+    /**
+     * Record the object with the given id, for later references.
+     */
+    protected void defineReference(String id, Object object) throws ParserException {
+        if(objects.containsKey(id)) {
+            throw new ParserException("Duplicate id " + id);
+        }
+        objects.put(id, object);
+    }
+    
     private Object parseBuiltin(ParserNode n, Class c) throws ParserException {
         Object ret = null;
         
@@ -410,8 +551,8 @@ public class FileFormat {
     }
     
     private double[] parseDoubleArray(String content) throws ParserException {
-        // grab all the token split by space
-        StringTokenizer tokenizer = new StringTokenizer(content, " ");
+        // grab all the token split by whitespace (large arrays span several lines)
+        StringTokenizer tokenizer = new StringTokenizer(content, " \t\n\r");
         
         int nElements = tokenizer.countTokens();
         double[] ret = new double[nElements];
@@ -0,0 +1,208 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.Deflater;
+
+/**
+ * Image file written incrementally, one band of rows at a time, so that images
+ * larger than memory can be saved while they are rendered.
+ * 
+ * The format follows the file extension: PNG, for which bands must be written top
+ * to bottom (decreasing y), or binary PPM and little endian PFM, whose fixed size
+ * rows are written in place so bands can come in any order.
+ * 
+ * @author fabio
+ */
+public abstract class ImageOutput {
+	/**
+	 * Image width.
+	 */
+	public int					xResolution;
+	/**
+	 * Image height.
+	 */
+	public int					yResolution;
+	
+	/**
+	 * Write the rows of a band (or of a whole image).
+	 */
+	public abstract void writeRows(ColorImage band) throws IOException;
+	
+	/**
+	 * Complete the file once all rows have been written.
+	 */
+	public abstract void close() throws IOException;
+	
+	/**
+	 * True if images with this file name can be written incrementally.
+	 */
+	public static boolean isSupported(String filename) {
+		String name = filename.toLowerCase();
+		return name.endsWith(".png") || name.endsWith(".ppm") || name.endsWith(".pfm");
+	}
+	
+	/**
+	 * Create the image file of the given size, choosing the format from its extension.
+	 */
+	public static ImageOutput open(String filename, int nxResolution, int nyResolution) throws IOException {
+		String name = filename.toLowerCase();
+		if(name.endsWith(".png")) {
+			return new PngOutput(filename, nxResolution, nyResolution);
+		} else if(name.endsWith(".ppm")) {
+			return new RawOutput(filename, nxResolution, nyResolution, false);
+		} else if(name.endsWith(".pfm")) {
+			return new RawOutput(filename, nxResolution, nyResolution, true);
+		}
+		throw new IOException("Unsupported image format for streaming: " + filename);
+	}
+	
+	/**
+	 * Pack the rows of image to 8 bit RGB ints in parallel, top to bottom: row k
+	 * of packed holds the image row yOrigin+yResolution-1-k. Runs in the fork/join
+	 * pool of the calling thread if it runs in one and in the common pool otherwise.
+	 */
+	public static void packRows(ColorImage image, int[] packed) {
+		new PackTask(image, packed, 0, image.yResolution).invoke();
+	}
+	
+	/**
+	 * PNG output, compressed in parallel by PngWriter.
+	 */
+	private static class PngOutput extends ImageOutput {
+		private OutputStream	out;
+		private PngWriter		writer;
+		/**
+		 * Image row just below the last band written.
+		 */
+		private int				nextRow;
+		
+		PngOutput(String filename, int nxResolution, int nyResolution) throws IOException {
+			xResolution = nxResolution;
+			yResolution = nyResolution;
+			nextRow = yResolution;
+			out = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16);
+			writer = new PngWriter(out, xResolution, yResolution, Deflater.DEFAULT_COMPRESSION);
+		}
+		
+		public void writeRows(ColorImage band) throws IOException {
+			if(band.yOrigin + band.yResolution != nextRow) {
+				throw new IOException("PNG rows must be written top to bottom: expected rows below " + 
+						nextRow + ", got " + band.yOrigin + "-" + (band.yOrigin + band.yResolution - 1));
+			}
+			int[] packed = new int[band.xResolution * band.yResolution];
+			packRows(band, packed);
+			writer.writeRows(packed, 0, band.yResolution);
+			nextRow = band.yOrigin;
+		}
+		
+		public void close() throws IOException {
+			try {
+				writer.finish();
+			} finally {
+				out.close();
+			}
+		}
+	}
+	
+	/**
+	 * Uncompressed PPM (8 bit, rows top to bottom) or PFM (float, rows bottom to top).
+	 */
+	private static class RawOutput extends ImageOutput {
+		private FileChannel		channel;
+		private boolean			floats;
+		private long			headerSize;
+		
+		RawOutput(String filename, int nxResolution, int nyResolution, boolean nFloats) throws IOException {
+			xResolution = nxResolution;
+			yResolution = nyResolution;
+			floats = nFloats;
+			channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			String header = floats ? "PF\n" + xResolution + " " + yResolution + "\n-1.0\n" :
+				"P6\n" + xResolution + " " + yResolution + "\n255\n";
+			ByteBuffer buffer = ByteBuffer.wrap(header.getBytes("US-ASCII"));
+			headerSize = buffer.remaining();
+			write(buffer, 0);
+		}
+		
+		public void writeRows(ColorImage band) throws IOException {
+			if(floats) {
+				float[] row = new float[3 * xResolution];
+				ByteBuffer buffer = ByteBuffer.allocateDirect(4 * row.length).order(ByteOrder.LITTLE_ENDIAN);
+				for(int y = band.yOrigin; y < band.yOrigin + band.yResolution; y ++) {
+					band.getRow(y, row, 0);
+					buffer.clear();
+					buffer.asFloatBuffer().put(row);
+					write(buffer, headerSize + 12L * xResolution * y);
+				}
+			} else {
+				int[] packed = new int[band.xResolution * band.yResolution];
+				packRows(band, packed);
+				ByteBuffer buffer = ByteBuffer.allocate(3 * packed.length);
+				for(int i = 0; i < packed.length; i ++) {
+					int c = packed[i];
+					buffer.put((byte)(c >> 16));
+					buffer.put((byte)(c >> 8));
+					buffer.put((byte)c);
+				}
+				buffer.flip();
+				int top = yResolution - band.yOrigin - band.yResolution;
+				write(buffer, headerSize + 3L * xResolution * top);
+			}
+		}
+		
+		public void close() throws IOException {
+			channel.close();
+		}
+		
+		private void write(ByteBuffer buffer, long position) throws IOException {
+			while(buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+		}
+	}
+	
+	/**
+	 * Converts image rows to packed ints, splitting the rows in halves.
+	 */
+	private static class PackTask extends RecursiveAction {
+		private static final long serialVersionUID = -6405316530127339155L;
+		private static final int ROWS = 16;
+		private ColorImage image;
+		private int[] packed;
+		private int start;
+		private int end;
+		
+		PackTask(ColorImage nImage, int[] nPacked, int nStart, int nEnd) {
+			image = nImage;
+			packed = nPacked;
+			start = nStart;
+			end = nEnd;
+		}
+		
+		protected void compute() {
+			if(end - start > ROWS) {
+				int mid = (start + end) >>> 1;
+				invokeAll(new PackTask(image, packed, start, mid),
+						  new PackTask(image, packed, mid, end));
+				return;
+			}
+			int w = image.xResolution;
+			float[] row = new float[3 * w];
+			for(int k = start; k < end; k ++) {
+				image.getRow(image.yOrigin + image.yResolution - 1 - k, row, 0);
+				int p = k * w;
+				for(int x = 0; x < w; x ++) {
+					packed[p + x] = Color.toPackedInt(row[3*x], row[3*x+1], row[3*x+2]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,218 @@
+import java.util.Arrays;
+
+/**
+ * Copy of a shared surface (usually a SurfaceGroup or a TriangleMesh) placed in
+ * the scene with its own transform, so that many copies of an object share one
+ * geometry and one acceleration structure.
+ * 
+ * The transform maps object space to world space by scaling, then rotating
+ * around an axis through the origin, then translating. Rays are intersected in
+ * object space: they are transformed by the inverse transform without
+ * normalizing the direction, so that hit distances are the same in both spaces.
+ * 
+ * In the scene file the geometry is referenced by id:
+ * <surface class="Instance">
+ *   <geometry ref="tree"/>
+ *   <translation>10 0 -4</translation>
+ *   <rotationAxis>0 1 0</rotationAxis>
+ *   <rotationAngle>45</rotationAngle>
+ *   <scale>2 2 2</scale>
+ * </surface>
+ * 
+ * @author fabio
+ */
+public class Instance extends Surface {
+	/**
+	 * Shared object space geometry.
+	 */
+	public Surface				geometry;
+	/**
+	 * Translation.
+	 */
+	public Vec3					translation;
+	/**
+	 * Rotation axis.
+	 */
+	public Vec3					rotationAxis;
+	/**
+	 * Rotation angle around rotationAxis, in degrees.
+	 */
+	public double				rotationAngle;
+	/**
+	 * Scale along the object space axes.
+	 */
+	public Vec3					scale;
+	/**
+	 * Object to world linear part, row major, followed by the translation column.
+	 */
+	double[]					toWorld;
+	/**
+	 * World to object linear part, row major, followed by the translation column.
+	 */
+	double[]					toObject;
+	
+	/**
+	 * Per-thread object space rays, one per nesting level of instances.
+	 */
+	private static final ThreadLocal<LocalRays> localRays = new ThreadLocal<LocalRays>() {
+		protected LocalRays initialValue() {
+			return new LocalRays();
+		}
+	};
+	
+	/**
+	 * Default constructor.
+	 * Instance is initialized in the Loader.
+	 */
+	public Instance() {
+		geometry = null;
+		translation = new Vec3(0,0,0);
+		rotationAxis = new Vec3(0,1,0);
+		rotationAngle = 0;
+		scale = new Vec3(1,1,1);
+		toWorld = null;
+		toObject = null;
+	}
+	
+	/**
+	 * Compute the transforms.
+	 * Used by the parser.
+	 */
+	public void initFromParser() {
+		computeTransform();
+	}
+	
+	/**
+	 * Compute the transform matrices from translation, rotation and scale.
+	 * Needs to be called again if they change.
+	 */
+	public void computeTransform() {
+		// rotation matrix around the normalized axis (Rodrigues)
+		double length = rotationAxis.length();
+		double x = rotationAxis.x / length, y = rotationAxis.y / length, z = rotationAxis.z / length;
+		double angle = Math.toRadians(rotationAngle);
+		double c = Math.cos(angle), s = Math.sin(angle), t = 1 - c;
+		double[] r = {
+			t*x*x + c,   t*x*y - s*z, t*x*z + s*y,
+			t*x*y + s*z, t*y*y + c,   t*y*z - s*x,
+			t*x*z - s*y, t*y*z + s*x, t*z*z + c
+		};
+		double[] sv = { scale.x, scale.y, scale.z };
+		double[] tv = { translation.x, translation.y, translation.z };
+		
+		// toWorld = R S, toObject = S^-1 R^T
+		toWorld = new double[12];
+		toObject = new double[12];
+		for(int i = 0; i < 3; i ++) {
+			for(int j = 0; j < 3; j ++) {
+				toWorld[3*i+j] = r[3*i+j] * sv[j];
+				toObject[3*i+j] = r[3*j+i] / sv[i];
+			}
+		}
+		for(int i = 0; i < 3; i ++) {
+			toWorld[9+i] = tv[i];
+			toObject[9+i] = -(toObject[3*i]*tv[0] + toObject[3*i+1]*tv[1] + toObject[3*i+2]*tv[2]);
+		}
+	}
+	
+	/**
+	 * Intersect the given ray with this instance storing the result in intersection and
+	 * result true if there was an intersection.
+	 */
+	boolean intersect(Ray ray, Intersection intersection) {
+		LocalRays rays = localRays.get();
+		Ray local = rays.push();
+		toObject(ray, local);
+		boolean hit = geometry.intersect(local, intersection);
+		rays.depth --;
+		if(hit) {
+			// the distance is the same in both spaces; normals transform with
+			// the inverse transpose of the linear part
+			ray.evaluate(intersection.distance, intersection.position);
+			Vec3 n = intersection.normal;
+			double[] m = toObject;
+			n.set(m[0]*n.x + m[3]*n.y + m[6]*n.z,
+				  m[1]*n.x + m[4]*n.y + m[7]*n.z,
+				  m[2]*n.x + m[5]*n.y + m[8]*n.z);
+			n.setToNormalize();
+		}
+		return hit;
+	}
+	
+	/**
+	 * Return true if the given ray hits this instance between its minimum and
+	 * maximum distance.
+	 */
+	boolean occluded(Ray ray) {
+		LocalRays rays = localRays.get();
+		Ray local = rays.push();
+		toObject(ray, local);
+		boolean hit = geometry.occluded(local);
+		rays.depth --;
+		return hit;
+	}
+	
+	/**
+	 * Compute the world space bounds of the transformed geometry bounds.
+	 */
+	BoundingBox computeBoundingBox() {
+		BoundingBox objectBox = geometry.computeBoundingBox();
+		BoundingBox box = new BoundingBox();
+		if(objectBox.isEmpty()) {
+			return box;
+		}
+		Vec3 corner = new Vec3();
+		for(int k = 0; k < 8; k ++) {
+			corner.set((k & 1) == 0 ? objectBox.min.x : objectBox.max.x,
+					   (k & 2) == 0 ? objectBox.min.y : objectBox.max.y,
+					   (k & 4) == 0 ? objectBox.min.z : objectBox.max.z);
+			transformPoint(toWorld, corner, corner);
+			box.setToUnion(corner);
+		}
+		return box;
+	}
+	
+	/**
+	 * Set local to the given world space ray transformed to object space.
+	 */
+	private void toObject(Ray ray, Ray local) {
+		transformPoint(toObject, ray.origin, local.origin);
+		Vec3 d = ray.direction;
+		double[] m = toObject;
+		local.direction.set(m[0]*d.x + m[1]*d.y + m[2]*d.z,
+							m[3]*d.x + m[4]*d.y + m[5]*d.z,
+							m[6]*d.x + m[7]*d.y + m[8]*d.z);
+		local.minDistance = ray.minDistance;
+		local.maxDistance = ray.maxDistance;
+		local.rayDepth = ray.rayDepth;
+	}
+	
+	/**
+	 * Transform the point p by the given matrix, storing the result in result
+	 * (which can be p).
+	 */
+	private static void transformPoint(double[] m, Vec3 p, Vec3 result) {
+		result.set(m[0]*p.x + m[1]*p.y + m[2]*p.z + m[9],
+				   m[3]*p.x + m[4]*p.y + m[5]*p.z + m[10],
+				   m[6]*p.x + m[7]*p.y + m[8]*p.z + m[11]);
+	}
+	
+	/**
+	 * Stack of object space rays of a thread, so that nested instances do not
+	 * share a ray and intersections do not allocate.
+	 */
+	private static class LocalRays {
+		Ray[] rays = new Ray[0];
+		int depth = 0;
+		
+		Ray push() {
+			if(depth == rays.length) {
+				rays = Arrays.copyOf(rays, depth + 4);
+				for(int i = depth; i < rays.length; i ++) {
+					rays[i] = new Ray();
+				}
+			}
+			return rays[depth ++];
+		}
+	}
+}
@@ -35,8 +35,8 @@ public class Intersection {
 	 * Set the intersection record to no intersection.
 	 */
 	public void clear() {
-		normal = new Vec3();
-		position = new Vec3();
+		normal.set(0,0,0);
+		position.set(0,0,0);
 		material = null;
 		distance = Double.MAX_VALUE;
 	}
@@ -45,8 +45,8 @@ public class Intersection {
 	 * Assign the internal values to the one given in the parameters. 
 	 */
 	public void set(Intersection i) {
-		normal = new Vec3(i.normal);
-		position = new Vec3(i.position);
+		normal.set(i.normal);
+		position.set(i.position);
 		distance = i.distance;
 		material = i.material;
 	}
@@ -20,6 +20,17 @@ public class Lambert extends Material {
 		return diffuse.scale(NdL);
 	}
 
+	/**
+	 * Evaluate material for direct lighting storing the result in color.
+	 * @param N Surface normal.
+	 * @param L Light direction (point towards the light).
+	 * @param I View direction  (point towards the surface).
+	 */
+	public void computeDirectLighting(Vec3 N, Vec3 L, Vec3 I, Color color) {
+		double NdL = Math.max(N.dot(L),0);
+		color.setToScale(diffuse, NdL);
+	}
+
 	/**
 	 * Evaluate material mirror reflection.
 	 * @param N Surface normal.
@@ -29,6 +40,15 @@ public class Lambert extends Material {
 		return new Color(0,0,0);
 	}
 
+	/**
+	 * Evaluate material mirror reflection storing the result in color.
+	 * @param N Surface normal.
+	 * @param I View direction  (point towards the surface).
+	 */
+	public void computeReflection(Vec3 N, Vec3 I, Color color) {
+		color.set(0,0,0);
+	}
+
 	/**
 	 * True if this material has mirror reflections.
 	 * @param N Surface normal.
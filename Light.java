@@ -31,4 +31,22 @@ public abstract class Light {
 	 * @param surfacePoint Surface position.
 	 */
 	public abstract double computeShadowDistance(Vec3 surfacePoint);
+	
+	/**
+	 * Compute light direction storing the result in direction.
+	 * Subclasses should override this to avoid allocating.
+	 * @param surfacePoint Surface position.
+	 */
+	public void computeLightDirection(Vec3 surfacePoint, Vec3 direction) {
+		direction.set(computeLightDirection(surfacePoint));
+	}
+	
+	/**
+	 * Compute light internsity storing the result in color.
+	 * Subclasses should override this to avoid allocating.
+	 * @param surfacePoint Surface position.
+	 */
+	public void computeLightIntensity(Vec3 surfacePoint, Color color) {
+		color.set(computeLightIntensity(surfacePoint));
+	}
 }
@@ -1,4 +1,12 @@
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Main command-line entry point.
  * Parses commands, load scenes, renders them and saves results to image files.
@@ -9,36 +17,361 @@ public class Main {
 	 * Main entry point.
 	 */
 	public static void main(String args[]) {
-		if(args.length < 1) {
-			System.out.println("usage: Main sceneFilenames");
+		int threads = Runtime.getRuntime().availableProcessors();
+		int tileSize = 32;
+		int pixelOrder = PixelOrder.HILBERT;
+		int tileOrder = PixelOrder.HILBERT;
+		int adaptiveSamples = 0;
+		boolean offHeap = false;
+		boolean stream = false;
+		SceneCache cache = null;
+		boolean dom = false;
+		int packetSize = 1;
+		boolean wavefront = false;
+		int coordinatorPort = -1;
+		int spawnWorkers = 0;
+		String worker = null;
+		int batch = 0;
+		int progressiveSamples = 0;
+		long timeBudget = 0;
+		boolean animate = false;
+		
+		// parse options
+		int firstFile = 0;
+		try {
+			while(firstFile < args.length && args[firstFile].startsWith("-")) {
+				String option = args[firstFile];
+				if(option.equals("-threads") && firstFile + 1 < args.length) {
+					threads = Integer.parseInt(args[firstFile+1]);
+					if(threads < 1) {
+						throw new IllegalArgumentException("Number of threads must be positive");
+					}
+					BVH.THREADS = threads;
+					firstFile += 2;
+				} else if(option.equals("-tileSize") && firstFile + 1 < args.length) {
+					tileSize = Integer.parseInt(args[firstFile+1]);
+					if(tileSize < 1) {
+						throw new IllegalArgumentException("Tile size must be positive");
+					}
+					firstFile += 2;
+				} else if(option.equals("-pixelOrder") && firstFile + 1 < args.length) {
+					pixelOrder = PixelOrder.parse(args[firstFile+1]);
+					firstFile += 2;
+				} else if(option.equals("-tileOrder") && firstFile + 1 < args.length) {
+					tileOrder = PixelOrder.parse(args[firstFile+1]);
+					firstFile += 2;
+				} else if(option.equals("-cache") && firstFile + 1 < args.length) {
+					cache = new SceneCache(new File(args[firstFile+1]));
+					firstFile += 2;
+				} else if(option.equals("-packet") && firstFile + 1 < args.length) {
+					packetSize = Integer.parseInt(args[firstFile+1]);
+					if(packetSize < 1 || packetSize > RayPacket.MAX_SIZE) {
+						throw new IllegalArgumentException("Packet size must be between 1 and " + 
+								RayPacket.MAX_SIZE);
+					}
+					firstFile += 2;
+				} else if(option.equals("-coordinator") && firstFile + 1 < args.length) {
+					coordinatorPort = Integer.parseInt(args[firstFile+1]);
+					firstFile += 2;
+				} else if(option.equals("-spawn") && firstFile + 1 < args.length) {
+					spawnWorkers = Integer.parseInt(args[firstFile+1]);
+					firstFile += 2;
+				} else if(option.equals("-worker") && firstFile + 1 < args.length) {
+					worker = args[firstFile+1];
+					firstFile += 2;
+				} else if(option.equals("-batch") && firstFile + 1 < args.length) {
+					batch = Integer.parseInt(args[firstFile+1]);
+					firstFile += 2;
+				} else if(option.equals("-progressive") && firstFile + 1 < args.length) {
+					progressiveSamples = Integer.parseInt(args[firstFile+1]);
+					firstFile += 2;
+				} else if(option.equals("-budget") && firstFile + 1 < args.length) {
+					timeBudget = Long.parseLong(args[firstFile+1]);
+					firstFile += 2;
+				} else if(option.equals("-bvh") && firstFile + 1 < args.length) {
+					String quality = args[firstFile+1];
+					if(quality.equals("lbvh")) {
+						BVH.QUALITY = BVH.LBVH;
+					} else if(quality.equals("binned")) {
+						BVH.QUALITY = BVH.BINNED;
+					} else if(quality.equals("sah")) {
+						BVH.QUALITY = BVH.SAH;
+					} else {
+						throw new IllegalArgumentException("BVH quality must be lbvh, binned or sah");
+					}
+					firstFile += 2;
+				} else if(option.equals("-animate")) {
+					animate = true;
+					firstFile ++;
+				} else if(option.equals("-wavefront")) {
+					wavefront = true;
+					firstFile ++;
+				} else if(option.equals("-dom")) {
+					dom = true;
+					firstFile ++;
+				} else if(option.equals("-stream")) {
+					stream = true;
+					firstFile ++;
+				} else if(option.equals("-offHeap")) {
+					offHeap = true;
+					firstFile ++;
+				} else if(option.equals("-adaptive") && firstFile + 1 < args.length) {
+					adaptiveSamples = Integer.parseInt(args[firstFile+1]);
+					firstFile += 2;
+				} else {
+					throw new IllegalArgumentException("Unknown option: " + option);
+				}
+			}
+			if(stream && adaptiveSamples > 0) {
+				throw new IllegalArgumentException("-adaptive cannot be used with -stream");
+			}
+			if(coordinatorPort >= 0 && (stream || adaptiveSamples > 0)) {
+				throw new IllegalArgumentException("-adaptive and -stream cannot be used with -coordinator");
+			}
+			if(progressiveSamples > 0 && (stream || adaptiveSamples > 0 || coordinatorPort >= 0 || batch > 0)) {
+				throw new IllegalArgumentException("-progressive cannot be used with -adaptive, -stream, -coordinator or -batch");
+			}
+			if(timeBudget > 0 && progressiveSamples <= 0) {
+				throw new IllegalArgumentException("-budget requires -progressive");
+			}
+			if(batch > 0 && (stream || coordinatorPort >= 0)) {
+				throw new IllegalArgumentException("-stream and -coordinator cannot be used with -batch");
+			}
+			if(animate && (batch > 0 || cache != null)) {
+				throw new IllegalArgumentException("-animate cannot be used with -batch or -cache");
+			}
+			if(spawnWorkers > 0 && coordinatorPort < 0) {
+				throw new IllegalArgumentException("-spawn requires -coordinator");
+			}
+		} catch(Exception e) {
+			System.out.println(e);
+			firstFile = args.length;
+			worker = null;
+		}
+		
+		if(worker != null) {
+			runWorker(worker, threads);
+			return;
+		}
+		if(args.length - firstFile < 1) {
+			System.out.println("usage: Main [-threads n] [-tileSize n] [-pixelOrder order] [-tileOrder order] [-adaptive maxSamples] [-offHeap] [-stream] [-cache dir] [-dom] [-packet n] [-wavefront] " +
+					"[-coordinator port [-spawn n]] [-batch maxScenesInFlight] [-progressive maxSamples [-budget ms]] [-bvh lbvh|binned|sah] sceneFilenames");
+			System.out.println("       Main [options] -animate sceneFilename frameFilenames");
+			System.out.println("       Main [-threads n] -worker host:port");
+			System.out.println("orders: scanline, column, tiled, morton, hilbert");
+			return;
+		}
+		
+		if(batch > 0) {
+			BatchRenderer renderer = new BatchRenderer();
+			renderer.threads = threads;
+			renderer.maxScenesInFlight = batch;
+			renderer.tileSize = tileSize;
+			renderer.pixelOrder = pixelOrder;
+			renderer.tileOrder = tileOrder;
+			renderer.packetSize = packetSize;
+			renderer.wavefront = wavefront;
+			renderer.offHeapImages = offHeap;
+			renderer.adaptiveSamples = adaptiveSamples;
+			renderer.cache = cache;
+			renderer.dom = dom;
+			try {
+				renderer.render(Arrays.asList(args).subList(firstFile, args.length));
+			} catch(InterruptedException e) {
+				System.out.println(e);
+			}
 			return;
 		}
+		
+		RenderCoordinator coordinator = null;
+		List<Process> workers = new ArrayList<Process>();
+		if(coordinatorPort >= 0) {
+			try {
+				coordinator = new RenderCoordinator(coordinatorPort);
+				System.out.println("Waiting for workers on port " + coordinator.getPort());
+				for(int i = 0; i < spawnWorkers; i++) {
+					workers.add(spawnWorker(coordinator.getPort(), Math.max(1, threads / spawnWorkers)));
+				}
+			} catch(Exception e) {
+				System.out.println("Problem starting coordinator");
+				System.out.println(e);
+				System.exit(1);
+			}
+		}
 
-        for (int i = 0; i < args.length; i++) {
+        ExecutorService saver = Executors.newSingleThreadExecutor();
+        Animation animation = null;
+        for (int i = firstFile; i < args.length; i++) {
             String filename = args[i];
-            System.out.println("Reading scene: " + filename);
-            Scene scene = loadScene(filename);
+            Scene scene = null;
+            long parseTime = 0;
+            if(animate) {
+                // the first file is the scene, the others frames applied to it
+                if(animation == null) {
+                    System.out.println("Reading scene: " + filename);
+                    animation = loadAnimation(filename, dom);
+                    continue;
+                }
+                System.out.println("Applying frame: " + filename);
+                long start = System.nanoTime();
+                applyFrame(animation, filename);
+                parseTime = System.nanoTime() - start;
+                scene = animation.scene;
+            } else {
+                System.out.println("Reading scene: " + filename);
+                long start = System.nanoTime();
+                scene = loadScene(filename, cache, dom);
+                parseTime = System.nanoTime() - start;
+            }
 
             RayTracer rayTracer = new RayTracer(scene);
+            rayTracer.threads = threads;
+            rayTracer.tileSize = tileSize;
+            rayTracer.pixelOrder = pixelOrder;
+            rayTracer.tileOrder = tileOrder;
+            rayTracer.offHeapImages = offHeap;
+            rayTracer.packetSize = packetSize;
+            rayTracer.wavefront = wavefront;
+            rayTracer.statistics.parseTime = parseTime - scene.buildTime;
+            rayTracer.statistics.buildTime = scene.buildTime;
+            if(stream) {
+                renderStreaming(rayTracer, filename);
+                continue;
+            }
             System.out.println("Rendering...");
-            ColorImage image = rayTracer.render();
-            ColorImage imageSuperSampled = rayTracer.renderSuperSampled(3);
+            ColorImage image = null;
+            ColorImage imageSuperSampled = null;
+            if(adaptiveSamples > 0) {
+                image = rayTracer.render();
+                imageSuperSampled = rayTracer.renderAdaptive(adaptiveSamples, image);
+            } else if(progressiveSamples > 0) {
+                // keep the one sample per pixel pass as the first image
+                final ColorImage[] centers = new ColorImage[1];
+                imageSuperSampled = rayTracer.renderProgressive(progressiveSamples, timeBudget,
+                        new RayTracer.ProgressListener() {
+                    public void passCompleted(ColorImage image, int pass, int samplesPerPixel) {
+                        System.out.println("Pass " + pass + ": " + samplesPerPixel + " samples per pixel");
+                        if(samplesPerPixel == 1) {
+                            centers[0] = new ColorImage(image);
+                        }
+                    }
+                });
+                image = centers[0] != null ? centers[0] : imageSuperSampled;
+            } else if(coordinator != null) {
+                try {
+                    ColorImage[] images = coordinator.render(rayTracer, 3);
+                    image = images[0];
+                    imageSuperSampled = images[1];
+                } catch(Exception e) {
+                    System.out.println("Problem rendering scene: " + filename);
+                    System.out.println(e);
+                    System.exit(1);
+                }
+            } else {
+                ColorImage[] images = rayTracer.renderWithSuperSampled(3);
+                image = images[0];
+                imageSuperSampled = images[1];
+            }
             
-            String imageName = filename + ".png";
-            System.out.println("Saving image: " + imageName);
-            saveImage(imageName,image);
-            String imageSupersampledName = filename + "supersampled.png";
-            System.out.println("Saving image: " + imageSupersampledName);
-            saveImage(imageSupersampledName,imageSuperSampled);            
+            // save in the background while the next scene is parsed and rendered
+            saveImages(saver, filename, image, imageSuperSampled, rayTracer.statistics);
+        }
+        
+        saver.shutdown();
+        try {
+            if(coordinator != null) {
+                coordinator.close();
+                for(Process process : workers) {
+                    process.waitFor();
+                }
+            }
+            saver.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch(Exception e) {
+            System.out.println(e);
         }
 	}
 
+	/**
+	 * Render bands for the coordinator at host:port until it is done.
+	 */
+	protected static void runWorker(String address, int threads) {
+		int colon = address.lastIndexOf(':');
+		try {
+			RenderWorker worker = new RenderWorker();
+			worker.threads = threads;
+			worker.run(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+		} catch(Exception e) {
+			System.out.println("Problem running worker for: " + address);
+			System.out.println(e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Start a worker JVM on this host for the coordinator on the given port.
+	 */
+	protected static Process spawnWorker(int port, int threads) throws Exception {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				"Main", "-threads", String.valueOf(threads), "-worker", "localhost:" + port);
+		builder.inheritIO();
+		return builder.start();
+	}
+
+	/**
+	 * Save the images of a scene on the saver thread, then print the statistics.
+	 */
+	protected static void saveImages(ExecutorService saver, final String filename,
+			final ColorImage image, final ColorImage imageSuperSampled,
+			final RenderStatistics statistics) {
+		saver.execute(new Runnable() {
+			public void run() {
+				long start = System.nanoTime();
+				String imageName = filename + ".png";
+				System.out.println("Saving image: " + imageName);
+				saveImage(imageName,image);
+				String imageSupersampledName = filename + "supersampled.png";
+				System.out.println("Saving image: " + imageSupersampledName);
+				saveImage(imageSupersampledName,imageSuperSampled);
+				statistics.saveTime = System.nanoTime() - start;
+				System.out.println("Statistics for " + filename + ":" + 
+						System.lineSeparator() + statistics);
+			}
+		});
+	}
+
+	/**
+	 * Render a scene writing its images while rendering, then print the statistics.
+	 */
+	protected static void renderStreaming(RayTracer rayTracer, String filename) {
+		String imageName = filename + ".png";
+		String imageSupersampledName = filename + "supersampled.png";
+		System.out.println("Rendering to: " + imageName + ", " + imageSupersampledName);
+		RenderPhaseEvent event = RenderPhaseEvent.start("save", filename);
+		try {
+			int xResolution = rayTracer.scene.camera.xResolution;
+			int yResolution = rayTracer.scene.camera.yResolution;
+			ImageOutput output = ImageOutput.open(imageName, xResolution, yResolution);
+			ImageOutput outputSuperSampled = ImageOutput.open(imageSupersampledName, xResolution, yResolution);
+			rayTracer.renderStreaming(3, output, outputSuperSampled);
+			event.commit();
+		} catch(Exception e) {
+			System.out.println("Problem saving image: " + imageName);
+			System.out.println(e);
+            System.exit(1);
+		}
+		System.out.println("Statistics for " + filename + ":" + 
+				System.lineSeparator() + rayTracer.statistics);
+	}
+
 	/**
 	 * Save an image to disk.
 	 */
 	protected static void saveImage(String filename, ColorImage image) {
+		RenderPhaseEvent event = RenderPhaseEvent.start("save", filename);
 		try {
 			FileFormat.saveImage(filename, image);
+			event.commit();
 		} catch(Exception e) {
 			System.out.println("Problem saving image: " + filename);
 			System.out.println(e);
@@ -47,17 +380,83 @@ public class Main {
 	}
 	
 	/**
-	 * Load a scene from file.
+	 * Load a scene from file, or from the cache if given and up to date.
+	 * Scenes parsed from file are then added to the cache.
+	 * Files are read with the streaming parser, or the DOM one if dom is set.
 	 */
-	protected static Scene loadScene(String filename) {
-		Scene scene = null;
+	protected static Scene loadScene(String filename, SceneCache cache, boolean dom) {
 		try {
-            FileFormat p = new FileFormat();
-            scene = p.parseXMLScene(filename);
+			return readScene(filename, cache, dom);
 		} catch(Exception e) {
 			System.out.println("Problem parsing file: " + filename);
             System.out.println(e);
 			System.exit(1);
+			return null;
+		}
+	}
+	
+	/**
+	 * Load a scene to animate from file, with the streaming parser or the DOM
+	 * one if dom is set.
+	 */
+	protected static Animation loadAnimation(String filename, boolean dom) {
+		RenderPhaseEvent event = RenderPhaseEvent.start("parse", filename);
+		try {
+			Animation animation = new Animation(dom ? new FileFormat() : new StaxFileFormat(), filename);
+			event.commit();
+			return animation;
+		} catch(Exception e) {
+			System.out.println("Problem parsing file: " + filename);
+			System.out.println(e);
+			System.exit(1);
+			return null;
+		}
+	}
+	
+	/**
+	 * Apply the animation frame in the given file.
+	 */
+	protected static void applyFrame(Animation animation, String filename) {
+		RenderPhaseEvent event = RenderPhaseEvent.start("parse", filename);
+		try {
+			animation.applyFrame(filename);
+			event.commit();
+		} catch(Exception e) {
+			System.out.println("Problem parsing file: " + filename);
+			System.out.println(e);
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Load a scene as loadScene, but throw if the file cannot be parsed.
+	 * Cache problems are reported and otherwise ignored.
+	 */
+	protected static Scene readScene(String filename, SceneCache cache, boolean dom) throws Exception {
+		Scene scene = null;
+		RenderPhaseEvent event = RenderPhaseEvent.start("parse", filename);
+		if(cache != null) {
+			try {
+				scene = cache.load(filename);
+			} catch(Exception e) {
+				System.out.println("Problem reading cached scene: " + filename);
+				System.out.println(e);
+			}
+			if(scene != null) {
+				event.commit();
+				return scene;
+			}
+		}
+        FileFormat p = dom ? new FileFormat() : new StaxFileFormat();
+        scene = p.parseXMLScene(filename);
+        event.commit();
+		if(cache != null) {
+			try {
+				cache.save(filename, scene);
+			} catch(Exception e) {
+				System.out.println("Problem caching scene: " + filename);
+				System.out.println(e);
+			}
 		}
 		return scene;
 	}
@@ -24,4 +24,25 @@ public abstract class Material {
 	 * @param I View direction  (point towards the surface).
 	 */
 	public abstract Color computeReflection(Vec3 N, Vec3 I);
+	
+	/**
+	 * Evaluate material for direct lighting storing the result in color.
+	 * Subclasses should override this to avoid allocating.
+	 * @param N Surface normal.
+	 * @param L Light direction (point towards the light).
+	 * @param I View direction  (point towards the surface).
+	 */
+	public void computeDirectLighting(Vec3 N, Vec3 L, Vec3 I, Color color) {
+		color.set(computeDirectLighting(N,L,I));
+	}
+	
+	/**
+	 * Evaluate material mirror reflection storing the result in color.
+	 * Subclasses should override this to avoid allocating.
+	 * @param N Surface normal.
+	 * @param I View direction  (point towards the surface).
+	 */
+	public void computeReflection(Vec3 N, Vec3 I, Color color) {
+		color.set(computeReflection(N,I));
+	}
 }
\ No newline at end of file
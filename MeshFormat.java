@@ -0,0 +1,527 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Streaming importers for Wavefront OBJ and binary PLY meshes.
+ * 
+ * Files are read in large chunks through a FileChannel and parsed in place,
+ * filling the flat position and index arrays of a TriangleMesh directly, so that no
+ * object is created per vertex or per face. Polygons are triangulated as fans.
+ * Only positions and faces are imported: normals, texture coordinates, groups and
+ * materials are ignored.
+ * 
+ * @author fabio
+ */
+public class MeshFormat {
+	/**
+	 * Size of the read buffer.
+	 */
+	private static final int	BUFFER_SIZE = 1 << 20;
+	
+	/**
+	 * Exact powers of ten used by the number parser.
+	 */
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	
+	/**
+	 * PLY property types and their sizes in bytes.
+	 */
+	private static final String[] PLY_TYPES = {
+		"char", "uchar", "short", "ushort", "int", "uint", "float", "double" };
+	private static final String[] PLY_TYPE_ALIASES = {
+		"int8", "uint8", "int16", "uint16", "int32", "uint32", "float32", "float64" };
+	private static final int[] PLY_TYPE_SIZES = { 1, 1, 2, 2, 4, 4, 4, 8 };
+	
+	/**
+	 * Load the mesh in filename into the positions and indices of mesh.
+	 * The format is chosen from the file extension (.obj or .ply).
+	 */
+	public static void load(String filename, TriangleMesh mesh) throws IOException {
+		String name = filename.toLowerCase();
+		if(name.endsWith(".obj")) {
+			loadOBJ(filename, mesh);
+		} else if(name.endsWith(".ply")) {
+			loadPLY(filename, mesh);
+		} else {
+			throw new IOException("Unknown mesh format: " + filename);
+		}
+	}
+	
+	/**
+	 * Load a Wavefront OBJ file.
+	 */
+	public static void loadOBJ(String filename, TriangleMesh mesh) throws IOException {
+		DoubleList positions = new DoubleList();
+		IntList indices = new IntList();
+		ChunkReader reader = new ChunkReader(filename);
+		try {
+			while(reader.nextLine()) {
+				byte[] line = reader.buffer.array();
+				int pos = skipSpaces(line, reader.lineStart, reader.lineEnd);
+				int end = reader.lineEnd;
+				if(end - pos < 2 || !isSpace(line[pos+1])) {
+					continue;
+				}
+				if(line[pos] == 'v') {
+					for(int c = 0; c < 3; c ++) {
+						pos = skipSpaces(line, pos+1, end);
+						int tokenEnd = tokenEnd(line, pos, end);
+						if(pos == tokenEnd) {
+							throw new IOException("Expected vertex coordinate at line " + reader.lineNumber);
+						}
+						positions.add(parseDouble(line, pos, tokenEnd));
+						pos = tokenEnd;
+					}
+				} else if(line[pos] == 'f') {
+					int numVertices = positions.size / 3;
+					int first = -1, previous = -1, count = 0;
+					pos = skipSpaces(line, pos+1, end);
+					while(pos < end) {
+						int tokenEnd = tokenEnd(line, pos, end);
+						// only the position index of v/vt/vn is used
+						int slash = pos;
+						while(slash < tokenEnd && line[slash] != '/') slash ++;
+						int index = (int)parseDouble(line, pos, slash);
+						index = index < 0 ? numVertices + index : index - 1;
+						if(index < 0 || index >= numVertices) {
+							throw new IOException("Vertex index out of range at line " + reader.lineNumber);
+						}
+						if(count == 0) {
+							first = index;
+						} else if(count >= 2) {
+							indices.add(first);
+							indices.add(previous);
+							indices.add(index);
+						}
+						previous = index;
+						count ++;
+						pos = skipSpaces(line, tokenEnd, end);
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		mesh.positions = positions.toArray();
+		mesh.indices = indices.toArray();
+	}
+	
+	/**
+	 * Load a binary (little or big endian) PLY file.
+	 * Vertices need x, y, z properties and faces a vertex_indices list.
+	 */
+	public static void loadPLY(String filename, TriangleMesh mesh) throws IOException {
+		ChunkReader reader = new ChunkReader(filename);
+		try {
+			// parse the header
+			ArrayList<PLYElement> elements = new ArrayList<PLYElement>();
+			PLYElement element = null;
+			boolean magic = false;
+			while(true) {
+				if(!reader.nextLine()) {
+					throw new IOException("Unexpected end of PLY header in " + filename);
+				}
+				String[] tokens = new String(reader.buffer.array(), reader.lineStart,
+						reader.lineEnd - reader.lineStart, StandardCharsets.US_ASCII).trim().split("\\s+");
+				if(!magic) {
+					if(!tokens[0].equals("ply")) {
+						throw new IOException("Not a PLY file: " + filename);
+					}
+					magic = true;
+				} else if(tokens[0].equals("format")) {
+					if(tokens.length < 2) {
+						throw new IOException("Bad PLY format line in " + filename);
+					} else if(tokens[1].equals("binary_little_endian")) {
+						reader.buffer.order(ByteOrder.LITTLE_ENDIAN);
+					} else if(tokens[1].equals("binary_big_endian")) {
+						reader.buffer.order(ByteOrder.BIG_ENDIAN);
+					} else {
+						throw new IOException("Only binary PLY files are supported: " + filename);
+					}
+				} else if(tokens[0].equals("element") && tokens.length == 3) {
+					element = new PLYElement(tokens[1], Long.parseLong(tokens[2]));
+					elements.add(element);
+				} else if(tokens[0].equals("property") && element != null) {
+					if(tokens[1].equals("list") && tokens.length == 5) {
+						element.addProperty(tokens[4], plyType(tokens[3]), plyType(tokens[2]));
+					} else if(tokens.length == 3) {
+						element.addProperty(tokens[2], plyType(tokens[1]), -1);
+					} else {
+						throw new IOException("Bad PLY property line in " + filename);
+					}
+				} else if(tokens[0].equals("end_header")) {
+					break;
+				}
+			}
+			
+			// read the body, skipping unknown elements and properties
+			DoubleList positions = new DoubleList();
+			IntList indices = new IntList();
+			int numVertices = 0;
+			int[] face = new int[16];
+			for(PLYElement e : elements) {
+				boolean isVertex = e.name.equals("vertex");
+				boolean isFace = e.name.equals("face");
+				int x = e.find("x"), y = e.find("y"), z = e.find("z");
+				int vertexIndices = e.find("vertex_indices");
+				if(vertexIndices < 0) {
+					vertexIndices = e.find("vertex_index");
+				}
+				if(isVertex && (x < 0 || y < 0 || z < 0)) {
+					throw new IOException("PLY vertices need x, y and z in " + filename);
+				}
+				if(isVertex) {
+					positions.reserve(3*e.count);
+				}
+				for(long r = 0; r < e.count; r ++) {
+					double vx = 0, vy = 0, vz = 0;
+					for(int p = 0; p < e.numProperties; p ++) {
+						if(e.countTypes[p] < 0) {
+							double value = readPLY(reader, e.types[p]);
+							if(p == x) vx = value;
+							else if(p == y) vy = value;
+							else if(p == z) vz = value;
+						} else {
+							int n = (int)readPLY(reader, e.countTypes[p]);
+							if(isFace && p == vertexIndices) {
+								if(n > face.length) {
+									face = new int[n];
+								}
+								for(int k = 0; k < n; k ++) {
+									face[k] = (int)readPLY(reader, e.types[p]);
+									if(face[k] < 0 || face[k] >= numVertices) {
+										throw new IOException("Vertex index out of range in " + filename);
+									}
+								}
+								for(int k = 2; k < n; k ++) {
+									indices.add(face[0]);
+									indices.add(face[k-1]);
+									indices.add(face[k]);
+								}
+							} else {
+								reader.skip((long)n * PLY_TYPE_SIZES[e.types[p]]);
+							}
+						}
+					}
+					if(isVertex) {
+						positions.add(vx);
+						positions.add(vy);
+						positions.add(vz);
+					}
+				}
+				if(isVertex) {
+					numVertices = positions.size / 3;
+				}
+			}
+			mesh.positions = positions.toArray();
+			mesh.indices = indices.toArray();
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Read a binary PLY value of the given type.
+	 */
+	private static double readPLY(ChunkReader reader, int type) throws IOException {
+		ByteBuffer b = reader.require(PLY_TYPE_SIZES[type]);
+		switch(type) {
+		case 0: return b.get();
+		case 1: return b.get() & 0xff;
+		case 2: return b.getShort();
+		case 3: return b.getShort() & 0xffff;
+		case 4: return b.getInt();
+		case 5: return b.getInt() & 0xffffffffL;
+		case 6: return b.getFloat();
+		default: return b.getDouble();
+		}
+	}
+	
+	/**
+	 * Find the type code of a PLY type name.
+	 */
+	private static int plyType(String name) throws IOException {
+		for(int i = 0; i < PLY_TYPES.length; i ++) {
+			if(PLY_TYPES[i].equals(name) || PLY_TYPE_ALIASES[i].equals(name)) {
+				return i;
+			}
+		}
+		throw new IOException("Unknown PLY type: " + name);
+	}
+	
+	/**
+	 * Parse a decimal number in data[start,end).
+	 * Numbers whose digits fit in 53 bits (about 15 significant digits) and with
+	 * small exponents are converted without creating a String: the mantissa and
+	 * the power of ten are then exact doubles, so a single division or product
+	 * rounds correctly. Other numbers fall back to Double.parseDouble, so the
+	 * result is always the same as Double.parseDouble.
+	 */
+	static double parseDouble(byte[] data, int start, int end) throws IOException {
+		int i = start;
+		boolean negative = false;
+		if(i < end && (data[i] == '-' || data[i] == '+')) {
+			negative = data[i] == '-';
+			i ++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean any = false;
+		for(; i < end && data[i] >= '0' && data[i] <= '9'; i ++) {
+			mantissa = mantissa * 10 + (data[i] - '0');
+			if(mantissa != 0) digits ++;
+			any = true;
+		}
+		if(i < end && data[i] == '.') {
+			for(i ++; i < end && data[i] >= '0' && data[i] <= '9'; i ++) {
+				mantissa = mantissa * 10 + (data[i] - '0');
+				if(mantissa != 0) digits ++;
+				exponent --;
+				any = true;
+			}
+		}
+		if(any && i < end && (data[i] == 'e' || data[i] == 'E')) {
+			int j = i + 1;
+			boolean negativeExponent = false;
+			if(j < end && (data[j] == '-' || data[j] == '+')) {
+				negativeExponent = data[j] == '-';
+				j ++;
+			}
+			int e = 0;
+			int exponentStart = j;
+			for(; j < end && data[j] >= '0' && data[j] <= '9' && e < 10000; j ++) {
+				e = e * 10 + (data[j] - '0');
+			}
+			if(j > exponentStart) {
+				exponent += negativeExponent ? -e : e;
+				i = j;
+			}
+		}
+		if(any && i == end && digits <= 18 && mantissa < 1L << 53 && exponent >= -22 && exponent <= 22) {
+			double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] :
+				mantissa * POWERS_OF_TEN[exponent];
+			return negative ? -value : value;
+		}
+		String token = new String(data, start, end - start, StandardCharsets.US_ASCII);
+		try {
+			return Double.parseDouble(token);
+		} catch(NumberFormatException e) {
+			throw new IOException("Expected number: " + token);
+		}
+	}
+	
+	private static boolean isSpace(byte c) {
+		return c == ' ' || c == '\t' || c == '\r';
+	}
+	
+	private static int skipSpaces(byte[] data, int pos, int end) {
+		while(pos < end && isSpace(data[pos])) pos ++;
+		return pos;
+	}
+	
+	private static int tokenEnd(byte[] data, int pos, int end) {
+		while(pos < end && !isSpace(data[pos])) pos ++;
+		return pos;
+	}
+	
+	/**
+	 * Reads a file in large chunks, either by lines or as binary values.
+	 */
+	private static class ChunkReader {
+		FileChannel			channel;
+		ByteBuffer			buffer;
+		boolean				eof;
+		int					lineStart;
+		int					lineEnd;
+		long				lineNumber;
+		
+		ChunkReader(String filename) throws IOException {
+			channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+			buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			buffer.flip();
+			eof = false;
+			lineNumber = 0;
+		}
+		
+		/**
+		 * Read more data after the unread bytes, growing the buffer if full.
+		 */
+		void fill() throws IOException {
+			if(buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+				ByteBuffer nBuffer = ByteBuffer.allocate(2*buffer.capacity()).order(buffer.order());
+				nBuffer.put(buffer);
+				buffer = nBuffer;
+			} else {
+				buffer.compact();
+			}
+			if(channel.read(buffer) < 0) {
+				eof = true;
+			}
+			buffer.flip();
+		}
+		
+		/**
+		 * Advance to the next line, returning false at the end of the file.
+		 * The line is stored in buffer.array() in [lineStart,lineEnd).
+		 */
+		boolean nextLine() throws IOException {
+			int scanned = 0;
+			while(true) {
+				byte[] data = buffer.array();
+				int start = buffer.position();
+				int limit = buffer.limit();
+				for(int i = start + scanned; i < limit; i ++) {
+					if(data[i] == '\n') {
+						lineStart = start;
+						lineEnd = i;
+						lineNumber ++;
+						buffer.position(i+1);
+						return true;
+					}
+				}
+				scanned = limit - start;
+				if(eof) {
+					if(scanned == 0) {
+						return false;
+					}
+					lineStart = start;
+					lineEnd = limit;
+					lineNumber ++;
+					buffer.position(limit);
+					return true;
+				}
+				fill();
+			}
+		}
+		
+		/**
+		 * Make sure n bytes can be read from the buffer.
+		 */
+		ByteBuffer require(int n) throws IOException {
+			while(buffer.remaining() < n) {
+				if(eof) {
+					throw new IOException("Unexpected end of file");
+				}
+				fill();
+			}
+			return buffer;
+		}
+		
+		/**
+		 * Skip n bytes.
+		 */
+		void skip(long n) throws IOException {
+			while(n > 0) {
+				if(buffer.remaining() == 0) {
+					require(1);
+				}
+				int step = (int)Math.min(n, buffer.remaining());
+				buffer.position(buffer.position() + step);
+				n -= step;
+			}
+		}
+		
+		void close() throws IOException {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Element declared in a PLY header.
+	 */
+	private static class PLYElement {
+		String				name;
+		long				count;
+		int					numProperties = 0;
+		String[]			names = new String[4];
+		int[]				types = new int[4];
+		int[]				countTypes = new int[4];
+		
+		PLYElement(String nName, long nCount) {
+			name = nName;
+			count = nCount;
+		}
+		
+		/**
+		 * Add a property, countType is -1 for scalar properties.
+		 */
+		void addProperty(String nName, int type, int countType) {
+			if(numProperties == names.length) {
+				names = Arrays.copyOf(names, 2*numProperties);
+				types = Arrays.copyOf(types, 2*numProperties);
+				countTypes = Arrays.copyOf(countTypes, 2*numProperties);
+			}
+			names[numProperties] = nName;
+			types[numProperties] = type;
+			countTypes[numProperties] = countType;
+			numProperties ++;
+		}
+		
+		int find(String nName) {
+			for(int i = 0; i < numProperties; i ++) {
+				if(names[i].equals(nName)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+	
+	/**
+	 * Growable array of doubles.
+	 */
+	static class DoubleList {
+		double[]			data = new double[1024];
+		int					size = 0;
+		
+		void add(double v) {
+			if(size == data.length) {
+				data = Arrays.copyOf(data, 2*size);
+			}
+			data[size++] = v;
+		}
+		
+		void reserve(long n) throws IOException {
+			if(size + n > Integer.MAX_VALUE - 8) {
+				throw new IOException("Mesh too large");
+			}
+			if(size + n > data.length) {
+				data = Arrays.copyOf(data, (int)(size + n));
+			}
+		}
+		
+		double[] toArray() {
+			return Arrays.copyOf(data, size);
+		}
+	}
+	
+	/**
+	 * Growable array of ints.
+	 */
+	static class IntList {
+		int[]				data = new int[1024];
+		int					size = 0;
+		
+		void add(int v) {
+			if(size == data.length) {
+				data = Arrays.copyOf(data, 2*size);
+			}
+			data[size++] = v;
+		}
+		
+		int[] toArray() {
+			return Arrays.copyOf(data, size);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * Lane loops of the packet tests (see RayPacket): the box test of the BVH
+ * traversal and the sphere, triangle and mesh triangle tests.
+ *
+ * ScalarPacketKernels loops over the lanes one at a time. VectorPacketKernels
+ * runs several lanes per instruction with the incubating vector API
+ * (jdk.incubator.vector); it is kept in the separate source directory vector/,
+ * which is compiled and run with the module added:
+ *   javac -d classes *.java
+ *   javac --add-modules jdk.incubator.vector -cp classes -d classes vector/*.java
+ *   java --add-modules jdk.incubator.vector -cp classes Main ...
+ * The vector kernels are loaded by name the first time packets are used, and
+ * the scalar kernels are used instead when they were not compiled or the
+ * module is not present. Both compute every lane with the same operations in
+ * the same order, so they find the same hits at the same distances.
+ *
+ * Primitive tests return the lanes that hit the primitive within (tmin,tmax)
+ * as a bit mask, with the distance of each hit in packet.t, and the mesh test
+ * also its barycentric coordinates in packet.u and packet.w; the caller then
+ * records the hits. Kernels may overwrite these arrays for the other lanes,
+ * and may read and write the padding lanes of the packet arrays (see
+ * RayPacket.LANE_PADDING) but ignore their results.
+ *
+ * @author fabio
+ */
+interface PacketKernels {
+	/**
+	 * True if any lane hits the box at offset b of the flattened bounds
+	 * (minx, miny, minz, maxx, maxy, maxz) within its current range.
+	 */
+	boolean intersectBox(RayPacket packet, double[] bounds, int b);
+
+	/**
+	 * Lanes that hit the sphere of center (cx,cy,cz) and squared radius rr.
+	 */
+	int intersectSphere(RayPacket packet, double cx, double cy, double cz, double rr);
+
+	/**
+	 * Lanes that hit the triangle (v0,v1,v2) of the given normal, where nv0 is
+	 * normal . v0, with the plane and edge tests of Triangle.
+	 */
+	int intersectTriangle(RayPacket packet, Vec3 normal, double nv0, Vec3 v0, Vec3 v1, Vec3 v2);
+
+	/**
+	 * Lanes that hit the mesh triangle with edges at offset e of edges and first
+	 * vertex at offset v of positions, with the Moller-Trumbore test of TriangleMesh.
+	 */
+	int intersectMeshTriangle(RayPacket packet, double[] edges, int e, double[] positions, int v);
+
+	/**
+	 * Load the vector kernels if they are available, and the scalar ones otherwise.
+	 */
+	static PacketKernels load() {
+		PacketKernels kernels = loadVector();
+		return kernels != null ? kernels : new ScalarPacketKernels();
+	}
+
+	/**
+	 * Load the vector kernels, or return null if they were not compiled or the
+	 * vector module is not present.
+	 */
+	static PacketKernels loadVector() {
+		try {
+			return (PacketKernels)Class.forName("VectorPacketKernels").getDeclaredConstructor().newInstance();
+		} catch(ReflectiveOperationException e) {
+			return null;
+		} catch(LinkageError e) {
+			return null;
+		}
+	}
+}
@@ -33,6 +33,30 @@ public class Phong extends Material {
 		}
 	}
 
+	/**
+	 * Evaluate material for direct lighting storing the result in color.
+	 * @param N Surface normal.
+	 * @param L Light direction (point towards the light).
+	 * @param I View direction  (point towards the surface).
+	 */
+	public void computeDirectLighting(Vec3 N, Vec3 L, Vec3 I, Color color) {
+		double NdL = Math.max(N.dot(L),0);
+		if(NdL > 0) {
+			// R = reflect(-L, N) computed in place
+			double s = -2*(N.x*-L.x + N.y*-L.y + N.z*-L.z);
+			double Rx = N.x * s + -L.x;
+			double Ry = N.y * s + -L.y;
+			double Rz = N.z * s + -L.z;
+			double RdV = Math.max(0,-(Rx*I.x + Ry*I.y + Rz*I.z));
+			double specularScale = Math.pow(RdV,exponent);
+			color.set(diffuse.r * NdL + specular.r * specularScale,
+					  diffuse.g * NdL + specular.g * specularScale,
+					  diffuse.b * NdL + specular.b * specularScale);
+		} else {
+			color.set(0,0,0);
+		}
+	}
+
 	/**
 	 * Evaluate material mirror reflection.
 	 * @param N Surface normal.
@@ -41,6 +65,15 @@ public class Phong extends Material {
 	public Color computeReflection(Vec3 N, Vec3 I) {
 		return new Color(0,0,0);
 	}
+
+	/**
+	 * Evaluate material mirror reflection storing the result in color.
+	 * @param N Surface normal.
+	 * @param I View direction  (point towards the surface).
+	 */
+	public void computeReflection(Vec3 N, Vec3 I, Color color) {
+		color.set(0,0,0);
+	}
 	
 	/**
 	 * True if this material has mirror reflections.
@@ -0,0 +1,171 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Orders in which the render loops visit the pixels of a tile and the tiles of
+ * an image (see RayTracer.pixelOrder and RayTracer.tileOrder).
+ *
+ * SCANLINE visits rows in order, as images are stored, while COLUMN visits
+ * columns in order, striding a row through the image at each pixel. TILED
+ * visits blocks of BLOCK x BLOCK pixels in scanline order, and each block in
+ * scanline order. MORTON follows the Z-order curve and HILBERT the Hilbert
+ * curve, which keep consecutive pixels close in both directions, so that
+ * consecutive rays visit the same nodes and primitives; the Hilbert curve
+ * moves to a neighbour at every step, the Z-order curve jumps at block edges.
+ * Curves are laid over the enclosing power of two square and clipped.
+ *
+ * An order of a w x h grid is an array of positions, packed as (y << 16) | x
+ * (see x and y). Orders are computed once per grid size and shared.
+ *
+ * @author fabio
+ */
+public class PixelOrder {
+	public static final int		SCANLINE = 0, COLUMN = 1, TILED = 2, MORTON = 3, HILBERT = 4;
+	/**
+	 * Names of the orders, as given on the command line.
+	 */
+	public static final String[] NAMES = { "scanline", "column", "tiled", "morton", "hilbert" };
+	/**
+	 * Size in pixels of the blocks of the tiled order.
+	 */
+	public static final int		BLOCK = 4;
+
+	/**
+	 * Orders computed so far, by order and grid size.
+	 */
+	private static final ConcurrentHashMap<Long,int[]> orders = new ConcurrentHashMap<Long,int[]>();
+
+	/**
+	 * Get the order with the given name.
+	 */
+	public static int parse(String name) {
+		for(int order = 0; order < NAMES.length; order ++) {
+			if(NAMES[order].equals(name)) {
+				return order;
+			}
+		}
+		throw new IllegalArgumentException("Unknown pixel order: " + name);
+	}
+
+	/**
+	 * Get the positions of a w x h grid in the given order.
+	 * The array is shared and must not be modified.
+	 */
+	public static int[] get(int order, int w, int h) {
+		if(w > 0xffff || h > 0xffff) {
+			throw new IllegalArgumentException("Grid too large for a pixel order: " + w + "x" + h);
+		}
+		Long key = ((long)order << 32) | ((long)w << 16) | h;
+		int[] positions = orders.get(key);
+		if(positions == null) {
+			positions = compute(order, w, h);
+			orders.put(key, positions);
+		}
+		return positions;
+	}
+
+	/**
+	 * Column of a position.
+	 */
+	public static int x(int position) {
+		return position & 0xffff;
+	}
+
+	/**
+	 * Row of a position.
+	 */
+	public static int y(int position) {
+		return position >>> 16;
+	}
+
+	private static int[] compute(int order, int w, int h) {
+		int[] positions = new int[w*h];
+		int n = 0;
+		switch(order) {
+		case SCANLINE:
+			for(int y = 0; y < h; y ++) {
+				for(int x = 0; x < w; x ++) {
+					positions[n++] = (y << 16) | x;
+				}
+			}
+			break;
+		case COLUMN:
+			for(int x = 0; x < w; x ++) {
+				for(int y = 0; y < h; y ++) {
+					positions[n++] = (y << 16) | x;
+				}
+			}
+			break;
+		case TILED:
+			for(int by = 0; by < h; by += BLOCK) {
+				for(int bx = 0; bx < w; bx += BLOCK) {
+					for(int y = by; y < Math.min(by + BLOCK, h); y ++) {
+						for(int x = bx; x < Math.min(bx + BLOCK, w); x ++) {
+							positions[n++] = (y << 16) | x;
+						}
+					}
+				}
+			}
+			break;
+		case MORTON:
+		case HILBERT:
+			int size = Integer.highestOneBit(Math.max(Math.max(w, h), 1));
+			if(size < Math.max(w, h)) {
+				size *= 2;
+			}
+			for(long d = 0; d < (long)size*size; d ++) {
+				int p = order == MORTON ? mortonPosition((int)d) : hilbertPosition((int)d, size);
+				if(x(p) < w && y(p) < h) {
+					positions[n++] = p;
+				}
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown pixel order: " + order);
+		}
+		return positions;
+	}
+
+	/**
+	 * Position of the d-th point of the Z-order curve: x and y are the even
+	 * and odd bits of d.
+	 */
+	private static int mortonPosition(int d) {
+		return (compactBits(d >>> 1) << 16) | compactBits(d);
+	}
+
+	/**
+	 * Gather the even bits of v in its low half.
+	 */
+	private static int compactBits(int v) {
+		v &= 0x55555555;
+		v = (v | (v >>> 1)) & 0x33333333;
+		v = (v | (v >>> 2)) & 0x0f0f0f0f;
+		v = (v | (v >>> 4)) & 0x00ff00ff;
+		v = (v | (v >>> 8)) & 0x0000ffff;
+		return v;
+	}
+
+	/**
+	 * Position of the d-th point of the Hilbert curve over a size x size grid
+	 * (size a power of two), built up one quadrant level at a time.
+	 */
+	private static int hilbertPosition(int d, int size) {
+		int x = 0, y = 0;
+		for(int s = 1; s < size; s *= 2) {
+			int rx = 1 & (d >>> 1);
+			int ry = 1 & (d ^ rx);
+			// rotate the quadrant so that the curves of the quadrants connect
+			if(ry == 0) {
+				if(rx == 1) {
+					x = s-1 - x;
+					y = s-1 - y;
+				}
+				int t = x; x = y; y = t;
+			}
+			x += s*rx;
+			y += s*ry;
+			d >>>= 2;
+		}
+		return (y << 16) | x;
+	}
+}
@@ -0,0 +1,222 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG encoder that compresses bands of rows in parallel.
+ * 
+ * Each band of rows is filtered and deflated by its own Deflater and flushed on a
+ * byte boundary, so that the compressed bands concatenate into a single zlib
+ * stream (the approach of pigz). The Adler-32 checksums of the bands are combined
+ * into the stream checksum. Rows are given top to bottom as packed RGB ints and
+ * writeRows can be called repeatedly, so images can also be streamed band by band.
+ * 
+ * @author fabio
+ */
+public class PngWriter {
+	/**
+	 * Number of rows compressed by each parallel task.
+	 */
+	public static int			BAND_ROWS = 32;
+	
+	/**
+	 * Output stream.
+	 */
+	private DataOutputStream	out;
+	/**
+	 * Image size.
+	 */
+	private int					width;
+	private int					height;
+	/**
+	 * Compression level (see Deflater).
+	 */
+	private int					level;
+	/**
+	 * Rows written so far.
+	 */
+	private int					rowsWritten;
+	/**
+	 * Checksum of the uncompressed stream written so far.
+	 */
+	private long				adler;
+	
+	/**
+	 * Start a PNG image of the given size on out, writing the header.
+	 */
+	public PngWriter(OutputStream nOut, int nWidth, int nHeight, int nLevel) throws IOException {
+		out = new DataOutputStream(nOut);
+		width = nWidth;
+		height = nHeight;
+		level = nLevel;
+		rowsWritten = 0;
+		adler = 1;
+		
+		out.write(new byte[] { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' });
+		byte[] header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = 8;		// bit depth
+		header[9] = 2;		// truecolor
+		header[10] = 0;		// deflate
+		header[11] = 0;		// adaptive filtering
+		header[12] = 0;		// no interlace
+		writeChunk("IHDR", header, header.length);
+		// zlib header: deflate with 32K window, no dictionary
+		writeChunk("IDAT", new byte[] { 0x78, (byte)0x9c }, 2);
+	}
+	
+	/**
+	 * Write numRows rows of packed RGB ints (width per row) starting at offset,
+	 * compressing bands of BAND_ROWS rows in parallel, in the fork/join pool of
+	 * the calling thread if it runs in one and in the common pool otherwise.
+	 */
+	public void writeRows(final int[] packed, int offset, int numRows) throws IOException {
+		if(rowsWritten + numRows > height) {
+			throw new IOException("Too many rows for image height " + height);
+		}
+		List<Future<byte[]>> bands = new ArrayList<Future<byte[]>>();
+		final long[] checksums = new long[(numRows + BAND_ROWS - 1) / BAND_ROWS];
+		for(int b = 0; b < checksums.length; b ++) {
+			final int band = b;
+			final int start = offset + b * BAND_ROWS * width;
+			final int rows = Math.min(BAND_ROWS, numRows - b * BAND_ROWS);
+			bands.add(ForkJoinTask.adapt(new Callable<byte[]>() {
+				public byte[] call() {
+					byte[] raw = filterRows(packed, start, rows);
+					Adler32 checksum = new Adler32();
+					checksum.update(raw, 0, raw.length);
+					checksums[band] = checksum.getValue();
+					return deflate(raw);
+				}
+			}).fork());
+		}
+		for(int b = 0; b < bands.size(); b ++) {
+			byte[] compressed;
+			try {
+				compressed = bands.get(b).get();
+			} catch(InterruptedException e) {
+				throw new IOException("Interrupted while compressing", e);
+			} catch(ExecutionException e) {
+				throw new IOException("Problem compressing", e.getCause());
+			}
+			int rows = Math.min(BAND_ROWS, numRows - b * BAND_ROWS);
+			adler = combineAdler32(adler, checksums[b], (long)rows * (3 * width + 1));
+			writeChunk("IDAT", compressed, compressed.length);
+		}
+		rowsWritten += numRows;
+	}
+	
+	/**
+	 * Terminate the zlib stream and the image. Does not close the output stream.
+	 */
+	public void finish() throws IOException {
+		if(rowsWritten != height) {
+			throw new IOException("Wrote " + rowsWritten + " rows of " + height);
+		}
+		// final empty deflate block and stream checksum
+		Deflater deflater = new Deflater(level, true);
+		deflater.finish();
+		byte[] buffer = new byte[64];
+		int n = deflater.deflate(buffer);
+		deflater.end();
+		putInt(buffer, n, (int)adler);
+		writeChunk("IDAT", buffer, n + 4);
+		writeChunk("IEND", buffer, 0);
+		out.flush();
+	}
+	
+	/**
+	 * Convert rows to PNG scanlines using the Sub filter, which only depends on the
+	 * row itself so that bands are independent.
+	 */
+	private byte[] filterRows(int[] packed, int start, int rows) {
+		int stride = 3 * width + 1;
+		byte[] raw = new byte[rows * stride];
+		for(int j = 0; j < rows; j ++) {
+			int o = j * stride;
+			int p = start + j * width;
+			raw[o++] = 1;
+			int pr = 0, pg = 0, pb = 0;
+			for(int i = 0; i < width; i ++) {
+				int c = packed[p+i];
+				int r = (c >> 16) & 0xff, g = (c >> 8) & 0xff, b = c & 0xff;
+				raw[o++] = (byte)(r - pr);
+				raw[o++] = (byte)(g - pg);
+				raw[o++] = (byte)(b - pb);
+				pr = r;
+				pg = g;
+				pb = b;
+			}
+		}
+		return raw;
+	}
+	
+	/**
+	 * Deflate raw data as non-final blocks ending on a byte boundary.
+	 */
+	private byte[] deflate(byte[] raw) {
+		Deflater deflater = new Deflater(level, true);
+		deflater.setInput(raw);
+		byte[] compressed = new byte[raw.length / 2 + 1024];
+		int size = 0;
+		while(true) {
+			size += deflater.deflate(compressed, size, compressed.length - size, Deflater.SYNC_FLUSH);
+			if(size < compressed.length) {
+				break;
+			}
+			compressed = Arrays.copyOf(compressed, 2 * compressed.length);
+		}
+		deflater.end();
+		return Arrays.copyOf(compressed, size);
+	}
+	
+	/**
+	 * Write a PNG chunk with its length and CRC.
+	 */
+	private void writeChunk(String type, byte[] data, int length) throws IOException {
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, 0, length);
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(data, 0, length);
+		out.writeInt((int)crc.getValue());
+	}
+	
+	/**
+	 * Adler-32 of the concatenation of two streams, given their checksums and the
+	 * length of the second one (as adler32_combine in zlib).
+	 */
+	static long combineAdler32(long adler1, long adler2, long length2) {
+		final long BASE = 65521;
+		long remainder = length2 % BASE;
+		long sum1 = adler1 & 0xffff;
+		long sum2 = (remainder * sum1) % BASE;
+		sum1 += (adler2 & 0xffff) + BASE - 1;
+		sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + BASE - remainder;
+		if(sum1 >= BASE) sum1 -= BASE;
+		if(sum1 >= BASE) sum1 -= BASE;
+		if(sum2 >= (BASE << 1)) sum2 -= (BASE << 1);
+		if(sum2 >= BASE) sum2 -= BASE;
+		return sum1 | (sum2 << 16);
+	}
+	
+	private static void putInt(byte[] buffer, int offset, int v) {
+		buffer[offset+0] = (byte)(v >>> 24);
+		buffer[offset+1] = (byte)(v >>> 16);
+		buffer[offset+2] = (byte)(v >>> 8);
+		buffer[offset+3] = (byte)v;
+	}
+}
@@ -38,6 +38,26 @@ public class PointLight extends Light {
 	 * @param surfacePoint Surface position.
 	 */
 	public double computeShadowDistance(Vec3 surfacePoint) {
-		return position.sub(surfacePoint).length();
+		double dx = position.x - surfacePoint.x;
+		double dy = position.y - surfacePoint.y;
+		double dz = position.z - surfacePoint.z;
+		return Math.sqrt(dx*dx + dy*dy + dz*dz);
+	}
+
+	/**
+	 * Compute light direction storing the result in direction.
+	 * @param surfacePoint Surface position.
+	 */
+	public void computeLightDirection(Vec3 surfacePoint, Vec3 direction) {
+		direction.setToSub(position, surfacePoint);
+		direction.setToNormalize();
+	}
+
+	/**
+	 * Compute light internsity storing the result in color.
+	 * @param surfacePoint Surface position.
+	 */
+	public void computeLightIntensity(Vec3 surfacePoint, Color color) {
+		color.set(intensity);
 	}
 }
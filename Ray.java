@@ -70,4 +70,24 @@ public class Ray {
 	public Vec3 evaluate(double t) {
 		return origin.add(direction.scale(t));
 	}
+	
+	/**
+	 * Compute the point at a given distance t along the ray.
+	 * Stores the result in point.
+	 */
+	public void evaluate(double t, Vec3 point) {
+		point.setToScaleAdd(origin, direction, t);
+	}
+	
+	/**
+	 * Reinitialize this ray to the given origin, direction and rayDepth with epsilon
+	 * as minimum distance and infinity (i.e. max double) for maximum.
+	 */
+	public void set(Vec3 nOrigin, Vec3 nDirection, int nRayDepth) {
+		origin.set(nOrigin);
+		direction.set(nDirection);
+		minDistance = EPSILON;
+		maxDistance = Double.MAX_VALUE;
+		rayDepth = nRayDepth;
+	}
 }
@@ -0,0 +1,165 @@
+/**
+ * Group of neighbouring rays traced together through the scene.
+ * 
+ * Ray data is kept as a structure of arrays (one array per component, one
+ * entry per lane), so that each box or primitive test loads the node or
+ * primitive once and then runs a tight loop over the lanes. The closest hit of
+ * each lane is kept in its intersection record and tmax, which shrinks as hits
+ * are found. Each lane also keeps its ray, for shading and for surfaces without
+ * a packet test.
+ * 
+ * @author fabio
+ */
+public class RayPacket {
+	/**
+	 * Largest supported packet size.
+	 */
+	public static final int		MAX_SIZE = 16;
+	/**
+	 * The lane arrays are allocated to a multiple of this many lanes, so that
+	 * vector kernels can load whole vectors past the last lane.
+	 */
+	public static final int		LANE_PADDING = 8;
+	
+	/**
+	 * Kernels of the box and primitive tests (see PacketKernels).
+	 */
+	static final PacketKernels	kernels = PacketKernels.load();
+	
+	/**
+	 * Number of lanes in use.
+	 */
+	public int					size;
+	/**
+	 * Ray origins, directions and inverse directions.
+	 */
+	public double[]				ox, oy, oz;
+	public double[]				dx, dy, dz;
+	public double[]				idx, idy, idz;
+	/**
+	 * Valid ray parameter range; tmax is the closest hit found so far.
+	 */
+	public double[]				tmin, tmax;
+	/**
+	 * Distances of the hits found by the last primitive test, written by the
+	 * kernels for the lanes they return.
+	 */
+	public double[]				t;
+	/**
+	 * Barycentric coordinates of the hits found by the last mesh triangle test.
+	 */
+	public double[]				u, w;
+	/**
+	 * True if the lane hit something.
+	 */
+	public boolean[]			hit;
+	/**
+	 * Lane rays, closest intersections and shaded colors.
+	 */
+	public Ray[]				rays;
+	public Intersection[]		intersections;
+	public Color[]				colors;
+	/**
+	 * Pixel and sample of each lane, for the render loops.
+	 */
+	public int[]				pixelX, pixelY, sample;
+	
+	/**
+	 * Create an empty packet of up to capacity rays.
+	 */
+	public RayPacket(int capacity) {
+		if(capacity < 1 || capacity > MAX_SIZE) {
+			throw new IllegalArgumentException("Packet size must be between 1 and " + MAX_SIZE);
+		}
+		size = 0;
+		int lanes = (capacity + LANE_PADDING - 1) / LANE_PADDING * LANE_PADDING;
+		ox = new double[lanes]; oy = new double[lanes]; oz = new double[lanes];
+		dx = new double[lanes]; dy = new double[lanes]; dz = new double[lanes];
+		idx = new double[lanes]; idy = new double[lanes]; idz = new double[lanes];
+		tmin = new double[lanes]; tmax = new double[lanes];
+		t = new double[lanes];
+		u = new double[lanes]; w = new double[lanes];
+		hit = new boolean[capacity];
+		rays = new Ray[capacity];
+		intersections = new Intersection[capacity];
+		colors = new Color[capacity];
+		for(int k = 0; k < capacity; k ++) {
+			rays[k] = new Ray();
+			intersections[k] = new Intersection();
+			colors[k] = new Color();
+		}
+		pixelX = new int[capacity];
+		pixelY = new int[capacity];
+		sample = new int[capacity];
+	}
+	
+	/**
+	 * Number of lanes.
+	 */
+	public int getCapacity() {
+		return rays.length;
+	}
+	
+	/**
+	 * True if no more rays can be added.
+	 */
+	public boolean isFull() {
+		return size == rays.length;
+	}
+	
+	/**
+	 * Append a copy of the given ray, returning its lane.
+	 */
+	public int add(Ray ray) {
+		int k = size++;
+		Ray r = rays[k];
+		r.origin.set(ray.origin);
+		r.direction.set(ray.direction);
+		r.minDistance = ray.minDistance;
+		r.maxDistance = ray.maxDistance;
+		r.rayDepth = ray.rayDepth;
+		setLane(k);
+		return k;
+	}
+	
+	/**
+	 * Append the camera ray through sample (si,sj) of an n x n grid in pixel
+	 * (i,j), generated in place (see Camera.generateRay), returning its lane.
+	 */
+	public int add(Camera camera, int i, int j, int si, int sj, int n) {
+		int k = size++;
+		camera.generateRay(i, j, si, sj, n, rays[k]);
+		setLane(k);
+		return k;
+	}
+	
+	/**
+	 * Copy the origin and direction of the ray of lane k to the lane arrays.
+	 */
+	private void setLane(int k) {
+		Ray r = rays[k];
+		ox[k] = r.origin.x; oy[k] = r.origin.y; oz[k] = r.origin.z;
+		dx[k] = r.direction.x; dy[k] = r.direction.y; dz[k] = r.direction.z;
+		idx[k] = 1 / dx[k]; idy[k] = 1 / dy[k]; idz[k] = 1 / dz[k];
+	}
+	
+	/**
+	 * Reset the hits of all lanes before tracing.
+	 */
+	public void clearHits() {
+		for(int k = 0; k < size; k ++) {
+			hit[k] = false;
+			tmin[k] = rays[k].minDistance;
+			tmax[k] = rays[k].maxDistance;
+			intersections[k].clear();
+		}
+	}
+	
+	/**
+	 * True if any lane hits the box at offset b of the flattened bounds
+	 * (minx, miny, minz, maxx, maxy, maxz) within its current range.
+	 */
+	public boolean intersectBox(double[] bounds, int b) {
+		return kernels.intersectBox(this, bounds, b);
+	}
+}
@@ -1,3 +1,11 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * Basci raytracer.
  * @author fabio
@@ -13,29 +21,131 @@ public class RayTracer {
 	 */
 	public int				maxRecursion;
 	
+	/**
+	 * Number of render threads. With 1 thread tiles are rendered on the calling thread.
+	 */
+	public int				threads;
+	
+	/**
+	 * Size in pixels of the square tiles the image is split into for rendering.
+	 */
+	public int				tileSize;
+	
+	/**
+	 * Order in which the pixels of a tile are traced and written, and order in
+	 * which the tiles of an image are handed out to the threads (see PixelOrder).
+	 */
+	public int				pixelOrder;
+	public int				tileOrder;
+	
+	/**
+	 * Color difference (largest over the channels) with a neighbour above which
+	 * adaptive sampling refines a pixel. Refinement stops when the standard error
+	 * of the pixel color falls below half of this value.
+	 */
+	public double			adaptiveThreshold;
+	
+	/**
+	 * Number of neighbouring primary rays traced together as a packet (up to
+	 * RayPacket.MAX_SIZE), or 1 to trace rays one at a time.
+	 */
+	public int				packetSize;
+	
+	/**
+	 * Trace the samples of each tile breadth-first, one bounce at a time, with
+	 * hits shaded in groups of the same material (see Wavefront).
+	 */
+	public boolean			wavefront;
+	
+	/**
+	 * Store rendered images outside of the Java heap (for very large frames).
+	 */
+	public boolean			offHeapImages;
+	
+	/**
+	 * Work-stealing pool used for parallel rendering, created on demand.
+	 */
+	private ForkJoinPool	pool;
+	
+	/**
+	 * True if pool was given with setPool and is not ours to shut down.
+	 */
+	private boolean			sharedPool;
+	
+	/**
+	 * Size in pixels of the blocks of the coarse preview of renderProgressive.
+	 */
+	public static final int	PREVIEW_BLOCK = 4;
+	
+	/**
+	 * Statistics accumulated over the renders of this raytracer.
+	 */
+	public RenderStatistics	statistics;
+	
+	/**
+	 * Per-thread scratch storage for the shading hot path.
+	 */
+	private final ThreadLocal<ShadingContext> contexts = new ThreadLocal<ShadingContext>() {
+		protected ShadingContext initialValue() {
+			ShadingContext context = new ShadingContext(maxRecursion);
+			allContexts.add(context);
+			return context;
+		}
+	};
+	
+	/**
+	 * All the contexts created by the render threads, to merge their statistics.
+	 */
+	private final List<ShadingContext> allContexts =
+		Collections.synchronizedList(new ArrayList<ShadingContext>());
+	
 	/**
 	 * Construct a raytracer for a given scene.
 	 */	
 	public RayTracer(Scene nScene) {
 		scene = nScene;
 		maxRecursion = 1;
+		threads = Runtime.getRuntime().availableProcessors();
+		tileSize = 32;
+		pixelOrder = PixelOrder.HILBERT;
+		tileOrder = PixelOrder.HILBERT;
+		adaptiveThreshold = 0.05;
+		packetSize = 1;
+		wavefront = false;
+		offHeapImages = false;
+		pool = null;
+		sharedPool = false;
+		statistics = new RenderStatistics();
 	}
 	
 	/**
 	 * Reaytrace the scene with one sample per pixel.
 	 */
 	public ColorImage render() {
-		ColorImage image = new ColorImage(scene.camera.xResolution, scene.camera.yResolution);
+		final ColorImage image = createImage();
 		
-		Ray ray = null;
-		for(int i = 0; i < scene.camera.xResolution; i ++) {
-			for (int j = 0; j < scene.camera.yResolution; j++) {
-				ray = scene.camera.generateRay(
-						(i+0.5)/scene.camera.xResolution,
-						(j+0.5)/scene.camera.yResolution);
-				image.setColor(i,j,computeColor(ray));
+		renderTiles(new TileRenderer() {
+			public void renderTile(int x0, int y0, int x1, int y1) {
+				ShadingContext context = getContext();
+				if(wavefront) {
+					context.wavefront().renderTile(RayTracer.this, 1, image, null, x0, y0, x1, y1, context);
+					return;
+				} else if(packetSize > 1) {
+					renderTilePackets(1, image, null, x0, y0, x1, y1, context);
+					return;
+				}
+				Ray ray = context.cameraRay;
+				int[] order = PixelOrder.get(pixelOrder, x1 - x0, y1 - y0);
+				for(int p = 0; p < order.length; p ++) {
+					int i = x0 + PixelOrder.x(order[p]);
+					int j = y0 + PixelOrder.y(order[p]);
+					scene.camera.generateRay(i, j, 0, 0, 1, ray);
+					context.statistics.primaryRays ++;
+					computeColor(ray, context.pixelColor, context);
+					image.setColor(i,j,context.pixelColor);
+				}
 			}
-		}
+		});
 		
 		return image;
 	}
@@ -43,45 +153,609 @@ public class RayTracer {
 	/**
 	 * Raytrace the scene with nsamples^2 samples oper pixel.
 	 */
-	public ColorImage renderSuperSampled(int nsamples) {
-		ColorImage image = new ColorImage(scene.camera.xResolution, scene.camera.yResolution);
+	public ColorImage renderSuperSampled(final int nsamples) {
+		final ColorImage image = createImage();
+		
+		renderTiles(new TileRenderer() {
+			public void renderTile(int x0, int y0, int x1, int y1) {
+				ShadingContext context = getContext();
+				Ray ray = context.cameraRay;
+				int[] order = PixelOrder.get(pixelOrder, x1 - x0, y1 - y0);
+				for(int p = 0; p < order.length; p ++) {
+					int i = x0 + PixelOrder.x(order[p]);
+					int j = y0 + PixelOrder.y(order[p]);
+					Color color = context.pixelColor;
+					color.set(0,0,0);
+					for(int si = 0; si < nsamples; si ++ ) {
+						for(int sj = 0; sj < nsamples; sj ++ ) {
+							scene.camera.generateRay(i, j, si, sj, nsamples, ray);
+							context.statistics.primaryRays ++;
+							computeColor(ray, context.sampleColor, context);
+							color.setToAdd(context.sampleColor);
+						}
+					}
+					color.setToScale(1.0/(nsamples*nsamples));
+					image.setColor(i,j,color);
+				}
+			}
+		});
+		
+		return image;
+	}
+	
+	/**
+	 * Raytrace the scene with one sample per pixel and with nsamples^2 samples per
+	 * pixel in a single pass, returning the images render() and
+	 * renderSuperSampled(nsamples) would return, in this order.
+	 * For odd nsamples the center sample of the grid is the same ray render() traces,
+	 * so it is shared; for even nsamples one more sample is traced per pixel.
+	 */
+	public ColorImage[] renderWithSuperSampled(int nsamples) {
+		ColorImage image = createImage();
+		ColorImage imageSuperSampled = createImage();
+		renderTiles(createSuperSampledRenderer(nsamples, image, imageSuperSampled));
+		return new ColorImage[] { image, imageSuperSampled };
+	}
+	
+	/**
+	 * Raytrace the scene as renderWithSuperSampled(nsamples) does, writing the
+	 * images to output and outputSuperSampled while rendering instead of returning
+	 * them. The image is rendered in bands one tile high, from top to bottom, and
+	 * each band is written and discarded once complete, so memory use depends on
+	 * the image width and tileSize but not on the image height.
+	 * The outputs are closed at the end. Time spent writing goes to statistics.saveTime.
+	 */
+	public void renderStreaming(int nsamples, ImageOutput output, ImageOutput outputSuperSampled)
+			throws IOException {
+		checkSettings();
+		int yResolution = scene.camera.yResolution;
+		int yBands = (yResolution + tileSize - 1) / tileSize;
+		try {
+			for(int b = yBands - 1; b >= 0; b --) {
+				int y0 = b * tileSize;
+				ColorImage[] bands = renderWithSuperSampled(nsamples, y0, Math.min(y0 + tileSize, yResolution));
+				
+				long start = System.nanoTime();
+				output.writeRows(bands[0]);
+				outputSuperSampled.writeRows(bands[1]);
+				statistics.saveTime += System.nanoTime() - start;
+			}
+		} finally {
+			long start = System.nanoTime();
+			try {
+				output.close();
+			} finally {
+				outputSuperSampled.close();
+			}
+			statistics.saveTime += System.nanoTime() - start;
+		}
+	}
+	
+	/**
+	 * Raytrace the rows [y0,y1) of the images renderWithSuperSampled(nsamples)
+	 * returns, returning them as bands (see ColorImage).
+	 */
+	public ColorImage[] renderWithSuperSampled(int nsamples, int y0, int y1) {
+		int xResolution = scene.camera.xResolution;
+		ColorImage band = new ColorImage(xResolution, y1 - y0, y0, offHeapImages);
+		ColorImage bandSuperSampled = new ColorImage(xResolution, y1 - y0, y0, offHeapImages);
+		renderTiles(createSuperSampledRenderer(nsamples, band, bandSuperSampled), y0, y1);
+		return new ColorImage[] { band, bandSuperSampled };
+	}
+	
+	/**
+	 * Renderer for renderWithSuperSampled(nsamples), writing into the given images.
+	 */
+	private TileRenderer createSuperSampledRenderer(final int nsamples, final ColorImage image,
+			final ColorImage imageSuperSampled) {
+		final int center = nsamples % 2 == 1 ? nsamples / 2 : -1;
+		
+		return new TileRenderer() {
+			public void renderTile(int x0, int y0, int x1, int y1) {
+				ShadingContext context = getContext();
+				if(wavefront) {
+					context.wavefront().renderTile(RayTracer.this, nsamples, image, imageSuperSampled,
+							x0, y0, x1, y1, context);
+					return;
+				} else if(packetSize > 1) {
+					renderTilePackets(nsamples, image, imageSuperSampled, x0, y0, x1, y1, context);
+					return;
+				}
+				Ray ray = context.cameraRay;
+				int[] order = PixelOrder.get(pixelOrder, x1 - x0, y1 - y0);
+				for(int p = 0; p < order.length; p ++) {
+					int i = x0 + PixelOrder.x(order[p]);
+					int j = y0 + PixelOrder.y(order[p]);
+					Color color = context.pixelColor;
+					color.set(0,0,0);
+					for(int si = 0; si < nsamples; si ++ ) {
+						for(int sj = 0; sj < nsamples; sj ++ ) {
+							scene.camera.generateRay(i, j, si, sj, nsamples, ray);
+							context.statistics.primaryRays ++;
+							computeColor(ray, context.sampleColor, context);
+							color.setToAdd(context.sampleColor);
+							if(si == center && sj == center) {
+								image.setColor(i,j,context.sampleColor);
+							}
+						}
+					}
+					color.setToScale(1.0/(nsamples*nsamples));
+					imageSuperSampled.setColor(i,j,color);
+					
+					if(center < 0) {
+						scene.camera.generateRay(i, j, 0, 0, 1, ray);
+						context.statistics.primaryRays ++;
+						computeColor(ray, context.sampleColor, context);
+						image.setColor(i,j,context.sampleColor);
+					}
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Render a tile as the renderer of renderWithSuperSampled(nsamples) does, 
+	 * tracing the primary rays in packets of packetSize rays. The samples of
+	 * consecutive pixels in pixelOrder are queued in order and shaded when the packet
+	 * is full, so images are the same as with single rays.
+	 * imageSuperSampled can be null to only render image.
+	 */
+	protected void renderTilePackets(int nsamples, ColorImage image, ColorImage imageSuperSampled,
+			int x0, int y0, int x1, int y1, ShadingContext context) {
+		RayPacket packet = context.packet(Math.min(packetSize, RayPacket.MAX_SIZE));
+		int center = nsamples % 2 == 1 ? nsamples / 2 : -1;
+		int samples = nsamples*nsamples;
+		int raysPerPixel = center < 0 ? samples + 1 : samples;
+		int[] order = PixelOrder.get(pixelOrder, x1 - x0, y1 - y0);
+		for(int p = 0; p < order.length; p ++) {
+			int i = x0 + PixelOrder.x(order[p]);
+			int j = y0 + PixelOrder.y(order[p]);
+			for(int s = 0; s < raysPerPixel; s ++) {
+				// sample s < samples is (s / nsamples, s % nsamples) of the grid,
+				// sample samples is the extra center ray for even nsamples
+				int k = s < samples ?
+						packet.add(scene.camera, i, j, s / nsamples, s % nsamples, nsamples) :
+						packet.add(scene.camera, i, j, 0, 0, 1);
+				packet.pixelX[k] = i;
+				packet.pixelY[k] = j;
+				packet.sample[k] = s;
+				if(packet.isFull()) {
+					shadePacket(packet, nsamples, image, imageSuperSampled, context);
+				}
+			}
+		}
+		shadePacket(packet, nsamples, image, imageSuperSampled, context);
+	}
+	
+	/**
+	 * Trace and shade the rays of a packet queued by renderTilePackets and write
+	 * them to the images, accumulating the samples of the current pixel in
+	 * context.pixelColor. Empties the packet.
+	 */
+	private void shadePacket(RayPacket packet, int nsamples, ColorImage image, 
+			ColorImage imageSuperSampled, ShadingContext context) {
+		if(packet.size == 0) {
+			return;
+		}
+		context.statistics.primaryRays += packet.size;
+		computeColors(packet, context);
+		
+		int center = nsamples % 2 == 1 ? nsamples / 2 : -1;
+		int samples = nsamples*nsamples;
+		Color color = context.pixelColor;
+		for(int k = 0; k < packet.size; k ++) {
+			int s = packet.sample[k];
+			int i = packet.pixelX[k], j = packet.pixelY[k];
+			if(s == samples || (s / nsamples == center && s % nsamples == center)) {
+				image.setColor(i,j,packet.colors[k]);
+			}
+			if(s >= samples || imageSuperSampled == null) {
+				continue;
+			}
+			if(s == 0) {
+				color.set(0,0,0);
+			}
+			color.setToAdd(packet.colors[k]);
+			if(s == samples - 1) {
+				color.setToScale(1.0/samples);
+				imageSuperSampled.setColor(i,j,color);
+			}
+		}
+		packet.size = 0;
+	}
+	
+	/**
+	 * Raytrace the scene with adaptive sampling, using at most maxSamples samples
+	 * per pixel.
+	 * A first pass shoots one sample through each pixel center. Pixels that differ
+	 * from a neighbour by more than adaptiveThreshold are then refined with batches
+	 * of 4 well distributed samples (Halton sequence in bases 2 and 3) until the
+	 * standard error of their mean is low enough or maxSamples is reached.
+	 */
+	public ColorImage renderAdaptive(int maxSamples) {
+		return renderAdaptive(maxSamples, render());
+	}
+	
+	/**
+	 * Raytrace the scene with adaptive sampling, using the given one sample per pixel
+	 * image, as returned by render(), as first pass.
+	 */
+	public ColorImage renderAdaptive(final int maxSamples, final ColorImage base) {
+		final ColorImage image = createImage();
+		
+		renderTiles(new TileRenderer() {
+			public void renderTile(int x0, int y0, int x1, int y1) {
+				ShadingContext context = getContext();
+				Color sample = context.sampleColor;
+				Color color = context.pixelColor;
+				Color center = new Color();
+				Color neighbour = new Color();
+				Ray ray = context.cameraRay;
+				int[] order = PixelOrder.get(pixelOrder, x1 - x0, y1 - y0);
+				for(int p = 0; p < order.length; p ++) {
+					int i = x0 + PixelOrder.x(order[p]);
+					int j = y0 + PixelOrder.y(order[p]);
+					base.getColor(i,j,center);
+					if(maxSamples <= 1 || contrast(base,i,j,center,neighbour) <= adaptiveThreshold) {
+						image.setColor(i,j,center);
+						continue;
+					}
+					
+					// running sums and sums of squares, starting from the center sample
+					double sr = center.r, sg = center.g, sb = center.b;
+					double qr = sr*sr, qg = sg*sg, qb = sb*sb;
+					int n = 1;
+					while(n < maxSamples) {
+						int batchEnd = Math.min(n + 4, maxSamples);
+						for(; n < batchEnd; n ++) {
+							scene.camera.generateRay(
+									(i+radicalInverse(n,2))/scene.camera.xResolution,
+									(j+radicalInverse(n,3))/scene.camera.yResolution, ray);
+							context.statistics.primaryRays ++;
+							computeColor(ray, sample, context);
+							sr += sample.r; sg += sample.g; sb += sample.b;
+							qr += sample.r*sample.r; qg += sample.g*sample.g; qb += sample.b*sample.b;
+						}
+						// variance of the mean, largest over the channels
+						double variance = Math.max(qr - sr*sr/n, Math.max(qg - sg*sg/n, qb - sb*sb/n)) / 
+								((double)(n-1) * n);
+						if(variance <= 0.25 * adaptiveThreshold * adaptiveThreshold) {
+							break;
+						}
+					}
+					color.set(sr/n, sg/n, sb/n);
+					image.setColor(i,j,color);
+				}
+			}
+		});
+		
+		return image;
+	}
+	
+	/**
+	 * Receives the image of a progressive render after each pass.
+	 */
+	public interface ProgressListener {
+		/**
+		 * Called when a pass completes, with image holding the current estimate at
+		 * samplesPerPixel samples per pixel (pass 0 is the coarse preview, with 0).
+		 * The next pass updates image in place once this returns, so copy it to keep it.
+		 */
+		void passCompleted(ColorImage image, int pass, int samplesPerPixel);
+	}
+	
+	/**
+	 * Raytrace the scene progressively, refining the same image until it has
+	 * maxSamples samples per pixel or timeBudget milliseconds (if positive) have
+	 * passed, and return it.
+	 * Pass 0 is a coarse preview with one sample per block of PREVIEW_BLOCK^2 pixels.
+	 * Pass 1 traces the pixel centers, as render() does, and each further pass
+	 * doubles the samples of every pixel with the samples renderAdaptive uses
+	 * (Halton sequence in bases 2 and 3), averaging them into the image.
+	 * When the time runs out the current pass stops at the next tile, so the
+	 * image can mix pixels of two sample counts; the preview always completes.
+	 * listener, if not null, gets the image after every completed pass.
+	 */
+	public ColorImage renderProgressive(int maxSamples, long timeBudget, ProgressListener listener) {
+		final ColorImage image = createImage();
+		final long deadline = timeBudget > 0 ? System.nanoTime() + timeBudget * 1000000L : Long.MAX_VALUE;
+		
+		renderTiles(new TileRenderer() {
+			public void renderTile(int x0, int y0, int x1, int y1) {
+				ShadingContext context = getContext();
+				for(int bi = x0; bi < x1; bi += PREVIEW_BLOCK) {
+					for(int bj = y0; bj < y1; bj += PREVIEW_BLOCK) {
+						int bi1 = Math.min(bi + PREVIEW_BLOCK, x1);
+						int bj1 = Math.min(bj + PREVIEW_BLOCK, y1);
+						Ray ray = context.cameraRay;
+						scene.camera.generateRay(
+								(bi+bi1)*0.5/scene.camera.xResolution,
+								(bj+bj1)*0.5/scene.camera.yResolution, ray);
+						context.statistics.primaryRays ++;
+						computeColor(ray, context.pixelColor, context);
+						for(int i = bi; i < bi1; i ++) {
+							for(int j = bj; j < bj1; j ++) {
+								image.setColor(i,j,context.pixelColor);
+							}
+						}
+					}
+				}
+			}
+		});
+		if(listener != null) {
+			listener.passCompleted(image, 0, 0);
+		}
 		
-		Ray ray = null;
-		for(int i = 0; i < scene.camera.xResolution; i ++) {
-			for (int j = 0; j < scene.camera.yResolution; j++) {
-				Color color = new Color(0,0,0);
-				for(int si = 0; si < nsamples; si ++ ) {
-					for(int sj = 0; sj < nsamples; sj ++ ) {
-						ray = scene.camera.generateRay(
-								(i+(si+0.5)/nsamples)/scene.camera.xResolution,
-								(j+(sj+0.5)/nsamples)/scene.camera.yResolution);
-						color.setToAdd(computeColor(ray));
+		final AtomicBoolean stopped = new AtomicBoolean(false);
+		for(int pass = 1, n = 0; n < maxSamples && !stopped.get(); pass ++) {
+			final int start = n;
+			final int end = Math.min(Math.max(2*n, 1), maxSamples);
+			renderTiles(new TileRenderer() {
+				public void renderTile(int x0, int y0, int x1, int y1) {
+					if(System.nanoTime() >= deadline) {
+						stopped.set(true);
+						return;
+					}
+					ShadingContext context = getContext();
+					Color sample = context.sampleColor;
+					Color color = context.pixelColor;
+					int[] order = PixelOrder.get(pixelOrder, x1 - x0, y1 - y0);
+					for(int p = 0; p < order.length; p ++) {
+						int i = x0 + PixelOrder.x(order[p]);
+						int j = y0 + PixelOrder.y(order[p]);
+						// the new samples are averaged with the start samples already in the image
+						if(start > 0) {
+							image.getColor(i,j,color);
+							color.setToScale(start);
+						} else {
+							color.set(0,0,0);
+						}
+						for(int s = start; s < end; s ++) {
+							Ray ray = context.cameraRay;
+							scene.camera.generateRay(
+									(i+(s == 0 ? 0.5 : radicalInverse(s,2)))/scene.camera.xResolution,
+									(j+(s == 0 ? 0.5 : radicalInverse(s,3)))/scene.camera.yResolution, ray);
+							context.statistics.primaryRays ++;
+							computeColor(ray, sample, context);
+							color.setToAdd(sample);
+						}
+						color.setToScale(1.0/end);
+						image.setColor(i,j,color);
 					}
 				}
-				image.setColor(i,j,color.scale(1.0/(nsamples*nsamples)));
+			});
+			if(listener != null && !stopped.get()) {
+				listener.passCompleted(image, pass, end);
 			}
+			n = end;
 		}
 		
 		return image;
 	}
 	
+	/**
+	 * Largest color difference, over the channels, between pixel (i,j) of color c
+	 * and its four neighbours. nc is used as temporary.
+	 */
+	private static double contrast(ColorImage image, int i, int j, Color c, Color nc) {
+		double max = 0;
+		for(int n = 0; n < 4; n ++) {
+			int ni = i + (n == 0 ? -1 : n == 1 ? 1 : 0);
+			int nj = j + (n == 2 ? -1 : n == 3 ? 1 : 0);
+			if(ni < 0 || nj < 0 || ni >= image.xResolution || nj >= image.yResolution) {
+				continue;
+			}
+			image.getColor(ni,nj,nc);
+			max = Math.max(max, Math.abs(c.r - nc.r));
+			max = Math.max(max, Math.abs(c.g - nc.g));
+			max = Math.max(max, Math.abs(c.b - nc.b));
+		}
+		return max;
+	}
+	
+	/**
+	 * Radical inverse of i in the given base, i.e. the i-th element of the
+	 * van der Corput sequence, in [0,1).
+	 */
+	private static double radicalInverse(int i, int base) {
+		double inverse = 0;
+		double scale = 1.0 / base;
+		while(i > 0) {
+			inverse += (i % base) * scale;
+			i /= base;
+			scale /= base;
+		}
+		return inverse;
+	}
+	
+	/**
+	 * Create an empty image of the camera resolution, off-heap if offHeapImages is set.
+	 */
+	protected ColorImage createImage() {
+		return new ColorImage(scene.camera.xResolution, scene.camera.yResolution, offHeapImages);
+	}
+	
+	/**
+	 * Split the image in tiles of tileSize pixels and render them with the given
+	 * renderer. Tiles are scheduled in tileOrder on a work-stealing pool of the
+	 * given number of threads, or rendered in order on the calling thread if
+	 * threads is 1.
+	 * Renderers must only write the pixels of their tile.
+	 * The render time and the counters of all threads are added to statistics.
+	 */
+	protected void renderTiles(TileRenderer renderer) {
+		renderTiles(renderer, 0, scene.camera.yResolution);
+	}
+	
+	/**
+	 * Render the tiles of the rows [yStart,yEnd) only, as renderTiles(renderer).
+	 */
+	protected void renderTiles(TileRenderer renderer, int yStart, int yEnd) {
+		checkSettings();
+		RenderPhaseEvent event = RenderPhaseEvent.start("render", null);
+		long start = System.nanoTime();
+
+		int xTiles = (scene.camera.xResolution + tileSize - 1) / tileSize;
+		int yTiles = (yEnd - yStart + tileSize - 1) / tileSize;
+		TileTask task = new TileTask(renderer, PixelOrder.get(tileOrder, xTiles, yTiles), 
+				yStart, yEnd, 0, xTiles*yTiles);
+		if(threads <= 1) {
+			task.renderTiles();
+		} else {
+			getPool().invoke(task);
+		}
+		statistics.renderTime += System.nanoTime() - start;
+		mergeStatistics();
+		event.commit();
+	}
+	
+	/**
+	 * Reject tile sizes and numbers of threads the render loops cannot use.
+	 */
+	private void checkSettings() {
+		if(tileSize < 1) {
+			throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+		}
+		if(threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+		}
+	}
+	
+	/**
+	 * Add the counters of all render threads to statistics.
+	 */
+	protected void mergeStatistics() {
+		synchronized(allContexts) {
+			for(ShadingContext context : allContexts) {
+				context.mergeStatistics(statistics);
+			}
+		}
+	}
+	
+	/**
+	 * Get the render pool, creating it if the number of threads changed.
+	 */
+	protected synchronized ForkJoinPool getPool() {
+		if(pool == null || (!sharedPool && pool.getParallelism() != threads)) {
+			if(pool != null) {
+				pool.shutdown();
+			}
+			pool = new ForkJoinPool(threads);
+		}
+		return pool;
+	}
+	
+	/**
+	 * Render on a pool shared with other work (for example other raytracers)
+	 * instead of creating one. Sets threads to the pool parallelism; the pool is
+	 * used regardless of later changes to threads, other than to 1.
+	 */
+	public synchronized void setPool(ForkJoinPool nPool) {
+		if(pool != null && !sharedPool) {
+			pool.shutdown();
+		}
+		pool = nPool;
+		sharedPool = true;
+		threads = nPool.getParallelism();
+	}
+	
+	/**
+	 * Renders the pixels [x0,x1)x[y0,y1) of a tile.
+	 */
+	protected interface TileRenderer {
+		void renderTile(int x0, int y0, int x1, int y1);
+	}
+	
+	/**
+	 * Renders a range of tiles in tile order, splitting it in halves so that idle
+	 * threads can steal the other half.
+	 */
+	private class TileTask extends RecursiveAction {
+		private static final long serialVersionUID = 4326150263734129841L;
+		private TileRenderer renderer;
+		private int[] tiles;
+		private int yStart;
+		private int yEnd;
+		private int start;
+		private int end;
+		
+		TileTask(TileRenderer nRenderer, int[] nTiles, int nyStart, int nyEnd, int nStart, int nEnd) {
+			renderer = nRenderer;
+			tiles = nTiles;
+			yStart = nyStart;
+			yEnd = nyEnd;
+			start = nStart;
+			end = nEnd;
+		}
+		
+		protected void compute() {
+			if(end - start <= 1) {
+				renderTiles();
+			} else {
+				int mid = (start + end) >>> 1;
+				invokeAll(new TileTask(renderer, tiles, yStart, yEnd, start, mid),
+						  new TileTask(renderer, tiles, yStart, yEnd, mid, end));
+			}
+		}
+		
+		void renderTiles() {
+			for(int t = start; t < end; t ++) {
+				int x0 = PixelOrder.x(tiles[t]) * tileSize;
+				int y0 = yStart + PixelOrder.y(tiles[t]) * tileSize;
+				TileRenderEvent event = new TileRenderEvent();
+				event.begin();
+				event.x0 = x0;
+				event.y0 = y0;
+				event.x1 = Math.min(x0 + tileSize, scene.camera.xResolution);
+				event.y1 = Math.min(y0 + tileSize, yEnd);
+				renderer.renderTile(x0, y0, event.x1, event.y1);
+				event.commit();
+			}
+		}
+	}
+	
 	/**
 	 * Compute the visible color along the given ray.
 	 * Should check to make sure rayDepth is less or equal to the given maximum.
 	 */
 	public Color computeColor(Ray ray) {
-		Color color = null;
-		Intersection intersection = new Intersection();
+		Color color = new Color();
+		computeColor(ray, color, getContext());
+		return color;
+	}
+	
+	/**
+	 * Compute the visible color along the given ray storing it in color.
+	 * Temporaries are taken from the given context so that nothing is allocated.
+	 */
+	public void computeColor(Ray ray, Color color, ShadingContext context) {
+		Intersection intersection = null;
 		boolean hit = false;
 		if(ray.rayDepth <= maxRecursion) {
+			intersection = context.frame(ray.rayDepth).intersection;
 			hit = scene.intersect(ray,intersection);
 		}
 		if(hit) {
-			color = computeIllumination(ray,intersection);
+			computeIllumination(ray,intersection,color,context);
 		} else {
-			color = new Color(0,0,0);
+			color.set(0,0,0);
 		}		
-		return color;
+	}
+	
+	/**
+	 * Compute the visible colors along the rays of the packet, storing them in the
+	 * packet colors. Primary visibility is traced for the whole packet, shading and
+	 * secondary rays are then computed lane by lane.
+	 */
+	public void computeColors(RayPacket packet, ShadingContext context) {
+		scene.intersect(packet);
+		for(int k = 0; k < packet.size; k ++) {
+			if(packet.hit[k] && packet.rays[k].rayDepth <= maxRecursion) {
+				computeIllumination(packet.rays[k], packet.intersections[k], packet.colors[k], context);
+			} else {
+				packet.colors[k].set(0,0,0);
+			}
+		}
 	}
 	
 	/**
@@ -89,28 +763,50 @@ public class RayTracer {
 	 * Recurse if necessary for reflection.
 	 */
 	public Color computeIllumination(Ray ray, Intersection intersection) {
+		Color color = new Color();
+		computeIllumination(ray, intersection, color, getContext());
+		return color;
+	}
+	
+	/**
+	 * Compute the color of a gien intersection point storing it in color.
+	 * Recurse if necessary for reflection.
+	 * Temporaries are taken from the frame of the context at the ray depth.
+	 */
+	public void computeIllumination(Ray ray, Intersection intersection, Color color,
+			ShadingContext context) {
 		Vec3 N = intersection.normal;
 		Vec3 P = intersection.position;
 		Vec3 I = ray.direction;
+		Material material = intersection.material;
+		ShadingContext.Frame frame = context.frame(ray.rayDepth);
 
-		Color color = new Color();
+		color.set(0,0,0);
+		Vec3 L = frame.lightDirection;
+		Color lightIntensity = frame.lightIntensity;
+		Color surfaceReflectance = frame.reflectance;
 		for (int l = 0; l < scene.lights.length; l++) {
 			Light light = scene.lights[l];
-			Vec3 L = light.computeLightDirection(P);
-			Color lightIntensity = light.computeLightIntensity(P);
-			Color surfaceReflectance = 
-				intersection.material.computeDirectLighting(N,L,I);
-			double shadow = computeShadow(P,light);
-			color.setToAdd(surfaceReflectance.scale(lightIntensity).scale(shadow));
+			light.computeLightDirection(P, L);
+			light.computeLightIntensity(P, lightIntensity);
+			material.computeDirectLighting(N,L,I,surfaceReflectance);
+			double shadow = computeShadow(P,L,light,context);
+			surfaceReflectance.setToScale(lightIntensity);
+			surfaceReflectance.setToScale(shadow);
+			color.setToAdd(surfaceReflectance);
 		}
 		
-		if(intersection.material.hasReflection(N,I)) {
-			Color surfaceReflection = intersection.material.computeReflection(N,I);
-			Ray reflectionRay = new Ray(P,I.reflect(N),ray.rayDepth+1);
-			color.setToAdd(surfaceReflection.scale(computeColor(reflectionRay)));
+		if(material.hasReflection(N,I)) {
+			Color surfaceReflection = frame.reflectance;
+			material.computeReflection(N,I,surfaceReflection);
+			Ray reflectionRay = frame.reflectionRay;
+			reflectionRay.set(P,I,ray.rayDepth+1);
+			reflectionRay.direction.setToReflect(I,N);
+			context.statistics.reflectionRays ++;
+			computeColor(reflectionRay,frame.reflectionColor,context);
+			surfaceReflection.setToScale(frame.reflectionColor);
+			color.setToAdd(surfaceReflection);
 		}
-		
-		return color;
 	}
 	
 	/**
@@ -118,15 +814,29 @@ public class RayTracer {
 	 * Returns 0 or 1.
 	 */
 	public double computeShadow(Vec3 P, Light light) {
-		Ray shadowRay = new Ray();
-		shadowRay.origin.set(P);
-		shadowRay.direction.set(light.computeLightDirection(P));
+		return computeShadow(P, light.computeLightDirection(P), light, getContext());
+	}
+	
+	/**
+	 * Check if a point P is in shadow given a light and the light direction L at P.
+	 * Returns 0 or 1.
+	 */
+	public double computeShadow(Vec3 P, Vec3 L, Light light, ShadingContext context) {
+		Ray shadowRay = context.shadowRay;
+		shadowRay.set(P,L,0);
 		shadowRay.maxDistance = light.computeShadowDistance(P);
-		Intersection intersection = new Intersection();
-		if(scene.intersect(shadowRay, intersection)) {
+		context.statistics.shadowRays ++;
+		if(scene.occluded(shadowRay)) {
 			return 0;
 		} else {
 			return 1;
 		}
-	}	
+	}
+	
+	/**
+	 * Get the scratch storage of the calling thread.
+	 */
+	protected ShadingContext getContext() {
+		return contexts.get();
+	}
 }
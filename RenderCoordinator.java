@@ -0,0 +1,316 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Coordinator of a distributed render.
+ * 
+ * Render workers (see RenderWorker), in other processes or on other hosts,
+ * connect to the coordinator socket and stay connected for all the frames.
+ * For each frame the coordinator sends the scene, serialized in the scene cache
+ * format, and the render settings to every worker, then hands out bands of
+ * rows one at a time to whichever worker is free and copies the returned
+ * pixels into the frame images. A worker that disconnects, or does not answer
+ * within jobTimeout, is dropped and its band is handed out again.
+ * 
+ * Protocol (big endian): the worker sends MAGIC and VERSION; the coordinator then
+ * sends FRAME (settings and scene), JOB (band rows) and finally BYE; the worker
+ * answers each JOB with the band rows of both images, as floats, and its counters.
+ * 
+ * @author fabio
+ */
+public class RenderCoordinator {
+	static final int			MAGIC = 0x52545752;		// "RTWR"
+	static final int			VERSION = 1;
+	static final int			FRAME = 1, JOB = 2, BYE = 3;
+	
+	/**
+	 * Time in milliseconds a worker has to return a band before being dropped.
+	 */
+	public int					jobTimeout;
+	
+	private ServerSocket		server;
+	private List<Thread>		handlers;
+	private Frame				frame;
+	private int					frameCount;
+	private boolean				closed;
+	
+	/**
+	 * Start accepting workers on the given port (0 for any free port).
+	 */
+	public RenderCoordinator(int port) throws IOException {
+		jobTimeout = 10 * 60 * 1000;
+		server = new ServerSocket(port);
+		handlers = new ArrayList<Thread>();
+		frame = null;
+		frameCount = 0;
+		closed = false;
+		Thread acceptor = new Thread("RenderCoordinator") {
+			public void run() {
+				acceptWorkers();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+	
+	/**
+	 * Port the coordinator listens on.
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+	
+	/**
+	 * Render the scene of rayTracer on the workers as
+	 * rayTracer.renderWithSuperSampled(nsamples) would, waiting for workers to
+	 * connect if there are none. The workers use the maxRecursion, tileSize,
+	 * packetSize and wavefront settings of rayTracer, and bands are tileSize rows
+	 * high. Render time and worker counters are added to rayTracer.statistics.
+	 */
+	public ColorImage[] render(RayTracer rayTracer, int nsamples) throws IOException, InterruptedException {
+		RenderPhaseEvent event = RenderPhaseEvent.start("render", null);
+		long start = System.nanoTime();
+		
+		ByteArrayOutputStream scene = new ByteArrayOutputStream();
+		SceneCache.writeScene(rayTracer.scene, Channels.newChannel(scene));
+		Frame nFrame = new Frame(rayTracer, nsamples, scene.toByteArray());
+		synchronized(this) {
+			nFrame.id = ++frameCount;
+			frame = nFrame;
+			notifyAll();
+		}
+		nFrame.waitDone();
+		
+		rayTracer.statistics.add(nFrame.statistics);
+		rayTracer.statistics.renderTime += System.nanoTime() - start;
+		event.commit();
+		return new ColorImage[] { nFrame.image, nFrame.imageSuperSampled };
+	}
+	
+	/**
+	 * Send BYE to the connected workers and stop accepting new ones.
+	 */
+	public void close() throws IOException {
+		synchronized(this) {
+			closed = true;
+			notifyAll();
+		}
+		server.close();
+		List<Thread> threads;
+		synchronized(handlers) {
+			threads = new ArrayList<Thread>(handlers);
+		}
+		for(Thread thread : threads) {
+			try {
+				thread.join(1000);
+			} catch(InterruptedException e) {
+				break;
+			}
+		}
+	}
+	
+	private void acceptWorkers() {
+		while(true) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			} catch(IOException e) {
+				return;
+			}
+			Thread handler = new Thread("RenderCoordinator " + socket.getRemoteSocketAddress()) {
+				public void run() {
+					serveWorker(socket);
+				}
+			};
+			handler.setDaemon(true);
+			synchronized(handlers) {
+				handlers.add(handler);
+			}
+			handler.start();
+		}
+	}
+	
+	/**
+	 * Wait for a frame newer than the given one, or return null once closed.
+	 */
+	private synchronized Frame waitForFrame(int lastFrame) throws InterruptedException {
+		while(!closed && (frame == null || frame.id <= lastFrame)) {
+			wait();
+		}
+		return closed ? null : frame;
+	}
+	
+	/**
+	 * Send the frames and bands to a worker until closed or the worker is lost.
+	 */
+	private void serveWorker(Socket socket) {
+		String name = String.valueOf(socket.getRemoteSocketAddress());
+		int[] job = null;
+		Frame current = null;
+		try {
+			socket.setSoTimeout(jobTimeout);
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a render worker or wrong version");
+			}
+			System.out.println("Worker connected: " + name);
+			int lastFrame = 0;
+			while(true) {
+				current = waitForFrame(lastFrame);
+				if(current == null) {
+					out.writeInt(BYE);
+					out.flush();
+					break;
+				}
+				lastFrame = current.id;
+				current.writeSettings(out);
+				while((job = current.takeJob()) != null) {
+					out.writeInt(JOB);
+					out.writeInt(job[0]);
+					out.writeInt(job[1]);
+					out.flush();
+					current.readResult(job, in);
+					job = null;
+				}
+			}
+		} catch(Exception e) {
+			System.out.println("Worker lost: " + name + ": " + e);
+			if(job != null) {
+				current.requeue(job);
+			}
+		} finally {
+			try {
+				socket.close();
+			} catch(IOException e) {
+			}
+			synchronized(handlers) {
+				handlers.remove(Thread.currentThread());
+			}
+		}
+	}
+	
+	/**
+	 * Frame being rendered: settings, scene, pending bands and images.
+	 */
+	private static class Frame {
+		int						id;
+		int						nsamples;
+		int						maxRecursion;
+		int						tileSize;
+		int						packetSize;
+		boolean					wavefront;
+		byte[]					scene;
+		ColorImage				image;
+		ColorImage				imageSuperSampled;
+		Deque<int[]>			pending;
+		int						remaining;
+		RenderStatistics		statistics;
+		
+		Frame(RayTracer rayTracer, int nNsamples, byte[] nScene) {
+			nsamples = nNsamples;
+			maxRecursion = rayTracer.maxRecursion;
+			tileSize = rayTracer.tileSize;
+			packetSize = rayTracer.packetSize;
+			wavefront = rayTracer.wavefront;
+			scene = nScene;
+			int xResolution = rayTracer.scene.camera.xResolution;
+			int yResolution = rayTracer.scene.camera.yResolution;
+			image = new ColorImage(xResolution, yResolution, rayTracer.offHeapImages);
+			imageSuperSampled = new ColorImage(xResolution, yResolution, rayTracer.offHeapImages);
+			pending = new ArrayDeque<int[]>();
+			for(int y0 = 0; y0 < yResolution; y0 += tileSize) {
+				pending.add(new int[] { y0, Math.min(y0 + tileSize, yResolution) });
+			}
+			remaining = pending.size();
+			statistics = new RenderStatistics();
+		}
+		
+		void writeSettings(DataOutputStream out) throws IOException {
+			out.writeInt(FRAME);
+			out.writeInt(nsamples);
+			out.writeInt(maxRecursion);
+			out.writeInt(tileSize);
+			out.writeInt(packetSize);
+			out.writeBoolean(wavefront);
+			out.writeInt(scene.length);
+			out.write(scene);
+			out.flush();
+		}
+		
+		/**
+		 * Next band to render, waiting while bands are being rendered by other
+		 * workers, or null once the frame is complete.
+		 */
+		synchronized int[] takeJob() throws InterruptedException {
+			while(pending.isEmpty() && remaining > 0) {
+				wait();
+			}
+			return remaining == 0 ? null : pending.poll();
+		}
+		
+		synchronized void requeue(int[] job) {
+			pending.addFirst(job);
+			notifyAll();
+		}
+		
+		synchronized void waitDone() throws InterruptedException {
+			while(remaining > 0) {
+				wait();
+			}
+		}
+		
+		/**
+		 * Read the result of a band and copy it into the images.
+		 */
+		void readResult(int[] job, DataInputStream in) throws IOException {
+			int y0 = in.readInt();
+			int y1 = in.readInt();
+			if(y0 != job[0] || y1 != job[1]) {
+				throw new IOException("Unexpected band " + y0 + "-" + y1);
+			}
+			float[] rgb = readFloats(in, 3 * image.xResolution * (y1 - y0));
+			float[] rgbSuperSampled = readFloats(in, rgb.length);
+			RenderStatistics counters = new RenderStatistics();
+			counters.primaryRays = in.readLong();
+			counters.reflectionRays = in.readLong();
+			counters.shadowRays = in.readLong();
+			counters.nodeTests = in.readLong();
+			counters.primitiveTests = in.readLong();
+			synchronized(this) {
+				image.setTile(0, y0, image.xResolution, y1 - y0, rgb);
+				imageSuperSampled.setTile(0, y0, image.xResolution, y1 - y0, rgbSuperSampled);
+				statistics.add(counters);
+				remaining --;
+				notifyAll();
+			}
+		}
+	}
+	
+	static float[] readFloats(DataInputStream in, int n) throws IOException {
+		byte[] bytes = new byte[4 * n];
+		in.readFully(bytes);
+		float[] v = new float[n];
+		ByteBuffer.wrap(bytes).asFloatBuffer().get(v);
+		return v;
+	}
+	
+	static void writeFloats(DataOutputStream out, float[] v) throws IOException {
+		byte[] bytes = new byte[4 * v.length];
+		ByteBuffer.wrap(bytes).asFloatBuffer().put(v);
+		out.write(bytes);
+	}
+}
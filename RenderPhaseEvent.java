@@ -0,0 +1,36 @@
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event spanning a phase of a render (parse, build, render, save),
+ * to correlate profiles with the raytracer work.
+ * @author fabio
+ */
+@Name("raytracer.RenderPhase")
+@Label("Render Phase")
+@Category("Ray Tracer")
+public class RenderPhaseEvent extends Event {
+	/**
+	 * Phase name.
+	 */
+	@Label("Phase")
+	public String				phase;
+	/**
+	 * Scene file, if known.
+	 */
+	@Label("Scene")
+	public String				scene;
+	
+	/**
+	 * Create and begin an event for the given phase.
+	 */
+	public static RenderPhaseEvent start(String phase, String scene) {
+		RenderPhaseEvent event = new RenderPhaseEvent();
+		event.phase = phase;
+		event.scene = scene;
+		event.begin();
+		return event;
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Ray counts, intersection test counts and phase timings of a render.
+ * 
+ * While rendering, each thread counts into its own ShadingContext and the raytracer
+ * merges the counters at the end of each render, so that counting costs a field
+ * increment. Intersection tests are counted by the acceleration structures.
+ * Times are in nanoseconds.
+ * 
+ * @author fabio
+ */
+public class RenderStatistics {
+	/**
+	 * Camera rays.
+	 */
+	public long					primaryRays;
+	/**
+	 * Mirror reflection rays.
+	 */
+	public long					reflectionRays;
+	/**
+	 * Shadow rays.
+	 */
+	public long					shadowRays;
+	/**
+	 * Ray-box tests against acceleration structure nodes.
+	 */
+	public long					nodeTests;
+	/**
+	 * Ray-primitive tests.
+	 */
+	public long					primitiveTests;
+	/**
+	 * Time spent parsing the scene (excluding the acceleration structure build).
+	 */
+	public long					parseTime;
+	/**
+	 * Time spent building the scene acceleration structure.
+	 */
+	public long					buildTime;
+	/**
+	 * Time spent rendering.
+	 */
+	public long					renderTime;
+	/**
+	 * Time spent saving images.
+	 */
+	public long					saveTime;
+	
+	/**
+	 * Add the counters and times of s to these.
+	 */
+	public void add(RenderStatistics s) {
+		primaryRays += s.primaryRays;
+		reflectionRays += s.reflectionRays;
+		shadowRays += s.shadowRays;
+		nodeTests += s.nodeTests;
+		primitiveTests += s.primitiveTests;
+		parseTime += s.parseTime;
+		buildTime += s.buildTime;
+		renderTime += s.renderTime;
+		saveTime += s.saveTime;
+	}
+	
+	/**
+	 * Set all counters and times to zero.
+	 */
+	public void reset() {
+		primaryRays = 0;
+		reflectionRays = 0;
+		shadowRays = 0;
+		nodeTests = 0;
+		primitiveTests = 0;
+		parseTime = 0;
+		buildTime = 0;
+		renderTime = 0;
+		saveTime = 0;
+	}
+	
+	/**
+	 * Total number of rays of all kinds.
+	 */
+	public long getRays() {
+		return primaryRays + reflectionRays + shadowRays;
+	}
+	
+	/**
+	 * Rays traced per second of render time.
+	 */
+	public double getRaysPerSecond() {
+		return renderTime > 0 ? getRays() / (renderTime * 1e-9) : 0;
+	}
+	
+	/**
+	 * Average number of node and primitive tests per ray.
+	 */
+	public double getTestsPerRay() {
+		return getRays() > 0 ? (double)(nodeTests + primitiveTests) / getRays() : 0;
+	}
+	
+	/**
+	 * Human readable report.
+	 */
+	public String toString() {
+		return String.format(
+				"Rays: %d primary, %d reflection, %d shadow%n" +
+				"Tests: %d node, %d primitive, %.1f per ray%n" +
+				"Time: parse %.3fs, build %.3fs, render %.3fs, save %.3fs%n" +
+				"Throughput: %.0f rays/s",
+				primaryRays, reflectionRays, shadowRays,
+				nodeTests, primitiveTests, getTestsPerRay(),
+				parseTime * 1e-9, buildTime * 1e-9, renderTime * 1e-9, saveTime * 1e-9,
+				getRaysPerSecond());
+	}
+}
@@ -0,0 +1,111 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Render worker of a distributed render (see RenderCoordinator).
+ * Connects to the coordinator, then renders the bands it is sent with the local
+ * threads until the coordinator says BYE or goes away.
+ * 
+ * @author fabio
+ */
+public class RenderWorker {
+	/**
+	 * Number of local render threads.
+	 */
+	public int					threads;
+	/**
+	 * Time in milliseconds to keep trying to connect to the coordinator.
+	 */
+	public int					connectTimeout;
+	
+	public RenderWorker() {
+		threads = Runtime.getRuntime().availableProcessors();
+		connectTimeout = 30 * 1000;
+	}
+	
+	/**
+	 * Connect to the coordinator at host:port and render until told to stop.
+	 */
+	public void run(String host, int port) throws IOException, InterruptedException {
+		Socket socket = connect(host, port);
+		try {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+			out.writeInt(RenderCoordinator.MAGIC);
+			out.writeInt(RenderCoordinator.VERSION);
+			out.flush();
+			
+			RayTracer rayTracer = null;
+			int nsamples = 0;
+			while(true) {
+				int command = in.readInt();
+				if(command == RenderCoordinator.FRAME) {
+					nsamples = in.readInt();
+					int maxRecursion = in.readInt();
+					int tileSize = in.readInt();
+					int packetSize = in.readInt();
+					boolean wavefront = in.readBoolean();
+					byte[] scene = new byte[in.readInt()];
+					in.readFully(scene);
+					rayTracer = new RayTracer(SceneCache.readScene(ByteBuffer.wrap(scene)));
+					rayTracer.maxRecursion = maxRecursion;
+					rayTracer.tileSize = tileSize;
+					rayTracer.packetSize = packetSize;
+					rayTracer.wavefront = wavefront;
+					rayTracer.threads = threads;
+				} else if(command == RenderCoordinator.JOB) {
+					int y0 = in.readInt();
+					int y1 = in.readInt();
+					if(rayTracer == null) {
+						throw new IOException("Band requested before the scene");
+					}
+					ColorImage[] bands = rayTracer.renderWithSuperSampled(nsamples, y0, y1);
+					float[] rgb = new float[3 * bands[0].xResolution * (y1 - y0)];
+					out.writeInt(y0);
+					out.writeInt(y1);
+					bands[0].getTile(0, y0, bands[0].xResolution, y1 - y0, rgb);
+					RenderCoordinator.writeFloats(out, rgb);
+					bands[1].getTile(0, y0, bands[1].xResolution, y1 - y0, rgb);
+					RenderCoordinator.writeFloats(out, rgb);
+					RenderStatistics statistics = rayTracer.statistics;
+					out.writeLong(statistics.primaryRays);
+					out.writeLong(statistics.reflectionRays);
+					out.writeLong(statistics.shadowRays);
+					out.writeLong(statistics.nodeTests);
+					out.writeLong(statistics.primitiveTests);
+					out.flush();
+					statistics.reset();
+				} else if(command == RenderCoordinator.BYE) {
+					return;
+				} else {
+					throw new IOException("Unknown command " + command);
+				}
+			}
+		} finally {
+			socket.close();
+		}
+	}
+	
+	/**
+	 * Connect, retrying while the coordinator is starting.
+	 */
+	private Socket connect(String host, int port) throws IOException, InterruptedException {
+		long deadline = System.currentTimeMillis() + connectTimeout;
+		while(true) {
+			try {
+				return new Socket(host, port);
+			} catch(IOException e) {
+				if(System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				Thread.sleep(200);
+			}
+		}
+	}
+}
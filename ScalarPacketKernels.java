@@ -0,0 +1,135 @@
+/**
+ * Packet kernels that loop over the lanes one at a time (see PacketKernels).
+ *
+ * @author fabio
+ */
+class ScalarPacketKernels implements PacketKernels {
+	public boolean intersectBox(RayPacket packet, double[] bounds, int b) {
+		double minx = bounds[b+0], miny = bounds[b+1], minz = bounds[b+2];
+		double maxx = bounds[b+3], maxy = bounds[b+4], maxz = bounds[b+5];
+		double[] ox = packet.ox, oy = packet.oy, oz = packet.oz;
+		double[] idx = packet.idx, idy = packet.idy, idz = packet.idz;
+		for(int k = 0; k < packet.size; k ++) {
+			// same slab test as the single ray traversal
+			double near = packet.tmin[k], far = packet.tmax[k];
+			double t0 = (minx - ox[k]) * idx[k], t1 = (maxx - ox[k]) * idx[k];
+			if(t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+			if(t0 > near) near = t0;
+			if(t1 < far) far = t1;
+			t0 = (miny - oy[k]) * idy[k];
+			t1 = (maxy - oy[k]) * idy[k];
+			if(t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+			if(t0 > near) near = t0;
+			if(t1 < far) far = t1;
+			t0 = (minz - oz[k]) * idz[k];
+			t1 = (maxz - oz[k]) * idz[k];
+			if(t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+			if(t0 > near) near = t0;
+			if(t1 < far) far = t1;
+			if(near <= far) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int intersectSphere(RayPacket packet, double cx, double cy, double cz, double rr) {
+		int lanes = 0;
+		for(int k = 0; k < packet.size; k ++) {
+			double lx = packet.ox[k] - cx;
+			double ly = packet.oy[k] - cy;
+			double lz = packet.oz[k] - cz;
+			double dx = packet.dx[k], dy = packet.dy[k], dz = packet.dz[k];
+			double a = dx * dx + dy * dy + dz * dz;
+			double b = 2 * (dx*lx + dy*ly + dz*lz);
+			double c = (lx*lx + ly*ly + lz*lz) - rr;
+			double det = b*b - 4*a*c;
+			if(det < 0) {
+				continue;
+			}
+			double t = (-b-Math.sqrt(det))/(2*a);
+			if(t > packet.tmin[k] && t < packet.tmax[k]) {
+				packet.t[k] = t;
+				lanes |= 1 << k;
+			}
+		}
+		return lanes;
+	}
+
+	public int intersectTriangle(RayPacket packet, Vec3 normal, double nv0, Vec3 v0, Vec3 v1, Vec3 v2) {
+		double nx = normal.x, ny = normal.y, nz = normal.z;
+		int lanes = 0;
+		for(int k = 0; k < packet.size; k ++) {
+			double ox = packet.ox[k], oy = packet.oy[k], oz = packet.oz[k];
+			double dx = packet.dx[k], dy = packet.dy[k], dz = packet.dz[k];
+			double t = - ((ox * nx + oy * ny + oz * nz) - nv0) /
+				(dx * nx + dy * ny + dz * nz);
+			if(!(t > packet.tmin[k] && t < packet.tmax[k])) {
+				continue;
+			}
+			double px = ox + dx * t;
+			double py = oy + dy * t;
+			double pz = oz + dz * t;
+			if(edgeTest(normal, v0, v1, px, py, pz) &&
+			   edgeTest(normal, v1, v2, px, py, pz) &&
+			   edgeTest(normal, v2, v0, px, py, pz)) {
+				packet.t[k] = t;
+				lanes |= 1 << k;
+			}
+		}
+		return lanes;
+	}
+
+	/**
+	 * Same edge test as Triangle.
+	 */
+	private static boolean edgeTest(Vec3 normal, Vec3 a, Vec3 b, double px, double py, double pz) {
+		double ex = b.x - a.x, ey = b.y - a.y, ez = b.z - a.z;
+		double qx = px - a.x, qy = py - a.y, qz = pz - a.z;
+		return normal.x * (ey*qz - ez*qy) +
+			   normal.y * (ez*qx - ex*qz) +
+			   normal.z * (ex*qy - ey*qx) > 0;
+	}
+
+	public int intersectMeshTriangle(RayPacket packet, double[] edges, int e, double[] positions, int v) {
+		double e1x = edges[e+0], e1y = edges[e+1], e1z = edges[e+2];
+		double e2x = edges[e+3], e2y = edges[e+4], e2z = edges[e+5];
+		double v0x = positions[v+0], v0y = positions[v+1], v0z = positions[v+2];
+		int lanes = 0;
+		for(int k = 0; k < packet.size; k ++) {
+			double dx = packet.dx[k], dy = packet.dy[k], dz = packet.dz[k];
+
+			// same computation as TriangleMesh.intersectTriangle
+			double px = dy*e2z - dz*e2y;
+			double py = dz*e2x - dx*e2z;
+			double pz = dx*e2y - dy*e2x;
+			double det = e1x*px + e1y*py + e1z*pz;
+			if(det == 0) {
+				continue;
+			}
+			double invDet = 1 / det;
+			double sx = packet.ox[k] - v0x;
+			double sy = packet.oy[k] - v0y;
+			double sz = packet.oz[k] - v0z;
+			double u = (sx*px + sy*py + sz*pz) * invDet;
+			if(u < 0 || u > 1) {
+				continue;
+			}
+			double qx = sy*e1z - sz*e1y;
+			double qy = sz*e1x - sx*e1z;
+			double qz = sx*e1y - sy*e1x;
+			double w = (dx*qx + dy*qy + dz*qz) * invDet;
+			if(w < 0 || u + w > 1) {
+				continue;
+			}
+			double t = (e2x*qx + e2y*qy + e2z*qz) * invDet;
+			if(t > packet.tmin[k] && t < packet.tmax[k]) {
+				packet.t[k] = t;
+				packet.u[k] = u;
+				packet.w[k] = w;
+				lanes |= 1 << k;
+			}
+		}
+		return lanes;
+	}
+}
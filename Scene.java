@@ -2,7 +2,7 @@
  * Raytracing scene.
  * @author fabio
  */
-public class Scene {
+public class Scene implements BVH.Primitives {
 	/**
 	 * Camera.
 	 */
@@ -11,10 +11,24 @@ public class Scene {
 	 * Object surfaces.
 	 */
     public Surface[]			surfaces;
+	/**
+	 * Surfaces that are not rendered themselves but only through the instances
+	 * referring to them (see Instance).
+	 */
+    public Surface[]			prototypes;
 	/**
 	 * Lights.
 	 */
     public Light[]				lights;
+	/**
+	 * Acceleration structure over the surfaces.
+	 * Built by buildAccelerationStructure, if null surfaces are tested one by one.
+	 */
+	public BVH					bvh;
+	/**
+	 * Time in nanoseconds spent in the last buildAccelerationStructure.
+	 */
+	public long					buildTime;
 	
 	/**
 	 * Default constructor.
@@ -23,7 +37,65 @@ public class Scene {
 	public Scene() {
 		camera = new Camera();
 		surfaces = new Surface[0];
+		prototypes = new Surface[0];
 		lights = new Light[0];
+		bvh = null;
+	}
+	
+	/**
+	 * Build the acceleration structure once the scene is loaded.
+	 * Used by the parser.
+	 */
+	public void initFromParser() {
+		buildAccelerationStructure();
+	}
+	
+	/**
+	 * Build the acceleration structure over the surfaces.
+	 * Needs to be called again if the surfaces change.
+	 */
+	public void buildAccelerationStructure() {
+		RenderPhaseEvent event = RenderPhaseEvent.start("build", null);
+		long start = System.nanoTime();
+		bvh = new BVH(computeSurfaceBounds(), surfaces.length);
+		buildTime = System.nanoTime() - start;
+		event.commit();
+	}
+	
+	/**
+	 * Update the acceleration structure after surfaces moved or changed shape.
+	 * If the surfaces are the same ones it was built over, it is refitted in
+	 * linear time and only built again when refitting degraded it too much
+	 * (see BVH.refit); otherwise it is built from scratch.
+	 */
+	public void refitAccelerationStructure() {
+		if(bvh == null || bvh.primitives.length != surfaces.length) {
+			buildAccelerationStructure();
+			return;
+		}
+		RenderPhaseEvent event = RenderPhaseEvent.start("build", null);
+		long start = System.nanoTime();
+		double[] bounds = computeSurfaceBounds();
+		if(!bvh.refit(bounds)) {
+			bvh = new BVH(bounds, surfaces.length);
+		}
+		buildTime = System.nanoTime() - start;
+		event.commit();
+	}
+	
+	/**
+	 * Bounds of the surfaces in the flattened layout of the BVH.
+	 */
+	private double[] computeSurfaceBounds() {
+		final double[] bounds = new double[6*surfaces.length];
+		new BVHBuilder.ParallelLoop() {
+			void run(int lo, int hi) {
+				for(int i = lo; i < hi; i ++) {
+					surfaces[i].computeBoundingBox().toArray(bounds, 6*i);
+				}
+			}
+		}.invoke(surfaces.length);
+		return bounds;
 	}
 	
 	/**
@@ -32,15 +104,75 @@ public class Scene {
 	 */
 	boolean intersect(Ray ray, Intersection intersection) {
 		intersection.clear();
+		if(bvh != null) {
+			return bvh.intersect(ray, intersection, this);
+		}
+		// surfaces only report hits closer than maxDistance, so shrinking it
+		// keeps the closest hit in intersection without a temporary record
 		boolean hit = false;
-		Intersection surfaceIntersection = new Intersection(); 
+		double maxDistance = ray.maxDistance;
 		for(int i = 0; i < surfaces.length; i ++) {
-			boolean hitSurface = surfaces[i].intersect(ray, surfaceIntersection);
-			if(hitSurface && surfaceIntersection.distance < intersection.distance) {
-				intersection.set(surfaceIntersection);
+			if(surfaces[i].intersect(ray, intersection)) {
+				ray.maxDistance = intersection.distance;
 				hit = true;
 			}
 		}
+		ray.maxDistance = maxDistance;
 		return hit;
 	}
+	
+	/**
+	 * Intersect the rays of the packet with this scene, storing the closest hit
+	 * of each lane in the packet.
+	 */
+	void intersect(RayPacket packet) {
+		packet.clearHits();
+		if(bvh != null) {
+			bvh.intersect(packet, this);
+			return;
+		}
+		for(int i = 0; i < surfaces.length; i ++) {
+			surfaces[i].intersect(packet);
+		}
+	}
+	
+	/**
+	 * Return true if the given ray hits any surface between its minimum and
+	 * maximum distance. Stops at the first hit and fills no intersection record.
+	 */
+	boolean occluded(Ray ray) {
+		if(bvh != null) {
+			return bvh.occluded(ray, this);
+		}
+		for(int i = 0; i < surfaces.length; i ++) {
+			if(surfaces[i].occluded(ray)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Intersect the given ray with the i-th surface.
+	 * Used by the acceleration structure.
+	 */
+	public boolean intersectPrimitive(int i, Ray ray, Intersection intersection) {
+		return surfaces[i].intersect(ray, intersection);
+	}
+	
+	/**
+	 * Check the given ray against the i-th surface.
+	 * Used by the acceleration structure.
+	 */
+	public boolean occludedPrimitive(int i, Ray ray) {
+		return surfaces[i].occluded(ray);
+	}
+	
+	/**
+	 * Intersect the packet with the i-th surface.
+	 * Used by the acceleration structure.
+	 */
+	public void intersectPrimitive(int i, RayPacket packet) {
+		surfaces[i].intersect(packet);
+	}
 }
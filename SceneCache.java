@@ -0,0 +1,641 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * On-disk cache of compiled scenes, to skip XML parsing and acceleration
+ * structure builds when the same scene is rendered again.
+ * 
+ * Scenes are stored in a compact little endian binary format, in a file named
+ * after the SHA-256 of the XML content, of the format version and of the BVH
+ * build settings (BVH.QUALITY and BVH.MAX_LEAF_SIZE), and are read
+ * back by mapping the file. The file holds the camera, lights, materials and
+ * surfaces (shared materials and surfaces, such as the geometry of instances,
+ * are stored once) with their derived data (normals, mesh edges) and all the
+ * BVHs, so loading is only bulk copies.
+ * Mesh files referenced by the scene are recorded with the path the scene gives,
+ * the file it resolved to, its size and modification time, and the cached scene
+ * is ignored if the path now resolves to another file (e.g. when rendering from
+ * another directory) or if the file changed.
+ * Only the classes of this package are supported: saving a scene with other
+ * surface, material or light classes fails and the scene is simply not cached.
+ * 
+ * @author fabio
+ */
+public class SceneCache {
+	/**
+	 * Version of the binary format, to change whenever the format or the
+	 * cached classes change.
+	 */
+	public static final int		VERSION = 4;
+	
+	private static final int	MAGIC = 0x43535452;	// "RTSC"
+	
+	private static final int	LAMBERT = 0, PHONG = 1, SHINY_PHONG = 2;
+	private static final int	POINT_LIGHT = 0;
+	private static final int	SPHERE = 0, TRIANGLE = 1, TRIANGLE_MESH = 2, SURFACE_GROUP = 3, INSTANCE = 4;
+	
+	/**
+	 * Cache directory.
+	 */
+	public File					directory;
+	
+	/**
+	 * Create a cache in the given directory, which is created if needed.
+	 */
+	public SceneCache(File nDirectory) {
+		directory = nDirectory;
+	}
+	
+	/**
+	 * Load the cached scene for the given scene file, or return null if it is not
+	 * cached or the cached version is out of date.
+	 */
+	public Scene load(String sceneFilename) throws IOException {
+		byte[] hash = hash(sceneFilename);
+		File file = getCacheFile(hash);
+		if(!file.exists()) {
+			return null;
+		}
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			if(channel.size() > Integer.MAX_VALUE) {
+				return null;
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			Input in = new Input(buffer);
+			if(in.getInt() != MAGIC || in.getInt() != VERSION) {
+				return null;
+			}
+			byte[] storedHash = in.getBytes(in.getInt());
+			if(!MessageDigest.isEqual(hash, storedHash)) {
+				return null;
+			}
+			// external files
+			int numFiles = in.getInt();
+			for(int i = 0; i < numFiles; i ++) {
+				File dependency = new File(in.getString()).getAbsoluteFile();
+				String resolved = in.getString();
+				long length = in.getLong();
+				long modified = in.getLong();
+				if(!dependency.getPath().equals(resolved) || 
+						dependency.length() != length || dependency.lastModified() != modified) {
+					return null;
+				}
+			}
+			return readScene(in);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Save a scene loaded from the given scene file in the cache.
+	 * The file is written under a temporary name and then renamed, so concurrent
+	 * renders never see a partial file.
+	 */
+	public void save(String sceneFilename, Scene scene) throws IOException {
+		byte[] hash = hash(sceneFilename);
+		directory.mkdirs();
+		File file = getCacheFile(hash);
+		File temp = File.createTempFile("scene", ".tmp", directory);
+		try {
+			FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE);
+			try {
+				Output out = new Output(channel);
+				out.putInt(MAGIC);
+				out.putInt(VERSION);
+				out.putInt(hash.length);
+				out.putBytes(hash);
+				List<String> dependencies = new ArrayList<String>();
+				for(Surface surface : collectSurfaces(scene, new IdentityHashMap<Surface,Integer>())) {
+					if(surface instanceof TriangleMesh && ((TriangleMesh)surface).filename != null) {
+						dependencies.add(((TriangleMesh)surface).filename);
+					}
+				}
+				out.putInt(dependencies.size());
+				for(String filename : dependencies) {
+					File dependency = new File(filename).getAbsoluteFile();
+					out.putString(filename);
+					out.putString(dependency.getPath());
+					out.putLong(dependency.length());
+					out.putLong(dependency.lastModified());
+				}
+				writeScene(out, scene);
+				out.flush();
+			} finally {
+				channel.close();
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temp.delete();
+		}
+	}
+	
+	/**
+	 * Write a scene in the cache format, without the cache header, to the given
+	 * channel (used to send scenes to render workers).
+	 */
+	public static void writeScene(Scene scene, WritableByteChannel channel) throws IOException {
+		Output out = new Output(channel);
+		writeScene(out, scene);
+		out.flush();
+	}
+	
+	/**
+	 * Read a scene written by writeScene from the buffer.
+	 */
+	public static Scene readScene(ByteBuffer buffer) {
+		return readScene(new Input(buffer.order(ByteOrder.LITTLE_ENDIAN)));
+	}
+	
+	/**
+	 * Cache file for a given scene hash.
+	 */
+	protected File getCacheFile(byte[] hash) {
+		StringBuilder name = new StringBuilder();
+		for(int i = 0; i < hash.length; i ++) {
+			name.append(String.format("%02x", hash[i] & 0xff));
+		}
+		return new File(directory, name.append(".scene").toString());
+	}
+	
+	/**
+	 * SHA-256 of the scene file content, of the format version and of the
+	 * settings the BVHs are built with.
+	 */
+	protected static byte[] hash(String sceneFilename) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(Files.readAllBytes(new File(sceneFilename).toPath()));
+			digest.update(ByteBuffer.allocate(12).putInt(VERSION)
+					.putInt(BVH.QUALITY).putInt(BVH.MAX_LEAF_SIZE).array());
+			return digest.digest();
+		} catch(NoSuchAlgorithmException e) {
+			throw new IOException("Cannot hash scene file", e);
+		}
+	}
+	
+	private static void writeScene(Output out, Scene scene) throws IOException {
+		Camera camera = scene.camera;
+		out.putVec3(camera.origin);
+		out.putVec3(camera.x);
+		out.putVec3(camera.y);
+		out.putVec3(camera.z);
+		out.putDouble(camera.yfov);
+		out.putDouble(camera.xAngle);
+		out.putDouble(camera.yAngle);
+		out.putInt(camera.xResolution);
+		out.putInt(camera.yResolution);
+		
+		out.putInt(scene.lights.length);
+		for(int i = 0; i < scene.lights.length; i ++) {
+			Light light = scene.lights[i];
+			if(light.getClass() != PointLight.class) {
+				throw new IOException("Cannot cache light of " + light.getClass());
+			}
+			out.putInt(POINT_LIGHT);
+			out.putColor(light.intensity);
+			out.putVec3(((PointLight)light).position);
+		}
+		
+		// materials, each shared material once
+		IdentityHashMap<Surface,Integer> surfaceIndices = new IdentityHashMap<Surface,Integer>();
+		List<Surface> surfaces = collectSurfaces(scene, surfaceIndices);
+		IdentityHashMap<Material,Integer> materialIndices = new IdentityHashMap<Material,Integer>();
+		List<Material> materials = new ArrayList<Material>();
+		for(Surface surface : surfaces) {
+			Material material = getMaterial(surface);
+			if(material != null && !materialIndices.containsKey(material)) {
+				materialIndices.put(material, materials.size());
+				materials.add(material);
+			}
+		}
+		out.putInt(materials.size());
+		for(Material material : materials) {
+			if(material.getClass() == Lambert.class) {
+				out.putInt(LAMBERT);
+				out.putColor(((Lambert)material).diffuse);
+			} else if(material.getClass() == Phong.class || material.getClass() == ShinyPhong.class) {
+				Phong phong = (Phong)material;
+				out.putInt(material.getClass() == Phong.class ? PHONG : SHINY_PHONG);
+				out.putColor(phong.diffuse);
+				out.putColor(phong.specular);
+				out.putDouble(phong.exponent);
+				if(material.getClass() == ShinyPhong.class) {
+					out.putColor(((ShinyPhong)material).reflection);
+				}
+			} else {
+				throw new IOException("Cannot cache material of " + material.getClass());
+			}
+		}
+		
+		// surfaces, each shared surface once and after the surfaces it contains
+		out.putInt(surfaces.size());
+		for(Surface surface : surfaces) {
+			if(surface.getClass() == Sphere.class) {
+				Sphere sphere = (Sphere)surface;
+				out.putInt(SPHERE);
+				out.putInt(materialIndices.get(sphere.material));
+				out.putVec3(sphere.position);
+				out.putDouble(sphere.radius);
+			} else if(surface.getClass() == Triangle.class) {
+				Triangle triangle = (Triangle)surface;
+				out.putInt(TRIANGLE);
+				out.putInt(materialIndices.get(triangle.material));
+				out.putVec3(triangle.v0);
+				out.putVec3(triangle.v1);
+				out.putVec3(triangle.v2);
+				out.putVec3(triangle.normal);
+			} else if(surface.getClass() == TriangleMesh.class) {
+				TriangleMesh mesh = (TriangleMesh)surface;
+				out.putInt(TRIANGLE_MESH);
+				out.putInt(materialIndices.get(mesh.material));
+				out.putString(mesh.filename);
+				out.putDoubles(mesh.positions);
+				out.putInts(mesh.indices);
+				out.putDoubles(mesh.edges);
+				writeBVH(out, mesh.bvh);
+			} else if(surface.getClass() == SurfaceGroup.class) {
+				SurfaceGroup group = (SurfaceGroup)surface;
+				out.putInt(SURFACE_GROUP);
+				out.putInts(getIndices(group.surfaces, surfaceIndices));
+				writeBVH(out, group.bvh);
+			} else {
+				Instance instance = (Instance)surface;
+				out.putInt(INSTANCE);
+				out.putInt(surfaceIndices.get(instance.geometry));
+				out.putVec3(instance.translation);
+				out.putVec3(instance.rotationAxis);
+				out.putDouble(instance.rotationAngle);
+				out.putVec3(instance.scale);
+			}
+		}
+		out.putInts(getIndices(scene.surfaces, surfaceIndices));
+		out.putInts(getIndices(scene.prototypes, surfaceIndices));
+		writeBVH(out, scene.bvh);
+	}
+	
+	/**
+	 * All the surfaces of the scene, including prototypes and the surfaces of
+	 * groups and instances, each once and after the surfaces it contains.
+	 * Their position in the list is stored in indices.
+	 */
+	static List<Surface> collectSurfaces(Scene scene, IdentityHashMap<Surface,Integer> indices) {
+		List<Surface> surfaces = new ArrayList<Surface>();
+		for(int i = 0; i < scene.surfaces.length; i ++) {
+			collectSurface(scene.surfaces[i], indices, surfaces);
+		}
+		for(int i = 0; i < scene.prototypes.length; i ++) {
+			collectSurface(scene.prototypes[i], indices, surfaces);
+		}
+		return surfaces;
+	}
+	
+	private static void collectSurface(Surface surface, IdentityHashMap<Surface,Integer> indices,
+			List<Surface> surfaces) {
+		if(indices.containsKey(surface)) {
+			return;
+		}
+		if(surface instanceof SurfaceGroup) {
+			Surface[] children = ((SurfaceGroup)surface).surfaces;
+			for(int i = 0; i < children.length; i ++) {
+				collectSurface(children[i], indices, surfaces);
+			}
+		} else if(surface instanceof Instance) {
+			collectSurface(((Instance)surface).geometry, indices, surfaces);
+		}
+		indices.put(surface, surfaces.size());
+		surfaces.add(surface);
+	}
+	
+	private static int[] getIndices(Surface[] surfaces, IdentityHashMap<Surface,Integer> indices) {
+		int[] ret = new int[surfaces.length];
+		for(int i = 0; i < surfaces.length; i ++) {
+			ret[i] = indices.get(surfaces[i]);
+		}
+		return ret;
+	}
+	
+	private static Material getMaterial(Surface surface) throws IOException {
+		if(surface.getClass() == Sphere.class) {
+			return ((Sphere)surface).material;
+		} else if(surface.getClass() == Triangle.class) {
+			return ((Triangle)surface).material;
+		} else if(surface.getClass() == TriangleMesh.class) {
+			return ((TriangleMesh)surface).material;
+		} else if(surface.getClass() == SurfaceGroup.class || surface.getClass() == Instance.class) {
+			return null;
+		}
+		throw new IOException("Cannot cache surface of " + surface.getClass());
+	}
+	
+	private static Scene readScene(Input in) {
+		Scene scene = new Scene();
+		Camera camera = scene.camera;
+		camera.origin = in.getVec3();
+		camera.x = in.getVec3();
+		camera.y = in.getVec3();
+		camera.z = in.getVec3();
+		camera.yfov = in.getDouble();
+		camera.xAngle = in.getDouble();
+		camera.yAngle = in.getDouble();
+		camera.xResolution = in.getInt();
+		camera.yResolution = in.getInt();
+		
+		scene.lights = new Light[in.getInt()];
+		for(int i = 0; i < scene.lights.length; i ++) {
+			in.getInt();	// POINT_LIGHT
+			PointLight light = new PointLight();
+			light.intensity = in.getColor();
+			light.position = in.getVec3();
+			scene.lights[i] = light;
+		}
+		
+		Material[] materials = new Material[in.getInt()];
+		for(int i = 0; i < materials.length; i ++) {
+			int type = in.getInt();
+			if(type == LAMBERT) {
+				Lambert lambert = new Lambert();
+				lambert.diffuse = in.getColor();
+				materials[i] = lambert;
+			} else {
+				Phong phong = type == PHONG ? new Phong() : new ShinyPhong();
+				phong.diffuse = in.getColor();
+				phong.specular = in.getColor();
+				phong.exponent = in.getDouble();
+				if(type == SHINY_PHONG) {
+					((ShinyPhong)phong).reflection = in.getColor();
+				}
+				materials[i] = phong;
+			}
+		}
+		
+		Surface[] surfaces = new Surface[in.getInt()];
+		for(int i = 0; i < surfaces.length; i ++) {
+			int type = in.getInt();
+			if(type == SPHERE) {
+				Sphere sphere = new Sphere();
+				sphere.material = materials[in.getInt()];
+				sphere.position = in.getVec3();
+				sphere.radius = in.getDouble();
+				surfaces[i] = sphere;
+			} else if(type == TRIANGLE) {
+				Triangle triangle = new Triangle();
+				triangle.material = materials[in.getInt()];
+				triangle.v0 = in.getVec3();
+				triangle.v1 = in.getVec3();
+				triangle.v2 = in.getVec3();
+				triangle.normal = in.getVec3();
+				surfaces[i] = triangle;
+			} else if(type == TRIANGLE_MESH) {
+				TriangleMesh mesh = new TriangleMesh();
+				mesh.material = materials[in.getInt()];
+				mesh.filename = in.getString();
+				mesh.positions = in.getDoubles();
+				mesh.indices = in.getInts();
+				mesh.edges = in.getDoubles();
+				mesh.bvh = readBVH(in);
+				surfaces[i] = mesh;
+			} else if(type == SURFACE_GROUP) {
+				SurfaceGroup group = new SurfaceGroup();
+				group.surfaces = getSurfaces(in.getInts(), surfaces);
+				group.bvh = readBVH(in);
+				surfaces[i] = group;
+			} else {
+				Instance instance = new Instance();
+				instance.geometry = surfaces[in.getInt()];
+				instance.translation = in.getVec3();
+				instance.rotationAxis = in.getVec3();
+				instance.rotationAngle = in.getDouble();
+				instance.scale = in.getVec3();
+				instance.computeTransform();
+				surfaces[i] = instance;
+			}
+		}
+		scene.surfaces = getSurfaces(in.getInts(), surfaces);
+		scene.prototypes = getSurfaces(in.getInts(), surfaces);
+		scene.bvh = readBVH(in);
+		scene.buildTime = 0;
+		return scene;
+	}
+	
+	private static Surface[] getSurfaces(int[] indices, Surface[] surfaces) {
+		Surface[] ret = new Surface[indices.length];
+		for(int i = 0; i < indices.length; i ++) {
+			ret[i] = surfaces[indices[i]];
+		}
+		return ret;
+	}
+	
+	private static void writeBVH(Output out, BVH bvh) throws IOException {
+		out.putInt(bvh.numNodes);
+		out.putInt(bvh.maxDepth);
+		out.putDoubles(bvh.nodeBounds, 6*bvh.numNodes);
+		out.putInts(bvh.nodeOffset, bvh.numNodes);
+		out.putInts(bvh.nodeCount, bvh.numNodes);
+		out.putInts(bvh.nodeAxis, bvh.numNodes);
+		out.putInts(bvh.primitives);
+	}
+	
+	private static BVH readBVH(Input in) {
+		BVH bvh = new BVH();
+		bvh.numNodes = in.getInt();
+		bvh.maxDepth = in.getInt();
+		bvh.nodeBounds = in.getDoubles();
+		bvh.nodeOffset = in.getInts();
+		bvh.nodeCount = in.getInts();
+		bvh.nodeAxis = in.getInts();
+		bvh.primitives = in.getInts();
+		return bvh;
+	}
+	
+	/**
+	 * Buffered little endian writer to a channel.
+	 */
+	private static class Output {
+		private WritableByteChannel	channel;
+		private ByteBuffer		buffer;
+		
+		Output(WritableByteChannel nChannel) {
+			channel = nChannel;
+			buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		
+		void putInt(int v) throws IOException {
+			require(4);
+			buffer.putInt(v);
+		}
+		
+		void putLong(long v) throws IOException {
+			require(8);
+			buffer.putLong(v);
+		}
+		
+		void putDouble(double v) throws IOException {
+			require(8);
+			buffer.putDouble(v);
+		}
+		
+		void putVec3(Vec3 v) throws IOException {
+			putDouble(v.x);
+			putDouble(v.y);
+			putDouble(v.z);
+		}
+		
+		void putColor(Color c) throws IOException {
+			putDouble(c.r);
+			putDouble(c.g);
+			putDouble(c.b);
+		}
+		
+		void putBytes(byte[] v) throws IOException {
+			for(int i = 0; i < v.length; ) {
+				require(1);
+				int n = Math.min(v.length - i, buffer.remaining());
+				buffer.put(v, i, n);
+				i += n;
+			}
+		}
+		
+		/**
+		 * Write a string as length and UTF-8 bytes, or -1 for null.
+		 */
+		void putString(String s) throws IOException {
+			if(s == null) {
+				putInt(-1);
+				return;
+			}
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			putInt(bytes.length);
+			putBytes(bytes);
+		}
+		
+		void putDoubles(double[] v) throws IOException {
+			putDoubles(v, v.length);
+		}
+		
+		/**
+		 * Write the first length values of v, preceded by length.
+		 */
+		void putDoubles(double[] v, int length) throws IOException {
+			putInt(length);
+			for(int i = 0; i < length; ) {
+				require(8);
+				int n = Math.min(length - i, buffer.remaining() / 8);
+				buffer.asDoubleBuffer().put(v, i, n);
+				buffer.position(buffer.position() + 8 * n);
+				i += n;
+			}
+		}
+		
+		void putInts(int[] v) throws IOException {
+			putInts(v, v.length);
+		}
+		
+		/**
+		 * Write the first length values of v, preceded by length.
+		 */
+		void putInts(int[] v, int length) throws IOException {
+			putInt(length);
+			for(int i = 0; i < length; ) {
+				require(4);
+				int n = Math.min(length - i, buffer.remaining() / 4);
+				buffer.asIntBuffer().put(v, i, n);
+				buffer.position(buffer.position() + 4 * n);
+				i += n;
+			}
+		}
+		
+		/**
+		 * Make room for n bytes in the buffer.
+		 */
+		private void require(int n) throws IOException {
+			if(buffer.remaining() < n) {
+				flush();
+			}
+		}
+		
+		void flush() throws IOException {
+			buffer.flip();
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+	
+	/**
+	 * Little endian reader from a mapped file.
+	 */
+	private static class Input {
+		private ByteBuffer		buffer;
+		
+		Input(ByteBuffer nBuffer) {
+			buffer = nBuffer;
+		}
+		
+		int getInt() {
+			return buffer.getInt();
+		}
+		
+		long getLong() {
+			return buffer.getLong();
+		}
+		
+		double getDouble() {
+			return buffer.getDouble();
+		}
+		
+		Vec3 getVec3() {
+			return new Vec3(getDouble(), getDouble(), getDouble());
+		}
+		
+		Color getColor() {
+			return new Color(getDouble(), getDouble(), getDouble());
+		}
+		
+		byte[] getBytes(int length) {
+			byte[] v = new byte[length];
+			buffer.get(v);
+			return v;
+		}
+		
+		String getString() {
+			int length = getInt();
+			if(length < 0) {
+				return null;
+			}
+			return new String(getBytes(length), StandardCharsets.UTF_8);
+		}
+		
+		double[] getDoubles() {
+			double[] v = new double[getInt()];
+			buffer.asDoubleBuffer().get(v);
+			buffer.position(buffer.position() + 8 * v.length);
+			return v;
+		}
+		
+		int[] getInts() {
+			int[] v = new int[getInt()];
+			buffer.asIntBuffer().get(v);
+			buffer.position(buffer.position() + 4 * v.length);
+			return v;
+		}
+	}
+}
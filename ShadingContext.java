@@ -0,0 +1,154 @@
+/**
+ * Per-thread scratch storage used by the raytracer so that tracing and shading
+ * a ray does not allocate.
+ * Reflection recurses, so temporaries are kept in one frame per ray depth.
+ * @author fabio
+ */
+public class ShadingContext {
+	/**
+	 * Temporaries used while shading a ray at a given depth.
+	 */
+	public static class Frame {
+		/**
+		 * Intersection record.
+		 */
+		public Intersection		intersection = new Intersection();
+		/**
+		 * Light direction.
+		 */
+		public Vec3				lightDirection = new Vec3();
+		/**
+		 * Light intensity.
+		 */
+		public Color			lightIntensity = new Color();
+		/**
+		 * Material reflectance (direct lighting or mirror reflection).
+		 */
+		public Color			reflectance = new Color();
+		/**
+		 * Reflection ray.
+		 */
+		public Ray				reflectionRay = new Ray();
+		/**
+		 * Color seen along the reflection ray.
+		 */
+		public Color			reflectionColor = new Color();
+	}
+	
+	/**
+	 * Frames indexed by ray depth.
+	 */
+	private Frame[]				frames;
+	/**
+	 * Shadow ray, shadow queries do not recurse.
+	 */
+	public Ray					shadowRay;
+	/**
+	 * Camera ray generated in place by the render loops.
+	 */
+	public Ray					cameraRay;
+	/**
+	 * Sample color used by the render loops.
+	 */
+	public Color				sampleColor;
+	/**
+	 * Pixel color used by the render loops.
+	 */
+	public Color				pixelColor;
+	/**
+	 * Ray packet used by the render loops in packet mode, created on demand.
+	 */
+	private RayPacket			packet;
+	/**
+	 * Buffers of the wavefront render mode, created on demand.
+	 */
+	private Wavefront			wavefront;
+	/**
+	 * Counters of the owning thread, merged by the raytracer after each render.
+	 */
+	public RenderStatistics		statistics;
+	/**
+	 * Traversal stack of the owning thread, which counts intersection tests,
+	 * and its counters at the last merge.
+	 */
+	private BVH.TraversalStack	traversal;
+	private long				mergedNodeTests;
+	private long				mergedPrimitiveTests;
+	
+	/**
+	 * Create a context for rays up to the given depth.
+	 * Must be called on the thread that will use the context.
+	 */
+	public ShadingContext(int maxDepth) {
+		frames = new Frame[0];
+		reserve(maxDepth);
+		shadowRay = new Ray();
+		cameraRay = new Ray();
+		sampleColor = new Color();
+		pixelColor = new Color();
+		packet = null;
+		wavefront = null;
+		statistics = new RenderStatistics();
+		traversal = BVH.getTraversalStack();
+		mergedNodeTests = traversal.nodeTests;
+		mergedPrimitiveTests = traversal.primitiveTests;
+	}
+	
+	/**
+	 * Add the counters of this context to total and reset them.
+	 * Must only be called while the owning thread is not rendering.
+	 */
+	public void mergeStatistics(RenderStatistics total) {
+		statistics.nodeTests += traversal.nodeTests - mergedNodeTests;
+		statistics.primitiveTests += traversal.primitiveTests - mergedPrimitiveTests;
+		mergedNodeTests = traversal.nodeTests;
+		mergedPrimitiveTests = traversal.primitiveTests;
+		total.add(statistics);
+		statistics.reset();
+	}
+	
+	/**
+	 * Get an empty ray packet of the given size.
+	 */
+	public RayPacket packet(int size) {
+		if(packet == null || packet.getCapacity() != size) {
+			packet = new RayPacket(size);
+		}
+		packet.size = 0;
+		return packet;
+	}
+	
+	/**
+	 * Get the wavefront buffers of this thread.
+	 */
+	public Wavefront wavefront() {
+		if(wavefront == null) {
+			wavefront = new Wavefront();
+		}
+		return wavefront;
+	}
+	
+	/**
+	 * Get the frame for the given ray depth.
+	 */
+	public Frame frame(int depth) {
+		if(depth >= frames.length) {
+			reserve(depth);
+		}
+		return frames[depth];
+	}
+	
+	/**
+	 * Make sure frames exist up to the given depth.
+	 */
+	private void reserve(int maxDepth) {
+		if(maxDepth < frames.length) {
+			return;
+		}
+		Frame[] nFrames = new Frame[maxDepth+1];
+		for(int i = 0; i < nFrames.length; i ++) {
+			nFrames[i] = i < frames.length ? frames[i] : new Frame();
+		}
+		frames = nFrames;
+	}
+}
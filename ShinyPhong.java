@@ -18,6 +18,15 @@ public class ShinyPhong extends Phong {
 		return reflection.copy();
 	}
 
+	/**
+	 * Evaluate material mirror reflection storing the result in color.
+	 * @param N Surface normal.
+	 * @param I View direction  (point towards the surface).
+	 */
+	public void computeReflection(Vec3 N, Vec3 I, Color color) {
+		color.set(reflection);
+	}
+
 	/**
 	 * True if this material has mirror reflections.
 	 * @param N Surface normal.
@@ -21,10 +21,12 @@ public class Sphere extends Surface {
 	 * result true if there was an intersection.
 	 */
 	boolean intersect(Ray ray, Intersection intersection) {
-		Vec3 localOrigin = ray.origin.sub(position);
+		double lx = ray.origin.x - position.x;
+		double ly = ray.origin.y - position.y;
+		double lz = ray.origin.z - position.z;
 		double a = ray.direction.dot(ray.direction);
-		double b = 2 * ray.direction.dot(localOrigin);
-		double c = localOrigin.dot(localOrigin) - radius*radius;
+		double b = 2 * (ray.direction.x*lx + ray.direction.y*ly + ray.direction.z*lz);
+		double c = (lx*lx + ly*ly + lz*lz) - radius*radius;
 		double det = b*b - 4*a*c;
 		boolean hit = det < 0;
 		if(hit) {
@@ -33,10 +35,7 @@ public class Sphere extends Surface {
             // assume we are not inside a sphere
 			double t = (-b-Math.sqrt(det))/(2*a);
 			if(t  > ray.minDistance && t < ray.maxDistance) {
-				intersection.distance = t;
-				intersection.material = material;
-				intersection.position = ray.evaluate(intersection.distance);
-				intersection.normal = intersection.position.sub(position).normalize();
+				setIntersection(ray, t, intersection);
 				return true;
 			} else {
 				return false;				
@@ -44,4 +43,58 @@ public class Sphere extends Surface {
 		}
 	}
 
+	/**
+	 * Intersect all the lanes of the packet with this sphere.
+	 */
+	void intersect(RayPacket packet) {
+		double cx = position.x, cy = position.y, cz = position.z;
+		double rr = radius*radius;
+		int lanes = RayPacket.kernels.intersectSphere(packet, cx, cy, cz, rr);
+		for(; lanes != 0; lanes &= lanes - 1) {
+			int k = Integer.numberOfTrailingZeros(lanes);
+			double t = packet.t[k];
+			packet.hit[k] = true;
+			packet.tmax[k] = t;
+			setIntersection(packet.rays[k], t, packet.intersections[k]);
+		}
+	}
+
+	/**
+	 * Fill the intersection record for the hit of ray at t.
+	 */
+	private void setIntersection(Ray ray, double t, Intersection intersection) {
+		intersection.distance = t;
+		intersection.material = material;
+		ray.evaluate(intersection.distance, intersection.position);
+		intersection.normal.setToSub(intersection.position, position);
+		intersection.normal.setToNormalize();
+	}
+
+	/**
+	 * Return true if the given ray hits this surface between its minimum and maximum
+	 * distance.
+	 */
+	boolean occluded(Ray ray) {
+		double lx = ray.origin.x - position.x;
+		double ly = ray.origin.y - position.y;
+		double lz = ray.origin.z - position.z;
+		double a = ray.direction.dot(ray.direction);
+		double b = 2 * (ray.direction.x*lx + ray.direction.y*ly + ray.direction.z*lz);
+		double c = (lx*lx + ly*ly + lz*lz) - radius*radius;
+		double det = b*b - 4*a*c;
+		if(det < 0) {
+			return false;
+		}
+		// same convention as intersect: only the near root counts
+		double t = (-b-Math.sqrt(det))/(2*a);
+		return t > ray.minDistance && t < ray.maxDistance;
+	}
+
+	/**
+	 * Compute the world space bounds of this surface.
+	 */
+	BoundingBox computeBoundingBox() {
+		Vec3 r = new Vec3(radius,radius,radius);
+		return new BoundingBox(position.sub(r), position.add(r));
+	}
 }
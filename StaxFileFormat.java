@@ -0,0 +1,485 @@
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Streaming version of the XML scene parser.
+ * 
+ * Accepts the same scene and frame formats as FileFormat (see there), including
+ * the "class=className" attribute and the parser callbacks, but reads the
+ * file with a pull parser, so no document tree is ever built, and creates
+ * objects through binders computed once per class: method handles for the
+ * constructor, the public fields and initFromParser. Numbers are scanned
+ * directly from the element text without tokenizing it into strings.
+ * References ("ref=id") must come after the element defining the id.
+ * 
+ * @author fabio
+ */
+public class StaxFileFormat extends FileFormat {
+	/**
+	 * Binders of the classes seen so far, shared by all parsers.
+	 */
+	private static final Map<Class<?>,ClassBinder> binders = 
+		new ConcurrentHashMap<Class<?>,ClassBinder>();
+	
+	private XMLInputFactory				factory;
+	
+	/**
+	 * Numbers of the element being parsed, reused across elements.
+	 */
+	private MeshFormat.DoubleList		numbers;
+	private byte[]						text;
+	
+	public StaxFileFormat() {
+		super((DocumentBuilder)null);
+		factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		numbers = new MeshFormat.DoubleList();
+		text = new byte[256];
+	}
+	
+	public Scene parseXMLScene(String filename) throws ParserException {
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(filename), 1 << 16);
+			XMLStreamReader reader = factory.createXMLStreamReader(in);
+			objects.clear();
+			try {
+				reader.nextTag();
+				return (Scene)parseObject(reader, Scene.class);
+			} finally {
+				reader.close();
+			}
+		} catch(XMLStreamException e) {
+			throw new ParserException("Problems parsing XML document", e);
+		} catch(IOException e) {
+			throw new ParserException("Problems reading XML document", e);
+		} finally {
+			if(in != null) {
+				try {
+					in.close();
+				} catch(IOException e) {
+				}
+			}
+		}
+	}
+	
+	public List<Object> parseXMLFrame(String filename) throws ParserException {
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(filename), 1 << 16);
+			XMLStreamReader reader = factory.createXMLStreamReader(in);
+			try {
+				List<Object> updated = new ArrayList<Object>();
+				reader.nextTag();
+				while(reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					String ref = reader.getAttributeValue(null, "ref");
+					if(!reader.getLocalName().equals("update") || ref == null) {
+						throw new ParserException("Frame elements must be updates with a ref: " + 
+								reader.getLocalName());
+					}
+					if(reader.getAttributeValue(null, "id") != null || 
+							reader.getAttributeValue(null, "class") != null) {
+						throw new ParserException("Cannot have id, class or content on update " + ref);
+					}
+					Object object = resolveReference(ref, Object.class);
+					ClassBinder binder = getBinder(object.getClass());
+					parseVariables(reader, object, binder, object.getClass());
+					MethodHandle update = binder.update != null ? binder.update : binder.init;
+					if(update != null) {
+						try {
+							update.invokeExact(object);
+						} catch(Throwable e) {
+							throw new ParserException("Cannot initialize object of " + 
+									object.getClass() + ": " + e, e);
+						}
+					}
+					updated.add(object);
+				}
+				return updated;
+			} finally {
+				reader.close();
+			}
+		} catch(XMLStreamException e) {
+			throw new ParserException("Problems parsing XML document", e);
+		} catch(IOException e) {
+			throw new ParserException("Problems reading XML document", e);
+		} finally {
+			if(in != null) {
+				try {
+					in.close();
+				} catch(IOException e) {
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Parse the element the reader is on as an object of class c (or of the class
+	 * given by its class attribute), leaving the reader on its end tag.
+	 */
+	private Object parseObject(XMLStreamReader r, Class<?> c) throws ParserException, XMLStreamException {
+		// determine if this is a reference
+		String ref = r.getAttributeValue(null, "ref");
+		String id = r.getAttributeValue(null, "id");
+		if(ref != null) {
+			if(id != null || r.getAttributeValue(null, "class") != null) {
+				throw new ParserException("Cannot have id or class on reference " + ref);
+			}
+			if(readText(r).trim().length() != 0) {
+				throw new ParserException("Cannot have content on reference " + ref);
+			}
+			return resolveReference(ref, c);
+		}
+		
+		// determine the new class to create
+		Class<?> nc = c;
+		String className = r.getAttributeValue(null, "class");
+		if(className != null) {
+			try {
+				nc = Class.forName(className);
+			} catch(Exception e) {
+				throw new ParserException("Cannot create class " + nc, e);
+			}
+			if(!c.isAssignableFrom(nc)) {
+				throw new ParserException("Cannot set " + c + " with an object of class " + nc);
+			}
+		}
+		ClassBinder binder = getBinder(nc);
+		Object ret = null;
+		try {
+			ret = (Object)binder.constructor.invokeExact();
+		} catch(Throwable e) {
+			throw new ParserException("Cannot create an object of " + nc, e);
+		}
+		
+		parseVariables(r, ret, binder, nc);
+		
+		// call the parser call back if available
+		if(binder.init != null) {
+			try {
+				binder.init.invokeExact(ret);
+			} catch(Throwable e) {
+				throw new ParserException("Cannot initialize object of " + nc + 
+						": " + e, e);
+			}
+		}
+		if(id != null) {
+			defineReference(id, ret);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Parse the children of the element the reader is on as variables of the
+	 * object ret of class nc, leaving the reader on its end tag.
+	 */
+	private void parseVariables(XMLStreamReader r, Object ret, ClassBinder binder, Class<?> nc) 
+			throws ParserException, XMLStreamException {
+		while(true) {
+			int event = r.next();
+			if(event == XMLStreamConstants.END_ELEMENT) {
+				break;
+			} else if(event == XMLStreamConstants.CHARACTERS && !r.isWhiteSpace()) {
+				throw new ParserException("Content not allowed in generic class" + nc);
+			} else if(event != XMLStreamConstants.START_ELEMENT) {
+				continue;
+			}
+			FieldBinder field = binder.fields.get(r.getLocalName());
+			if(field == null) {
+				throw new ParserException("Variable " + r.getLocalName() + " not in " + nc);
+			}
+			if(field.setter == null) {
+				throw new ParserException("Cannot assign to member " + field.name + 
+						" of class " + nc + " of type " + field.type);
+			}
+			try {
+				switch(field.kind) {
+				case FieldBinder.INT:
+					field.setter.invokeExact(ret, (int)parseNumber(r, field.type));
+					break;
+				case FieldBinder.FLOAT:
+					field.setter.invokeExact(ret, (float)parseNumber(r, field.type));
+					break;
+				case FieldBinder.DOUBLE:
+					field.setter.invokeExact(ret, parseNumber(r, field.type));
+					break;
+				case FieldBinder.BUILTIN:
+					field.setter.invokeExact(ret, parseBuiltin(r, field.type));
+					break;
+				case FieldBinder.BUILTIN_ARRAY:
+					field.setter.invokeExact(ret, parseBuiltinArray(r, field.type.getComponentType()));
+					break;
+				case FieldBinder.OBJECT_ARRAY:
+					field.setter.invokeExact(ret, parseArray(r, field.type.getComponentType()));
+					break;
+				default:
+					field.setter.invokeExact(ret, parseObject(r, field.type));
+				}
+			} catch(ParserException e) {
+				throw e;
+			} catch(XMLStreamException e) {
+				throw e;
+			} catch(Throwable e) {
+				throw new ParserException("Cannot assign to member " + field.name + 
+						" of class " + nc, e);
+			}
+		}
+	}
+	
+	private Object parseArray(XMLStreamReader r, Class<?> c) throws ParserException, XMLStreamException {
+		checkNoAttributes(r, c);
+		List<Object> elements = new ArrayList<Object>();
+		while(true) {
+			int event = r.next();
+			if(event == XMLStreamConstants.END_ELEMENT) {
+				break;
+			} else if(event == XMLStreamConstants.CHARACTERS && !r.isWhiteSpace()) {
+				throw new ParserException("Cannot have content on arrays " + c);
+			} else if(event == XMLStreamConstants.START_ELEMENT) {
+				elements.add(parseObject(r, c));
+			}
+		}
+		Object ret = Array.newInstance(c, elements.size());
+		for(int i = 0; i < elements.size(); i ++) {
+			Array.set(ret, i, elements.get(i));
+		}
+		return ret;
+	}
+	
+	/**
+	 * Parse a String, Vec3 or Color.
+	 */
+	private Object parseBuiltin(XMLStreamReader r, Class<?> c) throws ParserException, XMLStreamException {
+		if(c.equals(String.class)) {
+			checkNoAttributes(r, c);
+			return readText(r);
+		}
+		Object array = parseBuiltinArray(r, c);
+		if(Array.getLength(array) != 1) {
+			throw new ParserException("Expected builtin not array when parsing " + c);
+		}
+		return Array.get(array, 0);
+	}
+	
+	/**
+	 * Parse a single int, float or double.
+	 */
+	private double parseNumber(XMLStreamReader r, Class<?> c) throws ParserException, XMLStreamException {
+		scanNumbers(r, c);
+		if(numbers.size != 1) {
+			throw new ParserException("Expected builtin not array when parsing " + c);
+		}
+		return numbers.data[0];
+	}
+	
+	private Object parseBuiltinArray(XMLStreamReader r, Class<?> c) throws ParserException, XMLStreamException {
+		if(c.equals(String.class)) {
+			throw new ParserException("Arrays of strings not supported " + c);
+		}
+		scanNumbers(r, c);
+		double[] values = numbers.data;
+		int n = numbers.size;
+		if(c.equals(Integer.TYPE)) {
+			int[] ret = new int[n];
+			for(int i = 0; i < n; i ++) ret[i] = (int)values[i];
+			return ret;
+		} else if(c.equals(Float.TYPE)) {
+			float[] ret = new float[n];
+			for(int i = 0; i < n; i ++) ret[i] = (float)values[i];
+			return ret;
+		} else if(c.equals(Double.TYPE)) {
+			return numbers.toArray();
+		} else if(c.equals(Vec3.class)) {
+			Vec3[] ret = new Vec3[n / 3];
+			for(int i = 0; i < ret.length; i ++) {
+				ret[i] = new Vec3(values[3*i], values[3*i+1], values[3*i+2]);
+			}
+			return ret;
+		} else {
+			Color[] ret = new Color[n / 3];
+			for(int i = 0; i < ret.length; i ++) {
+				ret[i] = new Color(values[3*i], values[3*i+1], values[3*i+2]);
+			}
+			return ret;
+		}
+	}
+	
+	/**
+	 * Scan the whitespace separated numbers of the element text into numbers.
+	 */
+	private void scanNumbers(XMLStreamReader r, Class<?> c) throws ParserException, XMLStreamException {
+		checkNoAttributes(r, c);
+		String content = readText(r);
+		int length = content.length();
+		if(text.length < length) {
+			text = new byte[Math.max(length, 2 * text.length)];
+		}
+		for(int i = 0; i < length; i ++) {
+			char ch = content.charAt(i);
+			text[i] = ch < 128 ? (byte)ch : (byte)'?';
+		}
+		numbers.size = 0;
+		int pos = 0;
+		try {
+			while(true) {
+				while(pos < length && isSpace(text[pos])) pos ++;
+				if(pos == length) {
+					break;
+				}
+				int end = pos;
+				while(end < length && !isSpace(text[end])) end ++;
+				numbers.add(MeshFormat.parseDouble(text, pos, end));
+				pos = end;
+			}
+		} catch(IOException e) {
+			throw new ParserException("Expected number", e);
+		}
+	}
+	
+	/**
+	 * Text of the current element, leaving the reader on its end tag.
+	 */
+	private String readText(XMLStreamReader r) throws ParserException, XMLStreamException {
+		String content = null;
+		while(true) {
+			int event = r.next();
+			if(event == XMLStreamConstants.END_ELEMENT) {
+				return content == null ? "" : content;
+			} else if(event == XMLStreamConstants.START_ELEMENT) {
+				throw new ParserException("Cannot have children on builtin types: " + r.getLocalName());
+			} else if(event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+				content = content == null ? r.getText() : content + r.getText();
+			}
+		}
+	}
+	
+	private void checkNoAttributes(XMLStreamReader r, Class<?> c) throws ParserException {
+		if(r.getAttributeValue(null, "id") != null || r.getAttributeValue(null, "class") != null ||
+				r.getAttributeValue(null, "ref") != null) {
+			throw new ParserException("Cannot have attributes on builtin types or arrays of type " + c);
+		}
+	}
+	
+	private static boolean isSpace(byte c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+	
+	private ClassBinder getBinder(Class<?> c) throws ParserException {
+		ClassBinder binder = binders.get(c);
+		if(binder == null) {
+			try {
+				binder = new ClassBinder(c);
+			} catch(ReflectiveOperationException e) {
+				throw new ParserException("Cannot create an object of " + c, e);
+			}
+			binders.put(c, binder);
+		}
+		return binder;
+	}
+	
+	/**
+	 * Constructor, public field setters, initFromParser and updateFromParser
+	 * of a class.
+	 */
+	private static class ClassBinder {
+		MethodHandle				constructor;
+		Map<String,FieldBinder>		fields;
+		MethodHandle				init;
+		MethodHandle				update;
+		
+		ClassBinder(Class<?> type) throws ReflectiveOperationException {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			constructor = lookup.findConstructor(type, MethodType.methodType(void.class))
+				.asType(MethodType.methodType(Object.class));
+			fields = new HashMap<String,FieldBinder>();
+			for(Field field : type.getFields()) {
+				if(!Modifier.isStatic(field.getModifiers())) {
+					fields.put(field.getName(), new FieldBinder(field, lookup));
+				}
+			}
+			init = null;
+			try {
+				Method method = type.getMethod("initFromParser");
+				init = lookup.unreflect(method).asType(MethodType.methodType(void.class, Object.class));
+			} catch(NoSuchMethodException e) {
+			}
+			update = null;
+			try {
+				Method method = type.getMethod("updateFromParser");
+				update = lookup.unreflect(method).asType(MethodType.methodType(void.class, Object.class));
+			} catch(NoSuchMethodException e) {
+			}
+		}
+	}
+	
+	/**
+	 * Setter of a public field, typed by kind so primitives are not boxed.
+	 */
+	private static class FieldBinder {
+		static final int			INT = 0, FLOAT = 1, DOUBLE = 2, BUILTIN = 3,
+									BUILTIN_ARRAY = 4, OBJECT = 5, OBJECT_ARRAY = 6;
+		String						name;
+		Class<?>					type;
+		int							kind;
+		MethodHandle				setter;
+		
+		FieldBinder(Field field, MethodHandles.Lookup lookup) throws IllegalAccessException {
+			name = field.getName();
+			type = field.getType();
+			Class<?> value = Object.class;
+			if(type.equals(Integer.TYPE)) {
+				kind = INT;
+				value = int.class;
+			} else if(type.equals(Float.TYPE)) {
+				kind = FLOAT;
+				value = float.class;
+			} else if(type.equals(Double.TYPE)) {
+				kind = DOUBLE;
+				value = double.class;
+			} else if(isBuiltin(type)) {
+				kind = BUILTIN;
+			} else if(type.isArray() && (isBuiltin(type.getComponentType()) || 
+					type.getComponentType().equals(Integer.TYPE) || 
+					type.getComponentType().equals(Float.TYPE) || 
+					type.getComponentType().equals(Double.TYPE))) {
+				kind = BUILTIN_ARRAY;
+			} else if(type.isArray() && !type.getComponentType().isPrimitive()) {
+				kind = OBJECT_ARRAY;
+			} else if(!type.isPrimitive() && !type.isArray()) {
+				kind = OBJECT;
+			} else {
+				kind = -1;
+			}
+			// unsupported types and final fields fail when used, as in FileFormat
+			setter = null;
+			if(kind >= 0 && !Modifier.isFinal(field.getModifiers())) {
+				setter = lookup.unreflectSetter(field)
+						.asType(MethodType.methodType(void.class, Object.class, value));
+			}
+		}
+		
+		private boolean isBuiltin(Class<?> c) {
+			return c.equals(Vec3.class) || c.equals(Color.class) || c.equals(String.class);
+		}
+	}
+}
@@ -8,4 +8,38 @@ public abstract class Surface {
 	 * result true if there was an intersection.
 	 */
 	abstract boolean intersect(Ray ray, Intersection intersection);
+
+	/**
+	 * Return true if the given ray hits this surface between its minimum and maximum
+	 * distance. Used for shadow rays, so no intersection record is filled.
+	 * Subclasses should override this to avoid computing the full intersection.
+	 */
+	boolean occluded(Ray ray) {
+		return intersect(ray, new Intersection());
+	}
+
+	/**
+	 * Intersect the rays of the packet with this surface, updating the closest
+	 * hit of the lanes it hits (see RayPacket).
+	 * Subclasses should override this to test all the lanes in one loop; by
+	 * default each lane is intersected as a single ray.
+	 */
+	void intersect(RayPacket packet) {
+		for(int k = 0; k < packet.size; k ++) {
+			Ray ray = packet.rays[k];
+			double maxDistance = ray.maxDistance;
+			ray.maxDistance = packet.tmax[k];
+			if(intersect(ray, packet.intersections[k])) {
+				packet.hit[k] = true;
+				packet.tmax[k] = packet.intersections[k].distance;
+			}
+			ray.maxDistance = maxDistance;
+		}
+	}
+
+	/**
+	 * Compute the world space bounds of this surface.
+	 * Used to build the scene acceleration structure.
+	 */
+	abstract BoundingBox computeBoundingBox();
 }
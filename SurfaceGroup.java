@@ -0,0 +1,152 @@
+/**
+ * Group of surfaces with its own acceleration structure, used as the shared
+ * geometry of instances (see Instance).
+ * 
+ * In the scene file a group is usually declared among the scene prototypes,
+ * with an id the instances refer to:
+ * <prototypes>
+ *   <prototype class="SurfaceGroup" id="tree">
+ *     <surfaces>
+ *       <surface class="TriangleMesh"> ... </surface>
+ *       <surface class="Sphere"> ... </surface>
+ *     </surfaces>
+ *   </prototype>
+ * </prototypes>
+ * 
+ * @author fabio
+ */
+public class SurfaceGroup extends Surface implements BVH.Primitives {
+	/**
+	 * Surfaces of the group.
+	 */
+	public Surface[]			surfaces;
+	/**
+	 * Acceleration structure over the surfaces.
+	 */
+	BVH							bvh;
+	
+	/**
+	 * Default constructor.
+	 * Group is initialized in the Loader.
+	 */
+	public SurfaceGroup() {
+		surfaces = new Surface[0];
+		bvh = null;
+	}
+	
+	/**
+	 * Build the acceleration structure.
+	 * Used by the parser.
+	 */
+	public void initFromParser() {
+		build();
+	}
+	
+	/**
+	 * Nothing to do after an animation frame updates the group: Animation
+	 * refits it, after the surfaces it contains. Defined so that the parser
+	 * does not build it with initFromParser.
+	 */
+	public void updateFromParser() {
+	}
+	
+	/**
+	 * Build the acceleration structure over the surfaces.
+	 * Needs to be called again if the surfaces change.
+	 */
+	public void build() {
+		bvh = new BVH(computeSurfaceBounds(), surfaces.length);
+	}
+	
+	/**
+	 * Update the acceleration structure after surfaces moved or changed shape,
+	 * refitting it if the surfaces are the same ones it was built over (see
+	 * Scene.refitAccelerationStructure).
+	 */
+	public void refit() {
+		if(bvh == null || bvh.primitives.length != surfaces.length) {
+			build();
+			return;
+		}
+		double[] bounds = computeSurfaceBounds();
+		if(!bvh.refit(bounds)) {
+			bvh = new BVH(bounds, surfaces.length);
+		}
+	}
+	
+	/**
+	 * Bounds of the surfaces in the flattened layout of the BVH.
+	 */
+	private double[] computeSurfaceBounds() {
+		final double[] bounds = new double[6*surfaces.length];
+		new BVHBuilder.ParallelLoop() {
+			void run(int lo, int hi) {
+				for(int i = lo; i < hi; i ++) {
+					surfaces[i].computeBoundingBox().toArray(bounds, 6*i);
+				}
+			}
+		}.invoke(surfaces.length);
+		return bounds;
+	}
+	
+	/**
+	 * Intersect the given ray with this group storing the result in intersection and
+	 * result true if there was an intersection.
+	 */
+	boolean intersect(Ray ray, Intersection intersection) {
+		return bvh.intersect(ray, intersection, this);
+	}
+	
+	/**
+	 * Return true if the given ray hits this group between its minimum and maximum
+	 * distance.
+	 */
+	boolean occluded(Ray ray) {
+		return bvh.occluded(ray, this);
+	}
+	
+	/**
+	 * Intersect the rays of the packet with this group.
+	 */
+	void intersect(RayPacket packet) {
+		bvh.intersect(packet, this);
+	}
+	
+	/**
+	 * Compute the bounds of the group.
+	 */
+	BoundingBox computeBoundingBox() {
+		if(bvh != null) {
+			return bvh.getBounds();
+		}
+		BoundingBox box = new BoundingBox();
+		for(int i = 0; i < surfaces.length; i ++) {
+			box.setToUnion(surfaces[i].computeBoundingBox());
+		}
+		return box;
+	}
+	
+	/**
+	 * Intersect the given ray with the i-th surface.
+	 * Used by the acceleration structure.
+	 */
+	public boolean intersectPrimitive(int i, Ray ray, Intersection intersection) {
+		return surfaces[i].intersect(ray, intersection);
+	}
+	
+	/**
+	 * Check the given ray against the i-th surface.
+	 * Used by the acceleration structure.
+	 */
+	public boolean occludedPrimitive(int i, Ray ray) {
+		return surfaces[i].occluded(ray);
+	}
+	
+	/**
+	 * Intersect the packet with the i-th surface.
+	 * Used by the acceleration structure.
+	 */
+	public void intersectPrimitive(int i, RayPacket packet) {
+		surfaces[i].intersect(packet);
+	}
+}
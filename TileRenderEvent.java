@@ -0,0 +1,22 @@
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event spanning the render of one tile.
+ * @author fabio
+ */
+@Name("raytracer.TileRender")
+@Label("Tile Render")
+@Category("Ray Tracer")
+public class TileRenderEvent extends Event {
+	@Label("X0")
+	public int					x0;
+	@Label("Y0")
+	public int					y0;
+	@Label("X1")
+	public int					x1;
+	@Label("Y1")
+	public int					y1;
+}
@@ -32,17 +32,19 @@ public class Triangle extends Surface {
 		// intersect with a plane
 		double t = - (normal.dot(ray.origin) - normal.dot(v0)) /
 			(ray.direction.dot(normal));
-		Vec3 P = ray.evaluate(t);
+		double px = ray.origin.x + ray.direction.x * t;
+		double py = ray.origin.y + ray.direction.y * t;
+		double pz = ray.origin.z + ray.direction.z * t;
 		// check if inside
 		boolean hit = 
-			normal.dot((v1.sub(v0)).cross(P.sub(v0))) > 0 &&
-			normal.dot((v2.sub(v1)).cross(P.sub(v1))) > 0 &&
-			normal.dot((v0.sub(v2)).cross(P.sub(v2))) > 0;
+			edgeTest(v0, v1, px, py, pz) &&
+			edgeTest(v1, v2, px, py, pz) &&
+			edgeTest(v2, v0, px, py, pz);
 		// set intersection
 		if(hit) {
 			if(t  > ray.minDistance && t < ray.maxDistance) {
 				intersection.distance = t;
-				intersection.position.set(P);
+				intersection.position.set(px, py, pz);
 				intersection.normal.set(normal);
 				intersection.material = material;
 				return true;
@@ -51,6 +53,67 @@ public class Triangle extends Surface {
 		return false;
 	}
 
+	/**
+	 * Intersect all the lanes of the packet with this triangle.
+	 */
+	void intersect(RayPacket packet) {
+		int lanes = RayPacket.kernels.intersectTriangle(packet, normal, normal.dot(v0), v0, v1, v2);
+		for(; lanes != 0; lanes &= lanes - 1) {
+			int k = Integer.numberOfTrailingZeros(lanes);
+			double t = packet.t[k];
+			packet.hit[k] = true;
+			packet.tmax[k] = t;
+			Intersection intersection = packet.intersections[k];
+			intersection.distance = t;
+			intersection.position.set(packet.ox[k] + packet.dx[k] * t,
+					packet.oy[k] + packet.dy[k] * t,
+					packet.oz[k] + packet.dz[k] * t);
+			intersection.normal.set(normal);
+			intersection.material = material;
+		}
+	}
+
+	/**
+	 * Return true if the given ray hits this surface between its minimum and maximum
+	 * distance.
+	 */
+	boolean occluded(Ray ray) {
+		double t = - (normal.dot(ray.origin) - normal.dot(v0)) /
+			(ray.direction.dot(normal));
+		if(!(t > ray.minDistance && t < ray.maxDistance)) {
+			return false;
+		}
+		double px = ray.origin.x + ray.direction.x * t;
+		double py = ray.origin.y + ray.direction.y * t;
+		double pz = ray.origin.z + ray.direction.z * t;
+		return edgeTest(v0, v1, px, py, pz) &&
+			   edgeTest(v1, v2, px, py, pz) &&
+			   edgeTest(v2, v0, px, py, pz);
+	}
+
+	/**
+	 * Check if the point P lies on the inner side of the edge (a,b), i.e. compute
+	 * normal . ((b - a) x (P - a)) > 0 without allocating temporaries.
+	 */
+	private boolean edgeTest(Vec3 a, Vec3 b, double px, double py, double pz) {
+		double ex = b.x - a.x, ey = b.y - a.y, ez = b.z - a.z;
+		double qx = px - a.x, qy = py - a.y, qz = pz - a.z;
+		return normal.x * (ey*qz - ez*qy) +
+			   normal.y * (ez*qx - ex*qz) +
+			   normal.z * (ex*qy - ey*qx) > 0;
+	}
+
+	/**
+	 * Compute the world space bounds of this surface.
+	 */
+	BoundingBox computeBoundingBox() {
+		BoundingBox box = new BoundingBox();
+		box.setToUnion(v0);
+		box.setToUnion(v1);
+		box.setToUnion(v2);
+		return box;
+	}
+
 	/**
 	 * Set the normal as orthogonal to the triangle plane.
 	 * Use by the parser.
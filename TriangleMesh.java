@@ -0,0 +1,283 @@
+import java.io.IOException;
+
+/**
+ * Triangle mesh stored in flat arrays.
+ * 
+ * Vertex positions are stored in one array (x,y,z per vertex) and triangles
+ * as triples of vertex indices, so that a large mesh is a few arrays instead of
+ * one object per triangle. Edge vectors are precomputed per triangle for the
+ * Moller-Trumbore intersection test and the mesh keeps its own acceleration
+ * structure over the triangles.
+ * 
+ * In the scene file a mesh is given as
+ * <surface class="TriangleMesh">
+ *   <positions>x0 y0 z0 x1 y1 z1 ...</positions>
+ *   <indices>i0 j0 k0 i1 j1 k1 ...</indices>
+ *   <material class="Lambert"> ... </material>
+ * </surface>
+ * or, loading positions and indices from a Wavefront OBJ or binary PLY file,
+ * <surface class="TriangleMesh">
+ *   <filename>models/bunny.ply</filename>
+ *   <material class="Lambert"> ... </material>
+ * </surface>
+ * 
+ * @author fabio
+ */
+public class TriangleMesh extends Surface implements BVH.Primitives {
+	/**
+	 * Material.
+	 */
+	public Material				material;
+	/**
+	 * Vertex positions, three values per vertex.
+	 */
+	public double[]				positions;
+	/**
+	 * Vertex indices, three per triangle.
+	 */
+	public int[]				indices;
+	/**
+	 * Optional mesh file (.obj or .ply) positions and indices are loaded from.
+	 * Relative paths are resolved against the working directory.
+	 */
+	public String				filename;
+	/**
+	 * Edge vectors v1-v0 and v2-v0, six values per triangle.
+	 */
+	double[]					edges;
+	/**
+	 * Acceleration structure over the triangles.
+	 */
+	BVH							bvh;
+	
+	/**
+	 * Default constructor.
+	 * Mesh data is initialized in the Loader.
+	 */
+	public TriangleMesh() {
+		material = null;
+		positions = new double[0];
+		indices = new int[0];
+		filename = null;
+		edges = null;
+		bvh = null;
+	}
+	
+	/**
+	 * Load the mesh file if given, then precompute edges and build the
+	 * acceleration structure.
+	 * Used by the parser.
+	 */
+	public void initFromParser() throws IOException {
+		if(filename != null) {
+			MeshFormat.load(filename, this);
+		}
+		build();
+	}
+	
+	/**
+	 * Precompute edges and build the acceleration structure.
+	 * Needs to be called again if positions or indices change.
+	 */
+	public void build() {
+		bvh = new BVH(computeEdgesAndBounds(), getTriangleCount());
+	}
+	
+	/**
+	 * Update edges and the acceleration structure after positions changed.
+	 * If the number of triangles is the same the hierarchy is refitted in
+	 * linear time, and only built again when refitting degraded it too much
+	 * (see BVH.refit); otherwise the mesh is built from scratch.
+	 */
+	public void refit() {
+		int numTriangles = getTriangleCount();
+		if(bvh == null || bvh.primitives.length != numTriangles) {
+			build();
+			return;
+		}
+		double[] bounds = computeEdgesAndBounds();
+		if(!bvh.refit(bounds)) {
+			bvh = new BVH(bounds, numTriangles);
+		}
+	}
+	
+	/**
+	 * Nothing to do after an animation frame updates the mesh: Animation
+	 * refits it, before the surfaces that contain it. Defined so that the
+	 * parser does not load and build the mesh again with initFromParser.
+	 */
+	public void updateFromParser() {
+	}
+	
+	/**
+	 * Precompute the edges and return the bounds of the triangles in the
+	 * flattened layout of the BVH.
+	 */
+	private double[] computeEdgesAndBounds() {
+		int numTriangles = getTriangleCount();
+		if(edges == null || edges.length != 6*numTriangles) {
+			edges = new double[6*numTriangles];
+		}
+		final double[] bounds = new double[6*numTriangles];
+		new BVHBuilder.ParallelLoop() {
+			void run(int lo, int hi) {
+				for(int t = lo; t < hi; t ++) {
+					int i0 = 3*indices[3*t+0];
+					int i1 = 3*indices[3*t+1];
+					int i2 = 3*indices[3*t+2];
+					for(int a = 0; a < 3; a ++) {
+						edges[6*t+a] = positions[i1+a] - positions[i0+a];
+						edges[6*t+3+a] = positions[i2+a] - positions[i0+a];
+						bounds[6*t+a] = Math.min(positions[i0+a], Math.min(positions[i1+a], positions[i2+a]));
+						bounds[6*t+3+a] = Math.max(positions[i0+a], Math.max(positions[i1+a], positions[i2+a]));
+					}
+				}
+			}
+		}.invoke(numTriangles);
+		return bounds;
+	}
+	
+	/**
+	 * Number of triangles.
+	 */
+	public int getTriangleCount() {
+		return indices.length / 3;
+	}
+	
+	/**
+	 * Intersect the given ray with this scene storing the result in intersection and
+	 * result true if there was an intersection.
+	 */
+	boolean intersect(Ray ray, Intersection intersection) {
+		return bvh.intersect(ray, intersection, this);
+	}
+	
+	/**
+	 * Return true if the given ray hits this surface between its minimum and maximum
+	 * distance.
+	 */
+	boolean occluded(Ray ray) {
+		return bvh.occluded(ray, this);
+	}
+	
+	/**
+	 * Intersect the rays of the packet with this mesh.
+	 */
+	void intersect(RayPacket packet) {
+		bvh.intersect(packet, this);
+	}
+	
+	/**
+	 * Compute the world space bounds of this surface.
+	 */
+	BoundingBox computeBoundingBox() {
+		if(bvh != null) {
+			return bvh.getBounds();
+		}
+		BoundingBox box = new BoundingBox();
+		for(int i = 0; i < positions.length; i += 3) {
+			box.min.x = Math.min(box.min.x, positions[i+0]);
+			box.min.y = Math.min(box.min.y, positions[i+1]);
+			box.min.z = Math.min(box.min.z, positions[i+2]);
+			box.max.x = Math.max(box.max.x, positions[i+0]);
+			box.max.y = Math.max(box.max.y, positions[i+1]);
+			box.max.z = Math.max(box.max.z, positions[i+2]);
+		}
+		return box;
+	}
+	
+	/**
+	 * Intersect the given ray with the given triangle.
+	 * Used by the acceleration structure.
+	 */
+	public boolean intersectPrimitive(int triangle, Ray ray, Intersection intersection) {
+		double t = intersectTriangle(triangle, ray);
+		if(t > ray.minDistance && t < ray.maxDistance) {
+			setIntersection(triangle, ray, t, intersection);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Intersect the lanes of the packet with the given triangle.
+	 * Used by the acceleration structure.
+	 */
+	public void intersectPrimitive(int triangle, RayPacket packet) {
+		int lanes = RayPacket.kernels.intersectMeshTriangle(packet,
+				edges, 6*triangle, positions, 3*indices[3*triangle]);
+		for(; lanes != 0; lanes &= lanes - 1) {
+			int k = Integer.numberOfTrailingZeros(lanes);
+			double t = packet.t[k];
+			packet.hit[k] = true;
+			packet.tmax[k] = t;
+			setIntersection(triangle, packet.rays[k], t, packet.intersections[k]);
+		}
+	}
+	
+	/**
+	 * Fill the intersection record for the hit of ray with the given triangle at t.
+	 */
+	private void setIntersection(int triangle, Ray ray, double t, Intersection intersection) {
+		int e = 6*triangle;
+		intersection.distance = t;
+		intersection.material = material;
+		ray.evaluate(t, intersection.position);
+		intersection.normal.set(
+				edges[e+1]*edges[e+5] - edges[e+2]*edges[e+4],
+				edges[e+2]*edges[e+3] - edges[e+0]*edges[e+5],
+				edges[e+0]*edges[e+4] - edges[e+1]*edges[e+3]);
+		intersection.normal.setToNormalize();
+	}
+	
+	/**
+	 * Check the given ray against the given triangle.
+	 * Used by the acceleration structure.
+	 */
+	public boolean occludedPrimitive(int triangle, Ray ray) {
+		double t = intersectTriangle(triangle, ray);
+		return t > ray.minDistance && t < ray.maxDistance;
+	}
+	
+	/**
+	 * Moller-Trumbore ray-triangle test.
+	 * Returns the ray parameter of the hit or NaN if the ray misses the triangle.
+	 */
+	private double intersectTriangle(int triangle, Ray ray) {
+		int e = 6*triangle;
+		int v = 3*indices[3*triangle];
+		double e1x = edges[e+0], e1y = edges[e+1], e1z = edges[e+2];
+		double e2x = edges[e+3], e2y = edges[e+4], e2z = edges[e+5];
+		double dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+		
+		// p = d x e2
+		double px = dy*e2z - dz*e2y;
+		double py = dz*e2x - dx*e2z;
+		double pz = dx*e2y - dy*e2x;
+		double det = e1x*px + e1y*py + e1z*pz;
+		if(det == 0) {
+			return Double.NaN;
+		}
+		double invDet = 1 / det;
+		
+		// barycentric u
+		double sx = ray.origin.x - positions[v+0];
+		double sy = ray.origin.y - positions[v+1];
+		double sz = ray.origin.z - positions[v+2];
+		double u = (sx*px + sy*py + sz*pz) * invDet;
+		if(u < 0 || u > 1) {
+			return Double.NaN;
+		}
+		
+		// barycentric v, q = s x e1
+		double qx = sy*e1z - sz*e1y;
+		double qy = sz*e1x - sx*e1z;
+		double qz = sx*e1y - sy*e1x;
+		double w = (dx*qx + dy*qy + dz*qz) * invDet;
+		if(w < 0 || u + w > 1) {
+			return Double.NaN;
+		}
+		
+		return (e2x*qx + e2y*qy + e2z*qz) * invDet;
+	}
+}
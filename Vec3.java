@@ -52,6 +52,15 @@ public class Vec3 {
 		y = v.y;
 		z = v.z;				
 	}
+	
+	/**
+	 * Assignment to given values.
+	 */
+	public void set(double nx, double ny, double nz) {
+		x = nx;
+		y = ny;
+		z = nz;
+	}
 
 	/**
 	 * Vector negatation.
@@ -78,6 +87,16 @@ public class Vec3 {
 		z *= s;
 	}
 
+	/**
+	 * Vector scalar multiply.
+	 * Assigns v * s to this vector.
+	 */
+	public void setToScale(Vec3 v, double s) {
+		x = v.x * s;
+		y = v.y * s;
+		z = v.z * s;
+	}
+
 	/**
 	 * Vector scalar multiply.
 	 */
@@ -97,6 +116,26 @@ public class Vec3 {
 		z += v.z;
 	}
 	
+	/**
+	 * Vector component-wise addition.
+	 * Assigns a + b to this vector.
+	 */
+	public void setToAdd(Vec3 a, Vec3 b) {
+		x = a.x + b.x;
+		y = a.y + b.y;
+		z = a.z + b.z;
+	}
+	
+	/**
+	 * Vector multiply and add.
+	 * Assigns a + b * s to this vector.
+	 */
+	public void setToScaleAdd(Vec3 a, Vec3 b, double s) {
+		x = a.x + b.x * s;
+		y = a.y + b.y * s;
+		z = a.z + b.z * s;
+	}
+	
 	/**
 	 * Vector component-wise addition.
 	 */
@@ -116,6 +155,16 @@ public class Vec3 {
 		z -= v.z;
 	}
 	
+	/**
+	 * Vector component-wise subtraction.
+	 * Assigns a - b to this vector.
+	 */
+	public void setToSub(Vec3 a, Vec3 b) {
+		x = a.x - b.x;
+		y = a.y - b.y;
+		z = a.z - b.z;
+	}
+	
 	/**
 	 * Vector component-wise subtraction.
 	 */
@@ -169,8 +218,20 @@ public class Vec3 {
 	 * Assigns the value to this vector.
 	 */
 	public void setToCross(Vec3 v) {
-		// just make a copy for now
-		set(cross(v));
+		setToCross(this, v);
+	}
+	
+	/**
+	 * Vector cross product.
+	 * Assigns a x b to this vector. This vector can be one of the operands.
+	 */
+	public void setToCross(Vec3 a, Vec3 b) {
+		double cx = a.y*b.z - a.z*b.y;
+		double cy = a.z*b.x - a.x*b.z;
+		double cz = a.x*b.y - a.y*b.x;
+		x = cx;
+		y = cy;
+		z = cz;
 	}
 	
 	/**
@@ -189,4 +250,15 @@ public class Vec3 {
 	public Vec3 reflect(Vec3 n) {
 		return n.scale(-2*n.dot(this)).add(this);		
 	}
+
+	/**
+	 * Reflect the vector v around the normal n.
+	 * Assigns the value to this vector. This vector can be v.
+	 */
+	public void setToReflect(Vec3 v, Vec3 n) {
+		double s = -2*n.dot(v);
+		x = n.x * s + v.x;
+		y = n.y * s + v.y;
+		z = n.z * s + v.z;
+	}
 }
@@ -0,0 +1,349 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Breadth-first (wavefront) tracing of the samples of a tile.
+ * 
+ * All the camera rays of a tile are generated and intersected as one batch.
+ * The hits are then sorted by material class and shaded group by group, so
+ * each group runs the same material code over many hits. Shading queues shadow
+ * rays, traced as a batch once the wave is shaded, and reflection rays, which
+ * form the next wave. Each ray carries the sample it contributes to and its
+ * weight (the product of the reflectances along its path), so colors are
+ * accumulated per sample instead of being returned by recursion.
+ * 
+ * An instance holds the buffers of one render thread and is reused for all its
+ * tiles (see ShadingContext).
+ * 
+ * @author fabio
+ */
+public class Wavefront {
+	/**
+	 * Rays of the current wave, with their sample, weight and closest hit.
+	 */
+	private int					numRays;
+	private Ray[]				rays;
+	private int[]				slots;
+	private Color[]				weights;
+	private Intersection[]		intersections;
+	private boolean[]			hits;
+	/**
+	 * Reflection rays queued for the next wave.
+	 */
+	private int					numNextRays;
+	private Ray[]				nextRays;
+	private int[]				nextSlots;
+	private Color[]				nextWeights;
+	/**
+	 * Shadow rays of the current wave, with their sample and the color they add
+	 * if the light is not occluded.
+	 */
+	private int					numShadowRays;
+	private Ray[]				shadowRays;
+	private int[]				shadowSlots;
+	private Color[]				shadowColors;
+	/**
+	 * Hits of the current wave sorted by material class.
+	 */
+	private int					numHits;
+	private int[]				order;
+	private int[]				materialTypes;
+	private List<Class<?>>		types;
+	private int[]				typeStarts;
+	/**
+	 * Accumulated color of each sample of the tile (r, g, b).
+	 */
+	private double[]			sampleColors;
+	/**
+	 * Shading temporaries.
+	 */
+	private Vec3				lightDirection;
+	private Color				lightIntensity;
+	private Color				reflectance;
+	private Color				color;
+	private Color				sum;
+	
+	/**
+	 * Create empty buffers, grown as needed.
+	 */
+	public Wavefront() {
+		numRays = numNextRays = numShadowRays = numHits = 0;
+		rays = nextRays = shadowRays = new Ray[0];
+		slots = nextSlots = shadowSlots = new int[0];
+		weights = nextWeights = shadowColors = new Color[0];
+		intersections = new Intersection[0];
+		hits = new boolean[0];
+		order = materialTypes = new int[0];
+		types = new ArrayList<Class<?>>();
+		typeStarts = new int[1];
+		sampleColors = new double[0];
+		lightDirection = new Vec3();
+		lightIntensity = new Color();
+		reflectance = new Color();
+		color = new Color();
+		sum = new Color();
+	}
+	
+	/**
+	 * Render the pixels [x0,x1)x[y0,y1) as RayTracer.renderWithSuperSampled(nsamples)
+	 * does, writing image and, if not null, imageSuperSampled.
+	 */
+	public void renderTile(RayTracer tracer, int nsamples, ColorImage image, ColorImage imageSuperSampled,
+			int x0, int y0, int x1, int y1, ShadingContext context) {
+		Camera camera = tracer.scene.camera;
+		int center = nsamples % 2 == 1 ? nsamples / 2 : -1;
+		int samples = nsamples*nsamples;
+		int raysPerPixel = center < 0 ? samples + 1 : samples;
+		int numSamples = (x1-x0) * (y1-y0) * raysPerPixel;
+		if(sampleColors.length < 3*numSamples) {
+			sampleColors = new double[3*numSamples];
+		}
+		Arrays.fill(sampleColors, 0, 3*numSamples, 0);
+		
+		// camera rays, in the order of the single ray render loops
+		numRays = 0;
+		int[] order = PixelOrder.get(tracer.pixelOrder, x1 - x0, y1 - y0);
+		for(int p = 0; p < order.length; p ++) {
+			int i = x0 + PixelOrder.x(order[p]);
+			int j = y0 + PixelOrder.y(order[p]);
+			for(int s = 0; s < raysPerPixel; s ++) {
+				reserveRays(numRays + 1);
+				if(s < samples) {
+					camera.generateRay(i, j, s / nsamples, s % nsamples, nsamples, rays[numRays]);
+				} else {
+					camera.generateRay(i, j, 0, 0, 1, rays[numRays]);
+				}
+				slots[numRays] = numRays;
+				weights[numRays].set(1,1,1);
+				numRays ++;
+			}
+		}
+		context.statistics.primaryRays += numRays;
+		
+		while(numRays > 0) {
+			intersectWave(tracer, context);
+			sortHits();
+			shadeWave(tracer, context);
+			traceShadowRays(tracer.scene, context);
+			swapWaves();
+		}
+		
+		// resolve the samples to pixels
+		int slot = 0;
+		for(int p = 0; p < order.length; p ++) {
+			int i = x0 + PixelOrder.x(order[p]);
+			int j = y0 + PixelOrder.y(order[p]);
+			sum.set(0,0,0);
+			for(int s = 0; s < raysPerPixel; s ++, slot ++) {
+				color.set(sampleColors[3*slot], sampleColors[3*slot+1], sampleColors[3*slot+2]);
+				if(s == samples || (s / nsamples == center && s % nsamples == center)) {
+					image.setColor(i,j,color);
+				}
+				if(s < samples) {
+					sum.setToAdd(color);
+				}
+			}
+			if(imageSuperSampled != null) {
+				sum.setToScale(1.0/samples);
+				imageSuperSampled.setColor(i,j,sum);
+			}
+		}
+	}
+	
+	/**
+	 * Find the closest hit of every ray of the wave, in packets if the raytracer
+	 * uses them.
+	 */
+	private void intersectWave(RayTracer tracer, ShadingContext context) {
+		if(tracer.packetSize <= 1) {
+			for(int r = 0; r < numRays; r ++) {
+				hits[r] = tracer.scene.intersect(rays[r], intersections[r]);
+			}
+			return;
+		}
+		RayPacket packet = context.packet(Math.min(tracer.packetSize, RayPacket.MAX_SIZE));
+		for(int start = 0; start < numRays; start += packet.getCapacity()) {
+			int end = Math.min(start + packet.getCapacity(), numRays);
+			packet.size = 0;
+			for(int r = start; r < end; r ++) {
+				packet.add(rays[r]);
+			}
+			tracer.scene.intersect(packet);
+			for(int r = start; r < end; r ++) {
+				hits[r] = packet.hit[r-start];
+				intersections[r].set(packet.intersections[r-start]);
+			}
+		}
+	}
+	
+	/**
+	 * Counting sort of the hits of the wave by material class into order.
+	 */
+	private void sortHits() {
+		numHits = 0;
+		for(int r = 0; r < numRays; r ++) {
+			if(!hits[r]) {
+				continue;
+			}
+			Class<?> type = intersections[r].material.getClass();
+			int t = types.indexOf(type);
+			if(t < 0) {
+				t = types.size();
+				types.add(type);
+			}
+			materialTypes[r] = t;
+			numHits ++;
+		}
+		if(typeStarts.length < types.size() + 1) {
+			typeStarts = new int[types.size() + 1];
+		}
+		Arrays.fill(typeStarts, 0);
+		for(int r = 0; r < numRays; r ++) {
+			if(hits[r]) {
+				typeStarts[materialTypes[r] + 1] ++;
+			}
+		}
+		for(int t = 0; t < types.size(); t ++) {
+			typeStarts[t+1] += typeStarts[t];
+		}
+		for(int r = 0; r < numRays; r ++) {
+			if(hits[r]) {
+				order[typeStarts[materialTypes[r]]++] = r;
+			}
+		}
+	}
+	
+	/**
+	 * Shade the hits of the wave in material order, queuing one shadow ray per
+	 * light and the reflection rays of the next wave.
+	 */
+	private void shadeWave(RayTracer tracer, ShadingContext context) {
+		Scene scene = tracer.scene;
+		numShadowRays = 0;
+		numNextRays = 0;
+		reserveShadowRays(numHits * scene.lights.length);
+		for(int h = 0; h < numHits; h ++) {
+			int r = order[h];
+			Ray ray = rays[r];
+			Intersection intersection = intersections[r];
+			Vec3 N = intersection.normal;
+			Vec3 P = intersection.position;
+			Vec3 I = ray.direction;
+			Material material = intersection.material;
+			Color weight = weights[r];
+			
+			for(int l = 0; l < scene.lights.length; l ++) {
+				Light light = scene.lights[l];
+				light.computeLightDirection(P, lightDirection);
+				light.computeLightIntensity(P, lightIntensity);
+				material.computeDirectLighting(N, lightDirection, I, reflectance);
+				reflectance.setToScale(lightIntensity);
+				Ray shadowRay = shadowRays[numShadowRays];
+				shadowRay.set(P, lightDirection, 0);
+				shadowRay.maxDistance = light.computeShadowDistance(P);
+				shadowColors[numShadowRays].setToScale(reflectance, weight);
+				shadowSlots[numShadowRays] = slots[r];
+				numShadowRays ++;
+			}
+			
+			if(material.hasReflection(N, I)) {
+				context.statistics.reflectionRays ++;
+				if(ray.rayDepth + 1 <= tracer.maxRecursion) {
+					material.computeReflection(N, I, reflectance);
+					reserveNextRays(numNextRays + 1);
+					Ray reflectionRay = nextRays[numNextRays];
+					reflectionRay.set(P, I, ray.rayDepth + 1);
+					reflectionRay.direction.setToReflect(I, N);
+					nextWeights[numNextRays].setToScale(reflectance, weight);
+					nextSlots[numNextRays] = slots[r];
+					numNextRays ++;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Trace the shadow rays of the wave, adding the color of the unoccluded ones
+	 * to their samples.
+	 */
+	private void traceShadowRays(Scene scene, ShadingContext context) {
+		context.statistics.shadowRays += numShadowRays;
+		for(int k = 0; k < numShadowRays; k ++) {
+			if(!scene.occluded(shadowRays[k])) {
+				int s = 3*shadowSlots[k];
+				Color c = shadowColors[k];
+				sampleColors[s+0] += c.r;
+				sampleColors[s+1] += c.g;
+				sampleColors[s+2] += c.b;
+			}
+		}
+	}
+	
+	/**
+	 * Make the queued reflection rays the current wave.
+	 */
+	private void swapWaves() {
+		Ray[] r = rays; rays = nextRays; nextRays = r;
+		int[] s = slots; slots = nextSlots; nextSlots = s;
+		Color[] w = weights; weights = nextWeights; nextWeights = w;
+		numRays = numNextRays;
+		numNextRays = 0;
+		// the per ray arrays must cover the new current wave
+		reserveRays(numRays);
+	}
+	
+	private void reserveRays(int n) {
+		if(n > rays.length) {
+			int size = Math.max(n, 2*rays.length);
+			rays = grow(rays, size);
+			slots = Arrays.copyOf(slots, size);
+			weights = grow(weights, size);
+		}
+		if(n > intersections.length) {
+			int size = Math.max(n, 2*intersections.length);
+			Intersection[] nIntersections = Arrays.copyOf(intersections, size);
+			for(int i = intersections.length; i < size; i ++) {
+				nIntersections[i] = new Intersection();
+			}
+			intersections = nIntersections;
+			hits = new boolean[size];
+			order = new int[size];
+			materialTypes = new int[size];
+		}
+	}
+	
+	private void reserveNextRays(int n) {
+		if(n > nextRays.length) {
+			int size = Math.max(n, 2*nextRays.length);
+			nextRays = grow(nextRays, size);
+			nextSlots = Arrays.copyOf(nextSlots, size);
+			nextWeights = grow(nextWeights, size);
+		}
+	}
+	
+	private void reserveShadowRays(int n) {
+		if(n > shadowRays.length) {
+			int size = Math.max(n, 2*shadowRays.length);
+			shadowRays = grow(shadowRays, size);
+			shadowSlots = new int[size];
+			shadowColors = grow(shadowColors, size);
+		}
+	}
+	
+	private static Ray[] grow(Ray[] a, int size) {
+		Ray[] b = Arrays.copyOf(a, size);
+		for(int i = a.length; i < size; i ++) {
+			b[i] = new Ray();
+		}
+		return b;
+	}
+	
+	private static Color[] grow(Color[] a, int size) {
+		Color[] b = Arrays.copyOf(a, size);
+		for(int i = a.length; i < size; i ++) {
+			b[i] = new Color();
+		}
+		return b;
+	}
+}
@@ -0,0 +1,265 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Packet kernels on the incubating vector API, testing SPECIES.length() lanes
+ * per instruction (see PacketKernels for how this class is built and loaded).
+ *
+ * Each lane goes through the same operations in the same order as in
+ * ScalarPacketKernels, and branches become masks: a lane hits when it passes
+ * every test that would have skipped it. The box test selects with compares
+ * and blends rather than min and max, so NaN slabs behave as in the scalar
+ * loop. Vectors are loaded whole from the padded lane arrays and the lanes
+ * past the packet size are masked out of the results.
+ *
+ * The primitive tests run as short passes over the packet arrays that store
+ * the distances, NaN for lanes that miss, and the hit lanes are read back
+ * from them. The compiler stops inlining after a fixed amount of code per
+ * method and boxes any vector passed to a call it did not inline, which one
+ * long test reaches; passes only share the packet, so they stay unboxed
+ * whether or not they are inlined into each other.
+ *
+ * @author fabio
+ */
+class VectorPacketKernels implements PacketKernels {
+	/**
+	 * Widest preferred species that fits the lane padding of the packets.
+	 */
+	static final VectorSpecies<Double>	SPECIES =
+		DoubleVector.SPECIES_PREFERRED.length() <= RayPacket.LANE_PADDING ?
+			DoubleVector.SPECIES_PREFERRED : DoubleVector.SPECIES_512;
+	/**
+	 * Index of each lane of a vector, to mask the lanes past the packet size.
+	 */
+	private static final DoubleVector	LANE_INDEX;
+	static {
+		double[] index = new double[SPECIES.length()];
+		for(int i = 0; i < index.length; i ++) {
+			index[i] = i;
+		}
+		LANE_INDEX = DoubleVector.fromArray(SPECIES, index, 0);
+	}
+
+	public boolean intersectBox(RayPacket packet, double[] bounds, int b) {
+		DoubleVector minx = DoubleVector.broadcast(SPECIES, bounds[b+0]);
+		DoubleVector miny = DoubleVector.broadcast(SPECIES, bounds[b+1]);
+		DoubleVector minz = DoubleVector.broadcast(SPECIES, bounds[b+2]);
+		DoubleVector maxx = DoubleVector.broadcast(SPECIES, bounds[b+3]);
+		DoubleVector maxy = DoubleVector.broadcast(SPECIES, bounds[b+4]);
+		DoubleVector maxz = DoubleVector.broadcast(SPECIES, bounds[b+5]);
+		for(int k = 0; k < packet.size; k += SPECIES.length()) {
+			DoubleVector near = DoubleVector.fromArray(SPECIES, packet.tmin, k);
+			DoubleVector far = DoubleVector.fromArray(SPECIES, packet.tmax, k);
+			DoubleVector o = DoubleVector.fromArray(SPECIES, packet.ox, k);
+			DoubleVector id = DoubleVector.fromArray(SPECIES, packet.idx, k);
+			DoubleVector t0 = minx.sub(o).mul(id), t1 = maxx.sub(o).mul(id);
+			near = nearer(near, t0, t1);
+			far = farther(far, t0, t1);
+			o = DoubleVector.fromArray(SPECIES, packet.oy, k);
+			id = DoubleVector.fromArray(SPECIES, packet.idy, k);
+			t0 = miny.sub(o).mul(id);
+			t1 = maxy.sub(o).mul(id);
+			near = nearer(near, t0, t1);
+			far = farther(far, t0, t1);
+			o = DoubleVector.fromArray(SPECIES, packet.oz, k);
+			id = DoubleVector.fromArray(SPECIES, packet.idz, k);
+			t0 = minz.sub(o).mul(id);
+			t1 = maxz.sub(o).mul(id);
+			near = nearer(near, t0, t1);
+			far = farther(far, t0, t1);
+			if(near.compare(VectorOperators.LE, far).and(inPacket(packet, k)).anyTrue()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Near end of the range clipped by the slab (t0,t1): the smaller of t0 and
+	 * t1 where it is greater than near.
+	 */
+	private static DoubleVector nearer(DoubleVector near, DoubleVector t0, DoubleVector t1) {
+		DoubleVector lo = t0.blend(t1, t0.compare(VectorOperators.GT, t1));
+		return near.blend(lo, lo.compare(VectorOperators.GT, near));
+	}
+
+	/**
+	 * Far end of the range clipped by the slab (t0,t1): the larger of t0 and
+	 * t1 where it is less than far.
+	 */
+	private static DoubleVector farther(DoubleVector far, DoubleVector t0, DoubleVector t1) {
+		DoubleVector hi = t1.blend(t0, t0.compare(VectorOperators.GT, t1));
+		return far.blend(hi, hi.compare(VectorOperators.LT, far));
+	}
+
+	public int intersectSphere(RayPacket packet, double cx, double cy, double cz, double rr) {
+		for(int k = 0; k < packet.size; k += SPECIES.length()) {
+			sphereDistances(packet, k, cx, cy, cz, rr);
+			rangeDistances(packet, k);
+		}
+		return hitLanes(packet);
+	}
+
+	/**
+	 * Store the distances to the near side of the sphere of the lanes from k on,
+	 * NaN for the lanes that miss it, as the square root of their negative
+	 * discriminant.
+	 */
+	private static void sphereDistances(RayPacket packet, int k, double cx, double cy, double cz, double rr) {
+		DoubleVector lx = DoubleVector.fromArray(SPECIES, packet.ox, k).sub(cx);
+		DoubleVector ly = DoubleVector.fromArray(SPECIES, packet.oy, k).sub(cy);
+		DoubleVector lz = DoubleVector.fromArray(SPECIES, packet.oz, k).sub(cz);
+		DoubleVector dx = DoubleVector.fromArray(SPECIES, packet.dx, k);
+		DoubleVector dy = DoubleVector.fromArray(SPECIES, packet.dy, k);
+		DoubleVector dz = DoubleVector.fromArray(SPECIES, packet.dz, k);
+		DoubleVector a = dx.mul(dx).add(dy.mul(dy)).add(dz.mul(dz));
+		DoubleVector b = dx.mul(lx).add(dy.mul(ly)).add(dz.mul(lz)).mul(2);
+		DoubleVector c = lx.mul(lx).add(ly.mul(ly)).add(lz.mul(lz)).sub(rr);
+		DoubleVector det = b.mul(b).sub(a.mul(4).mul(c));
+		b.neg().sub(det.sqrt()).div(a.mul(2)).intoArray(packet.t, k);
+	}
+
+	public int intersectTriangle(RayPacket packet, Vec3 normal, double nv0, Vec3 v0, Vec3 v1, Vec3 v2) {
+		for(int k = 0; k < packet.size; k += SPECIES.length()) {
+			if(planeDistances(packet, k, normal, nv0)) {
+				edgeTest(packet, k, normal, v0, v1);
+				edgeTest(packet, k, normal, v1, v2);
+				edgeTest(packet, k, normal, v2, v0);
+			}
+			rangeDistances(packet, k);
+		}
+		return hitLanes(packet);
+	}
+
+	/**
+	 * Store the distances to the plane of the triangle of the lanes from k on,
+	 * returning true if any is in range.
+	 */
+	private static boolean planeDistances(RayPacket packet, int k, Vec3 normal, double nv0) {
+		double nx = normal.x, ny = normal.y, nz = normal.z;
+		DoubleVector ox = DoubleVector.fromArray(SPECIES, packet.ox, k);
+		DoubleVector oy = DoubleVector.fromArray(SPECIES, packet.oy, k);
+		DoubleVector oz = DoubleVector.fromArray(SPECIES, packet.oz, k);
+		DoubleVector dx = DoubleVector.fromArray(SPECIES, packet.dx, k);
+		DoubleVector dy = DoubleVector.fromArray(SPECIES, packet.dy, k);
+		DoubleVector dz = DoubleVector.fromArray(SPECIES, packet.dz, k);
+		DoubleVector t = ox.mul(nx).add(oy.mul(ny)).add(oz.mul(nz)).sub(nv0).neg()
+			.div(dx.mul(nx).add(dy.mul(ny)).add(dz.mul(nz)));
+		t.intoArray(packet.t, k);
+		return inRange(packet, t, k).anyTrue();
+	}
+
+	/**
+	 * Set the stored distances of the lanes from k on to NaN where the hit
+	 * point does not lie on the inner side of the edge (a,b).
+	 */
+	private static void edgeTest(RayPacket packet, int k, Vec3 normal, Vec3 a, Vec3 b) {
+		double ex = b.x - a.x, ey = b.y - a.y, ez = b.z - a.z;
+		DoubleVector t = DoubleVector.fromArray(SPECIES, packet.t, k);
+		DoubleVector qx = DoubleVector.fromArray(SPECIES, packet.ox, k)
+			.add(DoubleVector.fromArray(SPECIES, packet.dx, k).mul(t)).sub(a.x);
+		DoubleVector qy = DoubleVector.fromArray(SPECIES, packet.oy, k)
+			.add(DoubleVector.fromArray(SPECIES, packet.dy, k).mul(t)).sub(a.y);
+		DoubleVector qz = DoubleVector.fromArray(SPECIES, packet.oz, k)
+			.add(DoubleVector.fromArray(SPECIES, packet.dz, k).mul(t)).sub(a.z);
+		DoubleVector cx = qz.mul(ey).sub(qy.mul(ez));
+		DoubleVector cy = qx.mul(ez).sub(qz.mul(ex));
+		DoubleVector cz = qy.mul(ex).sub(qx.mul(ey));
+		DoubleVector inside = cx.mul(normal.x).add(cy.mul(normal.y)).add(cz.mul(normal.z));
+		t.blend(Double.NaN, inside.compare(VectorOperators.GT, 0).not()).intoArray(packet.t, k);
+	}
+
+	public int intersectMeshTriangle(RayPacket packet, double[] edges, int e, double[] positions, int v) {
+		for(int k = 0; k < packet.size; k += SPECIES.length()) {
+			meshCoordinates(packet, k, edges, e, positions, v);
+			meshDistances(packet, k);
+		}
+		return hitLanes(packet);
+	}
+
+	/**
+	 * Store the distances and barycentric coordinates u,w of the lanes from k
+	 * on, with NaN distances where the ray is parallel to the triangle.
+	 */
+	private static void meshCoordinates(RayPacket packet, int k, double[] edges, int e, double[] positions, int v) {
+		DoubleVector e1x = broadcast(edges[e+0]), e1y = broadcast(edges[e+1]), e1z = broadcast(edges[e+2]);
+		DoubleVector e2x = broadcast(edges[e+3]), e2y = broadcast(edges[e+4]), e2z = broadcast(edges[e+5]);
+		DoubleVector dx = DoubleVector.fromArray(SPECIES, packet.dx, k);
+		DoubleVector dy = DoubleVector.fromArray(SPECIES, packet.dy, k);
+		DoubleVector dz = DoubleVector.fromArray(SPECIES, packet.dz, k);
+		DoubleVector px = dy.mul(e2z).sub(dz.mul(e2y));
+		DoubleVector py = dz.mul(e2x).sub(dx.mul(e2z));
+		DoubleVector pz = dx.mul(e2y).sub(dy.mul(e2x));
+		DoubleVector det = px.mul(e1x).add(py.mul(e1y)).add(pz.mul(e1z));
+		DoubleVector invDet = broadcast(1).div(det);
+		DoubleVector sx = DoubleVector.fromArray(SPECIES, packet.ox, k).sub(positions[v+0]);
+		DoubleVector sy = DoubleVector.fromArray(SPECIES, packet.oy, k).sub(positions[v+1]);
+		DoubleVector sz = DoubleVector.fromArray(SPECIES, packet.oz, k).sub(positions[v+2]);
+		DoubleVector u = sx.mul(px).add(sy.mul(py)).add(sz.mul(pz)).mul(invDet);
+		DoubleVector qx = sy.mul(e1z).sub(sz.mul(e1y));
+		DoubleVector qy = sz.mul(e1x).sub(sx.mul(e1z));
+		DoubleVector qz = sx.mul(e1y).sub(sy.mul(e1x));
+		DoubleVector w = dx.mul(qx).add(dy.mul(qy)).add(dz.mul(qz)).mul(invDet);
+		DoubleVector t = qx.mul(e2x).add(qy.mul(e2y)).add(qz.mul(e2z)).mul(invDet);
+		t.blend(Double.NaN, det.compare(VectorOperators.EQ, 0)).intoArray(packet.t, k);
+		u.intoArray(packet.u, k);
+		w.intoArray(packet.w, k);
+	}
+
+	/**
+	 * Set the distances stored by meshCoordinates of the lanes from k on to NaN
+	 * where they are not a hit.
+	 */
+	private static void meshDistances(RayPacket packet, int k) {
+		DoubleVector u = DoubleVector.fromArray(SPECIES, packet.u, k);
+		DoubleVector w = DoubleVector.fromArray(SPECIES, packet.w, k);
+		DoubleVector t = DoubleVector.fromArray(SPECIES, packet.t, k);
+		VectorMask<Double> misses = inRange(packet, t, k).not()
+			.or(u.compare(VectorOperators.LT, 0)).or(u.compare(VectorOperators.GT, 1))
+			.or(w.compare(VectorOperators.LT, 0)).or(u.add(w).compare(VectorOperators.GT, 1));
+		t.blend(Double.NaN, misses).intoArray(packet.t, k);
+	}
+
+	/**
+	 * Set the stored distances of the lanes from k on to NaN where they are not
+	 * within (tmin,tmax).
+	 */
+	private static void rangeDistances(RayPacket packet, int k) {
+		DoubleVector t = DoubleVector.fromArray(SPECIES, packet.t, k);
+		t.blend(Double.NaN, inRange(packet, t, k).not()).intoArray(packet.t, k);
+	}
+
+	/**
+	 * Lanes from k on whose t is within (tmin,tmax).
+	 */
+	private static VectorMask<Double> inRange(RayPacket packet, DoubleVector t, int k) {
+		return t.compare(VectorOperators.GT, DoubleVector.fromArray(SPECIES, packet.tmin, k))
+			.and(t.compare(VectorOperators.LT, DoubleVector.fromArray(SPECIES, packet.tmax, k)));
+	}
+
+	/**
+	 * Lanes of the packet whose stored distance is a hit, that is not NaN.
+	 */
+	private static int hitLanes(RayPacket packet) {
+		int lanes = 0;
+		for(int k = 0; k < packet.size; k ++) {
+			if(!Double.isNaN(packet.t[k])) {
+				lanes |= 1 << k;
+			}
+		}
+		return lanes;
+	}
+
+	private static DoubleVector broadcast(double e) {
+		return DoubleVector.broadcast(SPECIES, e);
+	}
+
+	/**
+	 * Lanes from k on within the packet size.
+	 */
+	private static VectorMask<Double> inPacket(RayPacket packet, int k) {
+		return LANE_INDEX.compare(VectorOperators.LT, packet.size - k);
+	}
+}